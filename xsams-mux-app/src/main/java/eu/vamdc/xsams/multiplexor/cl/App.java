@@ -1,6 +1,7 @@
 package eu.vamdc.xsams.multiplexor.cl;
 
 import eu.vamdc.xsams.multiplexor.mux.Collator;
+import eu.vamdc.xsams.multiplexor.mux.VirtualThreadExecutor;
 import java.net.URL;
 import java.util.HashSet;
 import java.util.Set;
@@ -11,11 +12,31 @@ import java.util.Set;
  */
 public class App {
   
+  /**
+   * Option selecting virtual threads for the analyzers.
+   */
+  public static final String VIRTUAL_THREADS_OPTION = "--virtual-threads";
+  
+  /**
+   * Option leaving out the inputs that fail, rather than failing.
+   */
+  public static final String PARTIAL_OPTION = "--partial";
+  
   public static void main(String[] args) throws Exception {
     Set<URL> inputs = new HashSet<URL>(args.length);
+    boolean virtualThreads = false;
+    boolean partial = false;
     try {
       for (String s: args) {
-        inputs.add(new URL(s));
+        if (s.equals(VIRTUAL_THREADS_OPTION)) {
+          virtualThreads = true;
+        }
+        else if (s.equals(PARTIAL_OPTION)) {
+          partial = true;
+        }
+        else {
+          inputs.add(new URL(s));
+        }
       }
     }
     catch (Exception e) {
@@ -25,8 +46,19 @@ public class App {
     }
     
     Collator c = new Collator(inputs, System.out);
+    if (virtualThreads) {
+      if (!VirtualThreadExecutor.isSupported()) {
+        System.err.println(VIRTUAL_THREADS_OPTION + " needs Java 21 or later");
+        System.exit(1);
+      }
+      c.useVirtualThreads();
+    }
+    c.setPartial(partial);
     try {
       c.collate();
+      for (Exception e: c.getInputErrors()) {
+        System.err.println("Left out: " + e);
+      }
     }
     catch (Exception e1) {
       System.err.println(e1);
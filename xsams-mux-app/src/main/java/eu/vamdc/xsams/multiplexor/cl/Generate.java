@@ -0,0 +1,101 @@
+package eu.vamdc.xsams.multiplexor.cl;
+
+import eu.vamdc.xsams.multiplexor.gen.XsamsGenerator;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes a synthetic XSAMS document to standard output. See 
+ * {@link XsamsGenerator}. The options, all optional, are:
+ * <pre>
+ * --seed=N         seed for the random content (default 1)
+ * --prefix=S       prefix for IDs (default gen)
+ * --sources=N      number of sources
+ * --atoms=N        number of atoms
+ * --molecules=N    number of molecules
+ * --states=N       number of states per species
+ * --radiative=N    number of radiative transitions
+ * --collisional=N  number of collisional transitions
+ * --size=N[K|M|G]  size of document; radiative transitions are added to reach it
+ * </pre>
+ *
+ * @author Guy Rixon
+ */
+public class Generate {
+  
+  public static void main(String[] args) throws Exception {
+    XsamsGenerator g = null;
+    try {
+      long seed = 1L;
+      for (String s: args) {
+        if (s.startsWith("--seed=")) {
+          seed = Long.parseLong(value(s));
+        }
+      }
+      g = new XsamsGenerator(seed);
+      for (String s: args) {
+        if (s.startsWith("--seed=")) {
+          continue;
+        }
+        else if (s.startsWith("--prefix=")) {
+          g.setPrefix(value(s));
+        }
+        else if (s.startsWith("--sources=")) {
+          g.setSourceCount(Integer.parseInt(value(s)));
+        }
+        else if (s.startsWith("--atoms=")) {
+          g.setAtomCount(Integer.parseInt(value(s)));
+        }
+        else if (s.startsWith("--molecules=")) {
+          g.setMoleculeCount(Integer.parseInt(value(s)));
+        }
+        else if (s.startsWith("--states=")) {
+          g.setStateCount(Integer.parseInt(value(s)));
+        }
+        else if (s.startsWith("--radiative=")) {
+          g.setRadiativeTransitionCount(Long.parseLong(value(s)));
+        }
+        else if (s.startsWith("--collisional=")) {
+          g.setCollisionalTransitionCount(Long.parseLong(value(s)));
+        }
+        else if (s.startsWith("--size=")) {
+          g.setTargetSize(size(value(s)));
+        }
+        else {
+          throw new IllegalArgumentException("Unknown option: " + s);
+        }
+      }
+    }
+    catch (Exception e) {
+      System.err.println(e);
+      System.exit(1);
+    }
+    
+    OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
+    g.write(out);
+    out.flush();
+  }
+  
+  private static String value(String option) {
+    return option.substring(option.indexOf('=') + 1);
+  }
+  
+  private static long size(String s) {
+    long multiplier = 1L;
+    char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+    if (unit == 'K') {
+      multiplier = 1024L;
+    }
+    else if (unit == 'M') {
+      multiplier = 1024L * 1024L;
+    }
+    else if (unit == 'G') {
+      multiplier = 1024L * 1024L * 1024L;
+    }
+    if (multiplier > 1L) {
+      s = s.substring(0, s.length() - 1);
+    }
+    return Long.parseLong(s) * multiplier;
+  }
+
+}
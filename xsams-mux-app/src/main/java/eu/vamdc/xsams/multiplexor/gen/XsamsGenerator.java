@@ -0,0 +1,491 @@
+package eu.vamdc.xsams.multiplexor.gen;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Generates synthetic XSAMS-0.3 documents for scale and load testing.
+ * <p>
+ * A document has a given number of sources, atoms and molecules, each
+ * species with a given number of states, followed by radiative transitions
+ * between the states of atoms and collisional transitions between the
+ * states of molecules. The structure follows that of the documents served by
+ * the VAMDC nodes, e.g. the CHIANTI database; the numbers are random.
+ * Every reference in the document leads to an item defined in the same
+ * document. The content is determined by the seed, so equal settings give
+ * equal documents.
+ * <p>
+ * The document is written as a stream, so it may be larger than memory. If
+ * a target size is set, radiative transitions are added until the document
+ * reaches that size; the count of radiative transitions is then a minimum.
+ *
+ * @author Guy Rixon
+ */
+public class XsamsGenerator {
+
+  /**
+   * Namespace URI for XSAMS-0.3.
+   */
+  public static final String XSAMS_NS_URI = "http://vamdc.org/xml/xsams/0.3";
+
+  private static final String[] ELEMENTS = {
+    "H", "He", "Li", "Be", "B", "C", "N", "O", "F", "Ne", "Na", "Mg", "Al",
+    "Si", "P", "S", "Cl", "Ar", "K", "Ca", "Sc", "Ti", "V", "Cr", "Mn", "Fe"
+  };
+
+  private static final String[] MOLECULES = {
+    "H2O", "CO", "CO2", "CH4", "NH3", "OH", "HCN", "SiO", "CS", "H2"
+  };
+
+  private final long seed;
+
+  private String prefix;
+
+  private int sourceCount;
+
+  private int atomCount;
+
+  private int moleculeCount;
+
+  private int stateCount;
+
+  private long radiativeCount;
+
+  private long collisionalCount;
+
+  private long targetSize;
+
+  private Random random;
+
+  /**
+   * Constructs a generator with small default counts: one source, two atoms,
+   * one molecule, ten states per species, a hundred radiative and ten
+   * collisional transitions.
+   *
+   * @param seed The seed for the random content.
+   */
+  public XsamsGenerator(long seed) {
+    this.seed             = seed;
+    this.prefix           = "gen";
+    this.sourceCount      = 1;
+    this.atomCount        = 2;
+    this.moleculeCount    = 1;
+    this.stateCount       = 10;
+    this.radiativeCount   = 100;
+    this.collisionalCount = 10;
+    this.targetSize       = 0L;
+  }
+
+  /**
+   * Sets the prefix for IDs, e.g. the name of a node. Documents meant to be
+   * merged as if from different nodes should have different prefixes.
+   *
+   * @param p The prefix.
+   */
+  public void setPrefix(String p) {
+    prefix = p;
+  }
+
+  public void setSourceCount(int n) {
+    sourceCount = positive(n, "Source count");
+  }
+
+  public void setAtomCount(int n) {
+    atomCount = notNegative(n, "Atom count");
+  }
+
+  public void setMoleculeCount(int n) {
+    moleculeCount = notNegative(n, "Molecule count");
+  }
+
+  /**
+   * Sets the number of states of each atom and molecule.
+   *
+   * @param n The number of states (must be positive).
+   */
+  public void setStateCount(int n) {
+    stateCount = positive(n, "State count");
+  }
+
+  public void setRadiativeTransitionCount(long n) {
+    radiativeCount = notNegative(n, "Radiative-transition count");
+  }
+
+  public void setCollisionalTransitionCount(long n) {
+    collisionalCount = notNegative(n, "Collisional-transition count");
+  }
+
+  /**
+   * Sets the size of the document. Radiative transitions are added until
+   * the document reaches this size. Zero, the default, gives a document
+   * with exactly the set counts.
+   *
+   * @param bytes The size in bytes.
+   */
+  public void setTargetSize(long bytes) {
+    targetSize = notNegative(bytes, "Target size");
+  }
+
+  /**
+   * Writes a document. The stream is not closed.
+   *
+   * @param o The destination.
+   * @throws XMLStreamException If the document cannot be written.
+   * @throws IOException If the document cannot be written.
+   */
+  public void write(OutputStream o) throws XMLStreamException, IOException {
+    random = new Random(seed);
+    CountingOutputStream counter = new CountingOutputStream(o);
+    XMLStreamWriter w = XMLOutputFactory.newFactory().createXMLStreamWriter(counter, "UTF-8");
+    w.writeStartDocument("UTF-8", "1.0");
+    w.setDefaultNamespace(XSAMS_NS_URI);
+    w.writeStartElement(XSAMS_NS_URI, "XSAMSData");
+    w.writeDefaultNamespace(XSAMS_NS_URI);
+    newLine(w);
+    writeSources(w);
+    writeMethods(w);
+    if (atomCount > 0 || moleculeCount > 0) {
+      w.writeStartElement(XSAMS_NS_URI, "Species");
+      newLine(w);
+      writeAtoms(w);
+      writeMolecules(w);
+      w.writeEndElement();
+      newLine(w);
+    }
+    w.writeStartElement(XSAMS_NS_URI, "Processes");
+    newLine(w);
+    writeRadiative(w, counter);
+    writeCollisions(w);
+    w.writeEndElement();
+    newLine(w);
+    w.writeEndElement();
+    newLine(w);
+    w.writeEndDocument();
+    w.flush();
+  }
+
+  private void writeSources(XMLStreamWriter w) throws XMLStreamException {
+    w.writeStartElement(XSAMS_NS_URI, "Sources");
+    newLine(w);
+    for (int i = 0; i < sourceCount; i++) {
+      w.writeStartElement(XSAMS_NS_URI, "Source");
+      w.writeAttribute("sourceID", sourceId(i));
+      element(w, "Comments", "Synthetic source " + i + " from seed " + seed);
+      element(w, "Year", Integer.toString(1960 + random.nextInt(60)));
+      element(w, "Category", "journal");
+      element(w, "SourceName", "Journal of Synthetic Spectroscopy");
+      element(w, "Volume", Integer.toString(1 + random.nextInt(500)));
+      element(w, "PageBegin", Integer.toString(1 + random.nextInt(1000)));
+      w.writeStartElement(XSAMS_NS_URI, "Authors");
+      w.writeStartElement(XSAMS_NS_URI, "Author");
+      element(w, "Name", "A. Author" + random.nextInt(100));
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndElement();
+      newLine(w);
+    }
+    w.writeEndElement();
+    newLine(w);
+  }
+
+  private void writeMethods(XMLStreamWriter w) throws XMLStreamException {
+    w.writeStartElement(XSAMS_NS_URI, "Methods");
+    newLine(w);
+    writeMethod(w, "EXP", "experiment");
+    writeMethod(w, "THEO", "theory");
+    w.writeEndElement();
+    newLine(w);
+  }
+
+  private void writeMethod(XMLStreamWriter w, String name, String category) throws XMLStreamException {
+    w.writeStartElement(XSAMS_NS_URI, "Method");
+    w.writeAttribute("methodID", methodId(name));
+    element(w, "Category", category);
+    element(w, "Description", "");
+    w.writeEndElement();
+    newLine(w);
+  }
+
+  private void writeAtoms(XMLStreamWriter w) throws XMLStreamException {
+    if (atomCount == 0) {
+      return;
+    }
+    w.writeStartElement(XSAMS_NS_URI, "Atoms");
+    newLine(w);
+    for (int i = 0; i < atomCount; i++) {
+      int z = 1 + (i % ELEMENTS.length);
+      w.writeStartElement(XSAMS_NS_URI, "Atom");
+      w.writeStartElement(XSAMS_NS_URI, "ChemicalElement");
+      element(w, "NuclearCharge", Integer.toString(z));
+      element(w, "ElementSymbol", ELEMENTS[z - 1]);
+      w.writeEndElement();
+      w.writeStartElement(XSAMS_NS_URI, "Isotope");
+      w.writeStartElement(XSAMS_NS_URI, "Ion");
+      w.writeAttribute("speciesID", atomId(i));
+      element(w, "IonCharge", Integer.toString(i / ELEMENTS.length));
+      for (int j = 0; j < stateCount; j++) {
+        w.writeStartElement(XSAMS_NS_URI, "AtomicState");
+        w.writeAttribute("stateID", atomicStateId(i, j));
+        element(w, "Description", "synthetic level " + j);
+        w.writeStartElement(XSAMS_NS_URI, "AtomicNumericalData");
+        w.writeStartElement(XSAMS_NS_URI, "StateEnergy");
+        w.writeAttribute("methodRef", methodId("EXP"));
+        value(w, "1/cm", (j == 0)? 0.0 : random.nextDouble() * 500000.0);
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeStartElement(XSAMS_NS_URI, "AtomicQuantumNumbers");
+        element(w, "TotalAngularMomentum", Double.toString(random.nextInt(10) + 0.5));
+        w.writeEndElement();
+        w.writeEndElement();
+        newLine(w);
+      }
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndElement();
+      newLine(w);
+    }
+    w.writeEndElement();
+    newLine(w);
+  }
+
+  private void writeMolecules(XMLStreamWriter w) throws XMLStreamException {
+    if (moleculeCount == 0) {
+      return;
+    }
+    w.writeStartElement(XSAMS_NS_URI, "Molecules");
+    newLine(w);
+    for (int i = 0; i < moleculeCount; i++) {
+      String formula = MOLECULES[i % MOLECULES.length];
+      w.writeStartElement(XSAMS_NS_URI, "Molecule");
+      w.writeAttribute("speciesID", moleculeId(i));
+      w.writeStartElement(XSAMS_NS_URI, "MolecularChemicalSpecies");
+      w.writeStartElement(XSAMS_NS_URI, "OrdinaryStructuralFormula");
+      element(w, "Value", formula);
+      w.writeEndElement();
+      element(w, "StoichiometricFormula", formula);
+      w.writeEndElement();
+      for (int j = 0; j < stateCount; j++) {
+        w.writeStartElement(XSAMS_NS_URI, "MolecularState");
+        w.writeAttribute("stateID", molecularStateId(i, j));
+        element(w, "Description", "synthetic state " + j);
+        w.writeStartElement(XSAMS_NS_URI, "MolecularStateCharacterisation");
+        w.writeStartElement(XSAMS_NS_URI, "StateEnergy");
+        w.writeAttribute("energyOrigin", molecularStateId(i, 0));
+        value(w, "1/cm", (j == 0)? 0.0 : random.nextDouble() * 10000.0);
+        w.writeEndElement();
+        element(w, "TotalStatisticalWeight", Integer.toString(1 + random.nextInt(20)));
+        w.writeEndElement();
+        w.writeEndElement();
+        newLine(w);
+      }
+      w.writeEndElement();
+      newLine(w);
+    }
+    w.writeEndElement();
+    newLine(w);
+  }
+
+  private void writeRadiative(XMLStreamWriter w, CountingOutputStream counter)
+      throws XMLStreamException {
+    if (atomCount == 0) {
+      return;
+    }
+    long i = 0;
+    while (i < radiativeCount || (targetSize > 0L && counter.getCount() < targetSize)) {
+      if (i == 0) {
+        w.writeStartElement(XSAMS_NS_URI, "Radiative");
+        newLine(w);
+      }
+      int atom = random.nextInt(atomCount);
+      w.writeStartElement(XSAMS_NS_URI, "RadiativeTransition");
+      w.writeAttribute("id", processId("R", i));
+      element(w, "SourceRef", sourceId(random.nextInt(sourceCount)));
+      w.writeStartElement(XSAMS_NS_URI, "EnergyWavelength");
+      w.writeStartElement(XSAMS_NS_URI, "Wavelength");
+      w.writeAttribute("methodRef", methodId(random.nextBoolean()? "EXP" : "THEO"));
+      value(w, "A", 100.0 + random.nextDouble() * 10000.0);
+      w.writeEndElement();
+      w.writeEndElement();
+      element(w, "UpperStateRef", atomicStateId(atom, random.nextInt(stateCount)));
+      element(w, "LowerStateRef", atomicStateId(atom, random.nextInt(stateCount)));
+      element(w, "SpeciesRef", atomId(atom));
+      w.writeStartElement(XSAMS_NS_URI, "Probability");
+      w.writeStartElement(XSAMS_NS_URI, "TransitionProbabilityA");
+      value(w, "1/s", random.nextDouble() * 1.0e9);
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndElement();
+      newLine(w);
+      i++;
+      if (targetSize > 0L) {
+        w.flush();
+      }
+    }
+    if (i > 0) {
+      w.writeEndElement();
+      newLine(w);
+    }
+  }
+
+  private void writeCollisions(XMLStreamWriter w) throws XMLStreamException {
+    if (moleculeCount == 0 || collisionalCount == 0) {
+      return;
+    }
+    w.writeStartElement(XSAMS_NS_URI, "Collisions");
+    newLine(w);
+    for (long i = 0; i < collisionalCount; i++) {
+      int molecule = random.nextInt(moleculeCount);
+      w.writeStartElement(XSAMS_NS_URI, "CollisionalTransition");
+      w.writeAttribute("id", processId("C", i));
+      element(w, "SourceRef", sourceId(random.nextInt(sourceCount)));
+      w.writeStartElement(XSAMS_NS_URI, "ProcessClass");
+      element(w, "Code", "inel");
+      w.writeEndElement();
+      w.writeStartElement(XSAMS_NS_URI, "Reactant");
+      element(w, "SpeciesRef", moleculeId(molecule));
+      element(w, "StateRef", molecularStateId(molecule, random.nextInt(stateCount)));
+      w.writeEndElement();
+      w.writeStartElement(XSAMS_NS_URI, "Product");
+      element(w, "SpeciesRef", moleculeId(molecule));
+      element(w, "StateRef", molecularStateId(molecule, random.nextInt(stateCount)));
+      w.writeEndElement();
+      w.writeStartElement(XSAMS_NS_URI, "DataSets");
+      w.writeStartElement(XSAMS_NS_URI, "DataSet");
+      w.writeAttribute("dataDescription", "rateCoefficient");
+      w.writeStartElement(XSAMS_NS_URI, "TabulatedData");
+      w.writeStartElement(XSAMS_NS_URI, "X");
+      w.writeAttribute("units", "K");
+      w.writeAttribute("parameter", "T");
+      dataList(w, 10.0, 100.0, 1000.0);
+      w.writeEndElement();
+      w.writeStartElement(XSAMS_NS_URI, "Y");
+      w.writeAttribute("units", "cm3/s");
+      w.writeAttribute("parameter", "rate");
+      dataList(w, random.nextDouble() * 1.0e-10, random.nextDouble() * 1.0e-10, random.nextDouble() * 1.0e-10);
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndElement();
+      w.writeEndElement();
+      newLine(w);
+    }
+    w.writeEndElement();
+    newLine(w);
+  }
+
+  private void dataList(XMLStreamWriter w, double... values) throws XMLStreamException {
+    StringBuilder s = new StringBuilder();
+    for (double v : values) {
+      if (s.length() > 0) {
+        s.append(' ');
+      }
+      s.append(v);
+    }
+    w.writeStartElement(XSAMS_NS_URI, "DataList");
+    w.writeAttribute("count", Integer.toString(values.length));
+    w.writeCharacters(s.toString());
+    w.writeEndElement();
+  }
+
+  private void element(XMLStreamWriter w, String name, String text) throws XMLStreamException {
+    w.writeStartElement(XSAMS_NS_URI, name);
+    w.writeCharacters(text);
+    w.writeEndElement();
+  }
+
+  private void value(XMLStreamWriter w, String units, double v) throws XMLStreamException {
+    w.writeStartElement(XSAMS_NS_URI, "Value");
+    w.writeAttribute("units", units);
+    w.writeCharacters(Double.toString(v));
+    w.writeEndElement();
+  }
+
+  private void newLine(XMLStreamWriter w) throws XMLStreamException {
+    w.writeCharacters("\n");
+  }
+
+  private String sourceId(int i) {
+    return "B" + prefix + "-" + i;
+  }
+
+  private String methodId(String name) {
+    return "M" + prefix + "-" + name;
+  }
+
+  private String atomId(int i) {
+    return "X" + prefix + "-A" + i;
+  }
+
+  private String moleculeId(int i) {
+    return "X" + prefix + "-M" + i;
+  }
+
+  private String atomicStateId(int atom, int state) {
+    return "S" + prefix + "-A" + atom + "-" + state;
+  }
+
+  private String molecularStateId(int molecule, int state) {
+    return "S" + prefix + "-M" + molecule + "-" + state;
+  }
+
+  private String processId(String kind, long i) {
+    return "P" + prefix + "-" + kind + i;
+  }
+
+  private static int positive(int n, String what) {
+    if (n < 1) {
+      throw new IllegalArgumentException(what + " must be positive");
+    }
+    return n;
+  }
+
+  private static int notNegative(int n, String what) {
+    if (n < 0) {
+      throw new IllegalArgumentException(what + " must not be negative");
+    }
+    return n;
+  }
+
+  private static long notNegative(long n, String what) {
+    if (n < 0L) {
+      throw new IllegalArgumentException(what + " must not be negative");
+    }
+    return n;
+  }
+
+  /**
+   * Counts the bytes of document written so far.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    CountingOutputStream(OutputStream o) {
+      super(o);
+      count = 0L;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+  }
+
+}
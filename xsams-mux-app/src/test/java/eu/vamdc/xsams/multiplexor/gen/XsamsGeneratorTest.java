@@ -0,0 +1,60 @@
+package eu.vamdc.xsams.multiplexor.gen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+
+/**
+ * Unit tests for {@link XsamsGenerator}.
+ */
+public class XsamsGeneratorTest extends TestCase {
+
+  public void testCounts() throws Exception {
+    XsamsGenerator sut = new XsamsGenerator(42L);
+    sut.setSourceCount(3);
+    sut.setAtomCount(4);
+    sut.setMoleculeCount(2);
+    sut.setStateCount(5);
+    sut.setRadiativeTransitionCount(50);
+    sut.setCollisionalTransitionCount(7);
+    Document d = parse(generate(sut));
+    String ns = XsamsGenerator.XSAMS_NS_URI;
+    assertEquals(3, d.getElementsByTagNameNS(ns, "Source").getLength());
+    assertEquals(4, d.getElementsByTagNameNS(ns, "Atom").getLength());
+    assertEquals(2, d.getElementsByTagNameNS(ns, "Molecule").getLength());
+    assertEquals(20, d.getElementsByTagNameNS(ns, "AtomicState").getLength());
+    assertEquals(10, d.getElementsByTagNameNS(ns, "MolecularState").getLength());
+    assertEquals(50, d.getElementsByTagNameNS(ns, "RadiativeTransition").getLength());
+    assertEquals(7, d.getElementsByTagNameNS(ns, "CollisionalTransition").getLength());
+  }
+
+  public void testDeterminism() throws Exception {
+    assertTrue(Arrays.equals(generate(new XsamsGenerator(7L)), generate(new XsamsGenerator(7L))));
+    assertFalse(Arrays.equals(generate(new XsamsGenerator(7L)), generate(new XsamsGenerator(8L))));
+  }
+
+  public void testTargetSize() throws Exception {
+    XsamsGenerator sut = new XsamsGenerator(1L);
+    sut.setTargetSize(256 * 1024);
+    byte[] b = generate(sut);
+    assertTrue(b.length >= 256 * 1024);
+    assertTrue(b.length < 272 * 1024);
+    parse(b);
+  }
+
+  private byte[] generate(XsamsGenerator g) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    g.write(out);
+    return out.toByteArray();
+  }
+
+  private Document parse(byte[] b) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new ByteArrayInputStream(b));
+  }
+
+}
@@ -0,0 +1,88 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import eu.vamdc.xsams.multiplexor.mux.Analyzer;
+import eu.vamdc.xsams.multiplexor.mux.FragmentList;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parsing of one input by an {@link Analyzer}: reading the
+ * document, cutting out the fragments and rewriting their IDs. The 
+ * fragments are counted and dropped, so the collation is not measured.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalyzerBenchmark {
+
+  /**
+   * The names of the elements collated, in XSAMS order, as in the Collator.
+   */
+  static final String[] FRAGMENT_TAGS = {
+    "Source",
+    "Method",
+    "Function",
+    "Environment",
+    "Atom",
+    "Molecule",
+    "Particle",
+    "Solid",
+    "RadiativeTransition",
+    "AbsorbtionCrossSection",
+    "CollisionInducedAbsorbtionCrossSection",
+    "NonRadiativeTransition",
+    "CollisionalTransition"
+  };
+
+  /**
+   * The size of the input, in megabytes.
+   */
+  @Param({"1", "32", "1024"})
+  public int sizeMb;
+
+  private URL input;
+
+  @Setup
+  public void createInput() throws Exception {
+    File f = SyntheticInput.createTempFile(sizeMb * 1024L * 1024L, 1L, "node1");
+    input = f.toURI().toURL();
+  }
+
+  @Benchmark
+  public long parse() throws Exception {
+    Map<String,FragmentList> queues = new LinkedHashMap<String,FragmentList>();
+    CountingFragmentList counter = new CountingFragmentList();
+    for (String tag : FRAGMENT_TAGS) {
+      queues.put(tag, counter);
+    }
+    List<Exception> errors = new ArrayList<Exception>();
+    new Analyzer(input, queues, "_1", new CountDownLatch(1), errors).run();
+    if (!errors.isEmpty()) {
+      throw errors.get(0);
+    }
+    return counter.getBytes();
+  }
+
+}
@@ -0,0 +1,71 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import eu.vamdc.xsams.multiplexor.mux.Collator;
+import java.io.File;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a whole collation, from parsing the inputs to writing the output,
+ * for a total size of input divided evenly between a number of sources.
+ * The inputs are read from local files and the output is discarded.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CollatorBenchmark {
+
+  /**
+   * The total size of the inputs, in megabytes.
+   */
+  @Param({"1", "32", "1024"})
+  public int sizeMb;
+
+  /**
+   * The number of inputs.
+   */
+  @Param({"1", "8", "64"})
+  public int sources;
+
+  @Param({"false", "true"})
+  public boolean pipelined;
+
+  private Set<URL> inputs;
+
+  @Setup
+  public void createInputs() throws Exception {
+    inputs = new LinkedHashSet<URL>(sources);
+    long bytes = sizeMb * 1024L * 1024L / sources;
+    for (int i = 0; i < sources; i++) {
+      File f = SyntheticInput.createTempFile(bytes, i, "node" + i);
+      inputs.add(f.toURI().toURL());
+    }
+  }
+
+  @Benchmark
+  public void collate() throws Exception {
+    Collator c = new Collator(new HashSet<File>(0), inputs, new NullOutputStream());
+    c.setPipelined(pipelined);
+    c.collate();
+  }
+
+}
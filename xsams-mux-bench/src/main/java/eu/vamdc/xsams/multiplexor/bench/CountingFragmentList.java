@@ -0,0 +1,48 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import eu.vamdc.xsams.multiplexor.mux.Fragment;
+import eu.vamdc.xsams.multiplexor.mux.FragmentList;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * A fragment list that counts the fragments added to it and then drops
+ * them, so that parsing can be measured on inputs larger than the heap.
+ *
+ * @author Guy Rixon
+ */
+public class CountingFragmentList implements FragmentList {
+
+  private long count;
+
+  private long bytes;
+
+  @Override
+  public synchronized boolean add(Fragment f) {
+    count++;
+    bytes += f.getLength();
+    return true;
+  }
+
+  @Override
+  public void finish() {
+  }
+
+  @Override
+  public void discard() {
+  }
+
+  @Override
+  public Iterator<Fragment> iterator() {
+    return Collections.<Fragment>emptyList().iterator();
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+}
@@ -0,0 +1,54 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import eu.vamdc.xsams.multiplexor.mux.Fragment;
+import eu.vamdc.xsams.multiplexor.mux.MemoryFragmentList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures contention on a {@link MemoryFragmentList} shared by several
+ * Analyzers. Each benchmark thread stands for one Analyzer; vary the
+ * number of threads with the -t option of JMH.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class FragmentListBenchmark {
+
+  private MemoryFragmentList list;
+
+  private Fragment fragment;
+
+  @Setup(Level.Trial)
+  public void createFragment() throws Exception {
+    fragment = new Fragment("<Source sourceID=\"B1_1\"><Year>2012</Year></Source>".getBytes("UTF-8"));
+  }
+
+  @Setup(Level.Iteration)
+  public void createList() {
+    list = new MemoryFragmentList();
+  }
+
+  @Benchmark
+  public boolean add() {
+    return list.add(fragment);
+  }
+
+}
@@ -0,0 +1,63 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import eu.vamdc.xsams.multiplexor.mux.IdRewriter;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the rewriting of IDs, which the Analyzer applies to every
+ * attribute and to the content of every element holding an ID.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdRewriterBenchmark {
+
+  private IdRewriter rewriter;
+
+  private XMLStreamWriter writer;
+
+  private char[] stateId;
+
+  @Setup
+  public void setUp() throws Exception {
+    rewriter = IdRewriter.forNamespace(IdRewriter.XSAMS_0_3_NS_URI, "_12");
+    writer = XMLOutputFactory.newFactory().createXMLStreamWriter(new NullOutputStream(), "UTF-8");
+    writer.writeStartElement("XSAMSData");
+    stateId = "Schianti-281010026".toCharArray();
+  }
+
+  @Benchmark
+  public String idAttribute() {
+    return rewriter.rewriteAttribute("stateRef", "Schianti-281010026");
+  }
+
+  @Benchmark
+  public String otherAttribute() {
+    return rewriter.rewriteAttribute("units", "1/cm");
+  }
+
+  @Benchmark
+  public String idElement() throws Exception {
+    rewriter.startElement("UpperStateRef");
+    rewriter.characters(stateId, 0, stateId.length);
+    return rewriter.endElement("UpperStateRef", writer);
+  }
+
+}
@@ -0,0 +1,21 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that discards everything written to it, so that the
+ * benchmarks measure the multiplexor rather than the disc.
+ *
+ * @author Guy Rixon
+ */
+public class NullOutputStream extends OutputStream {
+
+  @Override
+  public void write(int b) {
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+  }
+
+}
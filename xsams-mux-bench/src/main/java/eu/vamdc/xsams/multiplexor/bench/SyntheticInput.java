@@ -0,0 +1,54 @@
+package eu.vamdc.xsams.multiplexor.bench;
+
+import eu.vamdc.xsams.multiplexor.gen.XsamsGenerator;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes synthetic XSAMS documents of a given size for the benchmarks,
+ * using {@link XsamsGenerator}. The number of states grows with the size of
+ * the document, and the rest of the size is made up by radiative transitions.
+ *
+ * @author Guy Rixon
+ */
+public class SyntheticInput {
+
+  /**
+   * The number of bytes of document per state.
+   */
+  private static final long BYTES_PER_STATE = 20000L;
+
+  /**
+   * Writes a document to a temporary file. The file is deleted when the
+   * JVM exits.
+   *
+   * @param bytes The approximate size of the document.
+   * @param seed The seed for the random content.
+   * @param prefix A prefix for the IDs in the document.
+   * @return The file.
+   * @throws Exception If the file cannot be written.
+   */
+  public static File createTempFile(long bytes, long seed, String prefix) throws Exception {
+    XsamsGenerator g = new XsamsGenerator(seed);
+    g.setPrefix(prefix);
+    g.setAtomCount(4);
+    g.setMoleculeCount(1);
+    g.setStateCount((int) Math.max(2L, Math.min(25000L, bytes / BYTES_PER_STATE / 5L)));
+    g.setRadiativeTransitionCount(1);
+    g.setTargetSize(bytes);
+
+    File f = File.createTempFile("xsams-bench-", ".xml");
+    f.deleteOnExit();
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 64 * 1024);
+    try {
+      g.write(out);
+    }
+    finally {
+      out.close();
+    }
+    return f;
+  }
+
+}
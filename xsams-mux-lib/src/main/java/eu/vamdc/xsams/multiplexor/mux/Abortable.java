@@ -0,0 +1,18 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+/**
+ * A stream that can be stopped from another thread. Once a stream is
+ * aborted, reads from it fail and closing it drops its connection rather 
+ * than finishing the download; the stream must still be closed.
+ * 
+ * @author Guy Rixon
+ */
+interface Abortable {
+  
+  /**
+   * Stops the stream. This does not block, and may be called more than
+   * once.
+   */
+  void abort();
+  
+}
@@ -5,22 +5,30 @@
 
 package eu.vamdc.xsams.multiplexor.mux;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventFactory;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamWriter;
+import org.xml.sax.helpers.NamespaceSupport;
 
 /**
  *
@@ -40,62 +48,501 @@ public class Analyzer implements Runnable {
   
   private List<Exception> errors;
   
-  private XMLEventFactory  factory;
+  /**
+   * Reads the input. For a URL, this is created when the Analyzer runs.
+   */
+  private XsamsStreamReader reader;
   
-  private XsamsEventReader reader;
+  /**
+   * The cache through which a URL is read; null to read it directly.
+   */
+  private UpstreamCache upstreamCache;
   
+  /**
+   * The Downloader that fetches the URL.
+   */
+  private Downloader downloader;
   
-  private final static List<String> idAttributes = Arrays.asList(new String[] {
-      "methodID", "sourceID", "functionID", "speciesID", "stateID", "environmentID", "processID",
-      "methodRef", "sourceRef", "functionRef", "speciesRef", "stateRef", "envRef", "processRef",
-      "id"
-    });
+  /**
+   * True if the download must keep to the Downloader's limit on 
+   * connections per host.
+   */
+  private boolean limited;
   
-  private final static List<String> idElements = Arrays.asList(new String[] {
-    "StateRef", "UpperStateRef", "LowerStateRef", "SpeciesRef", "SourceRef"
-  });
+  /**
+   * The directory in which the URL is spooled before parsing; null to parse
+   * the URL as it is read.
+   */
+  private File spoolDirectory;
+  
+  /**
+   * Runs the parsing of a spooled URL.
+   */
+  private Executor parser;
+  
+  /**
+   * The file holding the downloaded URL, once it is spooled.
+   */
+  private File spool;
+  
+  /**
+   * The stream opened from the URL, once it is open; guarded by this.
+   */
+  private InputStream source;
+  
+  /**
+   * The thread running the Analyzer, while it runs; guarded by this.
+   */
+  private Thread runner;
+  
+  /**
+   * The reason for which the parsing was cancelled; null unless it was.
+   * Guarded by this.
+   */
+  private Exception cancellation;
+  
+  /**
+   * True once the Analyzer has ended. Written under the lock on this,
+   * and read under {@link #adding} before each fragment is added to its 
+   * queue.
+   */
+  private volatile boolean ended;
+  
+  /**
+   * Held while a fragment is added to its queue, so that the end of the
+   * Analyzer can wait for the addition to finish. This is not the lock on
+   * the Analyzer, as adding to a full queue in pipeline blocks until the
+   * thread is interrupted by {@link #cancel}, which needs that lock.
+   */
+  private final Object adding = new Object();
+  
+  /**
+   * The first error reported in the input; null if none.
+   */
+  private volatile Exception failure;
+  
+  /**
+   * The number of the input; -1 if not set.
+   */
+  private int input = -1;
   
+  /**
+   * Holds the text of the fragment being parsed.
+   */
+  private ByteArrayOutputStream buffer;
+  
+  /**
+   * Writes the corrected text of the fragment being parsed to {@link #buffer}.
+   */
+  private XMLStreamWriter writer;
+  
+  /**
+   * The namespace bindings declared so far in the fragment being parsed.
+   */
+  private NamespaceSupport namespaces;
+  
+  /**
+   * The names of the queues to which this Analyzer may still write, in the
+   * order in which their elements occur in XSAMS.
+   */
+  private List<String> openQueues;
+  
+  /**
+   * Adds the suffix to ID values; chosen from the namespace of the input's
+   * root element unless set explicitly.
+   */
+  private IdRewriter ids;
+  
+  /**
+   * The index of fragments shared by the job, if duplicates are to be 
+   * dropped; otherwise null.
+   */
+  private FragmentIndex index;
+  
+  /**
+   * Digests the fragment being parsed, if it is covered by the index.
+   */
+  private MessageDigest digest;
+  
+  /**
+   * True while the fragment being parsed is being digested.
+   */
+  private boolean digesting;
+  
+  private byte[] digestBuffer;
+  
+  /**
+   * The unsuffixed IDs defined in the fragment being digested.
+   */
+  private Set<String> definitions;
+  
+  /**
+   * Constructs an Analyzer for data on a URL. The URL is not opened until
+   * the Analyzer runs, so that it is read in the Analyzer's thread; errors
+   * in reading it are reported to the error list.
+   * 
+   * @param u The URL.
+   * @param q The fragment queues, keyed by element name and iterating in XSAMS order.
+   * @param s The suffix for ID values.
+   * @param l The latch to count down when the parsing ends.
+   * @param e The list to which errors are reported.
+   * @throws XMLStreamException If the URL cannot be read.
+   * @throws IOException If the URL cannot be read.
+   */
   public Analyzer(URL u, Map<String,FragmentList> q, String s, CountDownLatch l, List<Exception> e) throws XMLStreamException, IOException {
     remoteSource = u;
     localSource  = null;
     queues = q;
+    openQueues = new LinkedList<String>(q.keySet());
     latch  = l;
     errors = e;
     suffix = s;
     
-    factory = XMLEventFactory.newFactory();
+    createWriter();
     
-    reader = new XsamsEventReader(u);
+    reader = null;
+    upstreamCache = null;
+    downloader = new Downloader();
+    limited = true;
   }
   
+  /**
+   * Constructs an Analyzer for data in a file. The file is opened when the
+   * Analyzer runs, so that an Analyzer that never runs holds no file open,
+   * and is deleted when the parsing ends or the Analyzer is abandoned.
+   * 
+   * @param f The file.
+   * @param q The fragment queues, keyed by element name and iterating in XSAMS order.
+   * @param s The suffix for ID values.
+   * @param l The latch to count down when the parsing ends.
+   * @param e The list to which errors are reported.
+   * @throws FileNotFoundException If the file does not exist.
+   * @throws XMLStreamException If the writer for the fragments cannot be created.
+   */
   public Analyzer(File f, Map<String,FragmentList> q, String s, CountDownLatch l, List<Exception> e) throws FileNotFoundException, XMLStreamException {
     remoteSource = null;
     localSource  = f;
     queues = q;
+    openQueues = new LinkedList<String>(q.keySet());
     latch  = l;
     errors = e;
     suffix = s;
     
-    factory = XMLEventFactory.newFactory();
+    if (!f.isFile()) {
+      throw new FileNotFoundException("No such file: " + f);
+    }
+    
+    createWriter();
     
-    reader = new XsamsEventReader(f, true);
+    reader = null;
   }
 
+  /**
+   * Sets the rule for rewriting ID values. By default, the rule is chosen
+   * for the version of XSAMS in the input; see {@link IdRewriter#forNamespace}.
+   * This must be set before the Analyzer runs.
+   * 
+   * A rewriter set here keeps its own {@link IdRewriter#setAliasLimit limit}
+   * on aliases.
+   * 
+   * @param r The rewriter; its suffix replaces the one given at construction.
+   */
+  public void setIdRewriter(IdRewriter r) {
+    ids = r;
+  }
+
+  /**
+   * Directs the Analyzer to read its URL through a cache of upstream
+   * documents. This has no effect for an input in a file.
+   * This must be set before the Analyzer runs.
+   * 
+   * @param c The cache.
+   */
+  public void setUpstreamCache(UpstreamCache c) {
+    upstreamCache = c;
+  }
+
+  /**
+   * Sets the Downloader that fetches the URL. By default, the Analyzer has
+   * a Downloader of its own. This has no effect for an input in a file.
+   * This must be set before the Analyzer runs.
+   * 
+   * @param d The Downloader; normally a view for this input alone, from
+   * {@link Downloader#forInput}, so that a connection may be reserved for it.
+   * @param l True if the download must keep to the Downloader's limit on
+   * connections per host; false for a job in pipeline, which must read all
+   * its inputs at once.
+   */
+  public void setDownloader(Downloader d, boolean l) {
+    downloader = d;
+    limited = l;
+  }
+
+  /**
+   * Reveals the Downloader that fetches the URL.
+   * 
+   * @return The Downloader.
+   */
+  public Downloader getDownloader() {
+    return downloader;
+  }
+
+  /**
+   * Directs the Analyzer to download its URL to a spool file before parsing
+   * it. The download runs in the thread that runs the Analyzer, which can
+   * then go on to the next download; the parsing is handed to another 
+   * executor, which should be sized for the CPUs rather than for the 
+   * network. If that executor rejects the parsing, it runs in the 
+   * downloading thread. The spool file is deleted when the parsing ends.
+   * This has no effect for an input in a file.
+   * This must be set before the Analyzer runs.
+   * 
+   * @param directory The directory for the spool file.
+   * @param p The executor for the parsing.
+   */
+  public void setPrefetch(File directory, Executor p) {
+    spoolDirectory = directory;
+    parser = p;
+  }
+
+  /**
+   * Directs the Analyzer to drop fragments that duplicate fragments already
+   * written from other inputs. Each fragment of a kind covered by the index
+   * is digested, ignoring the suffixes of the IDs that it defines. If the
+   * index already holds the digest, the fragment is dropped and the IDs that
+   * it defines are aliased to the surviving copy. References to IDs are 
+   * digested as they are written, so a fragment referring to an item that 
+   * was not itself deduplicated is not taken as a duplicate.
+   * This must be set before the Analyzer runs.
+   * 
+   * @param i The index shared by the job.
+   */
+  public void setFragmentIndex(FragmentIndex i) {
+    index = i;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+    digestBuffer = new byte[256];
+    definitions = new HashSet<String>();
+  }
+
+  /**
+   * Reads the input. If the input is to be {@link #setPrefetch prefetched}
+   * and has not yet been downloaded, this downloads it and hands the 
+   * Analyzer to the parsing executor, which runs this method again.
+   */
   @Override
   public void run() {
+    synchronized (this) {
+      if (ended || cancellation != null) {
+        deleteSpool();
+        downloader.releaseReservation();
+        return;
+      }
+      runner = Thread.currentThread();
+    }
+    boolean handedOver = false;
     try {
-      parseSource();
+      if (spoolDirectory != null && remoteSource != null && spool == null) {
+        download();
+        handedOver = handOver();
+      }
+      if (!handedOver) {
+        parseSource();
+      }
     }
     catch (Exception e) {
-      errors.add(e);
+      if (!isCancelled()) {
+        fail(e);
+      }
+    }
+    finally {
+      if (!handedOver) {
+        end();
+      }
+    }
+  }
+  
+  /**
+   * Abandons the input without parsing it, e.g. because no thread is 
+   * available to run the Analyzer. The reason is reported as an error in the
+   * input and the Analyzer signals its end as if it had run.
+   * 
+   * @param reason The reason for abandoning the input.
+   */
+  public void abandon(Exception reason) {
+    try {
+      fail(reason);
+      if (reader != null) {
+        reader.close();
+      }
+      else if (localSource != null) {
+        localSource.delete();
+      }
+    }
+    catch (XMLStreamException e) {
+      fail(e);
     }
     finally {
-      latch.countDown();
+      end();
     }
   }
   
   /**
-   * Parses the XSAMS document in the given file {@link #source} into {@link Fragment}
+   * Stops the parsing from another thread, e.g. because the job's deadline
+   * has passed. If the Analyzer has not yet started, it is abandoned and 
+   * will not run. If it is running, its input is {@link 
+   * XsamsStreamReader#abort aborted} and its thread is interrupted, so that
+   * it fails at its next read; a read already blocked on a silent server
+   * ends at the Downloader's read timeout. If it has ended, nothing 
+   * happens. The reason is reported as the error in the
+   * input, in place of whatever error the stopping causes.
+   * <p>
+   * The Analyzer signals its end at once, without waiting for its thread
+   * to stop, so that the job need not wait for a source that does not 
+   * respond. The thread adds no fragments after this, though it may run 
+   * on until its read of the input fails.
+   * 
+   * @param reason The reason for stopping.
+   */
+  public void cancel(Exception reason) {
+    boolean started;
+    synchronized (this) {
+      if (ended || cancellation != null) {
+        return;
+      }
+      cancellation = reason;
+      started = (runner != null);
+      if (started) {
+        if (source != null) {
+          XsamsStreamReader.abort(source);
+        }
+        else if (reader != null) {
+          reader.abort();
+        }
+        runner.interrupt();
+      }
+    }
+    if (started) {
+      fail(reason);
+      end();
+    }
+    else {
+      abandon(reason);
+    }
+  }
+  
+  /**
+   * Reveals whether the Analyzer has been {@link #cancel cancelled}.
+   * 
+   * @return True if cancelled.
+   */
+  public synchronized boolean isCancelled() {
+    return cancellation != null;
+  }
+  
+  /**
+   * Reveals whether the Analyzer has reported an error. The fragments of
+   * an input that failed may be incomplete.
+   * 
+   * @return True if the input failed.
+   */
+  public boolean isFailed() {
+    return failure != null;
+  }
+  
+  /**
+   * Reveals the first error reported in the input.
+   * 
+   * @return The error, or null if there was none.
+   */
+  public Exception getFailure() {
+    return failure;
+  }
+  
+  /**
+   * Reveals the suffix given to ID values from the input.
+   * 
+   * @return The suffix.
+   */
+  public String getSuffix() {
+    return (ids == null)? suffix : ids.getSuffix();
+  }
+  
+  /**
+   * Sets the number of the input, which is recorded in each of its 
+   * fragments. This must be set before the Analyzer runs.
+   * 
+   * @param n The number, counting from zero.
+   */
+  public void setInput(int n) {
+    input = n;
+  }
+  
+  /**
+   * Reveals the URL of the input.
+   * 
+   * @return The URL, or null for an input in a file.
+   */
+  public URL getUrl() {
+    return remoteSource;
+  }
+  
+  /**
+   * Reveals whether the Analyzer has ended.
+   * 
+   * @return True if the parsing has finished, failed or been abandoned.
+   */
+  public synchronized boolean isEnded() {
+    return ended;
+  }
+  
+  /**
+   * Reports an error in the input.
+   * 
+   * @param e The error.
+   */
+  private synchronized void fail(Exception e) {
+    if (failure == null) {
+      failure = e;
+    }
+    errors.add(e);
+  }
+  
+  /**
+   * Finishes all the queues still open and counts down the latch. A 
+   * connection reserved for the input and not used is given back.
+   */
+  private void end() {
+    downloader.releaseReservation();
+    synchronized (this) {
+      if (runner == Thread.currentThread()) {
+        runner = null;
+        // Clear an interrupt from a cancellation, so that it does not leak
+        // into the next task of a pooled thread.
+        Thread.interrupted();
+      }
+      if (ended) {
+        return;
+      }
+      ended = true;
+    }
+    // Wait for a fragment being added by the Analyzer's thread; none is 
+    // added after this.
+    synchronized (adding) {
+      for (String tag : openQueues) {
+        queues.get(tag).finish();
+      }
+      openQueues.clear();
+    }
+    latch.countDown();
+  }
+  
+  /**
+   * Parses the XSAMS document in the given file, URL or spool file into {@link Fragment}
    * objects. The fragments are written to the queues set at construction.
    * 
    * @throws XMLStreamException If the data at the source URL cannot be read as XML.
@@ -103,20 +550,147 @@ public class Analyzer implements Runnable {
    */
   private void parseSource() throws XMLStreamException, IOException {
     try {
+      if (reader == null && localSource != null) {
+        reader = new XsamsStreamReader(localSource, true);
+      }
+      if (reader == null) {
+        InputStream in = (spool == null)? 
+            XsamsStreamReader.open(remoteSource, upstreamCache, downloader, limited) :
+            MappedFileInputStream.open(spool);
+        synchronized (this) {
+          source = in;
+          if (cancellation != null) {
+            XsamsStreamReader.abort(in);
+          }
+        }
+        try {
+          reader = new XsamsStreamReader(in);
+        }
+        catch (XMLStreamException e) {
+          in.close();
+          throw e;
+        }
+      }
       parseDocument();
     }
     finally {
-      reader.close();
+      writer.close();
+      try {
+        if (reader != null) {
+          reader.close();
+        }
+        else if (localSource != null) {
+          localSource.delete();
+        }
+      }
+      finally {
+        deleteSpool();
+      }
+    }
+  }
+  
+  /**
+   * Copies the URL to a spool file.
+   * 
+   * @throws IOException If the URL cannot be read or the file cannot be written.
+   */
+  private void download() throws IOException {
+    InputStream in = XsamsStreamReader.open(remoteSource, upstreamCache, downloader, limited);
+    synchronized (this) {
+      source = in;
+      if (cancellation != null) {
+        XsamsStreamReader.abort(in);
+      }
+    }
+    File f = null;
+    boolean copied = false;
+    try {
+      f = File.createTempFile("xsams-mux-spool-", ".xml", spoolDirectory);
+      OutputStream out = new FileOutputStream(f);
+      try {
+        byte[] b = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(b)) != -1) {
+          out.write(b, 0, n);
+        }
+      }
+      finally {
+        out.close();
+      }
+      copied = true;
+    }
+    finally {
+      in.close();
+      if (!copied && f != null) {
+        f.delete();
+      }
+    }
+    synchronized (this) {
+      source = null;
+      spool = f;
+    }
+  }
+  
+  /**
+   * Passes the parsing of the spooled input to the parsing executor.
+   * 
+   * @return True if the parsing was passed on, or if the Analyzer was
+   * cancelled in passing; false if it must be done in this thread.
+   */
+  private boolean handOver() {
+    synchronized (this) {
+      runner = null;
+      Thread.interrupted();
+    }
+    try {
+      parser.execute(this);
+      return true;
+    }
+    catch (RejectedExecutionException e) {
+      synchronized (this) {
+        if (ended || cancellation != null) {
+          deleteSpool();
+          return true;
+        }
+        runner = Thread.currentThread();
+        return false;
+      }
     }
   }
+  
+  private synchronized void deleteSpool() {
+    if (spool != null) {
+      spool.delete();
+      spool = null;
+    }
+  }
+  
+  /**
+   * Creates the writer for fragment text. One writer serves all the fragments
+   * from the input. The writer does not repair namespaces: the Analyzer 
+   * declares them itself, copying the declarations from the input and adding
+   * to each fragment the declarations it inherits from outside the fragment.
+   * 
+   * @throws XMLStreamException If the writer cannot be created.
+   */
+  private void createWriter() throws XMLStreamException {
+    buffer = new ByteArrayOutputStream();
+    writer = XMLOutputFactory.newFactory().createXMLStreamWriter(buffer, "UTF-8");
+    namespaces = new NamespaceSupport();
+  }
 
   private void parseDocument() throws XMLStreamException {
     while (reader.hasNext()) {
-      XMLEvent e = reader.nextEvent();
-      if (e.isStartElement()) {
-        String tag = e.asStartElement().getName().getLocalPart();
+      if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+        if (ids == null) {
+          ids = IdRewriter.forNamespace(reader.getNamespaceURI(), suffix);
+          if (index != null) {
+            ids.setAliasLimit(index.getCapacity());
+          }
+        }
+        String tag = reader.getLocalName();
         if (queues.containsKey(tag)) {
-           parseFragment(e.asStartElement(), tag);
+           parseFragment(tag);
         }
       }
     }
@@ -124,76 +698,275 @@ public class Analyzer implements Runnable {
 
   /**
    * Parses a fragment deemed interesting. The fragment starts with the
-   * given StartElement event and ends with the matching EndElement event.
-   * These two events, and all events between them are copied to the
-   * fragment list. Where ID values appear, they are given a suffix to make
-   * them unique in the output.
+   * start of the element at the reader's cursor and ends with the matching
+   * end of element. The element and all its content are written as the text
+   * of a fragment, which is added to the fragment list. Where ID values
+   * appear, they are given a suffix to make them unique in the output.
+   * <p>
+   * The content is passed from the reader to the writer item by item, 
+   * without creating event objects; only the ID values are changed.
    * 
-   * @param in The event source.
-   * @param start The event representing the element constituting the fragment.
    * @param tag The local name of the element.
-   * @throws XMLStreamException 
+   * @throws XMLStreamException If the input cannot be parsed.
    */
-  private void parseFragment(StartElement start, String tag) throws XMLStreamException {
+  private void parseFragment(String tag) throws XMLStreamException {
+    finishQueuesBefore(tag);
     FragmentList q = queues.get(tag);
-    Fragment f = new Fragment();
-    f.add(modifyStartElement(start));
-    boolean elementClosed = false;
-    while (reader.hasNext() && !elementClosed) {
-      XMLEvent e = reader.nextEvent();
-      if (e.isStartElement()) {
-        f.add(modifyStartElement(e.asStartElement()));
-      }
-      else if (e.isEndElement()) {
-        // If this element takes an ID value, add a suffix to the end of that
-        // value to make it unique in the output.
-        if (idElements.contains(e.asEndElement().getName().getLocalPart())) {
-          f.add(factory.createCharacters(suffix));
-        }
-        f.add(e);
-        elementClosed = e.asEndElement().getName().getLocalPart().equals(tag);
+    digesting = (index != null && index.covers(tag));
+    if (digesting) {
+      digest.reset();
+      definitions.clear();
+    }
+    namespaces.reset();
+    writeStartElement();
+    int depth = 1;
+    while (depth > 0 && reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          writeStartElement();
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          // If this element takes an ID value, add a suffix to the end of that
+          // value to make it unique in the output.
+          String idSuffix = ids.endElement(reader.getLocalName(), writer);
+          writer.writeEndElement();
+          namespaces.popContext();
+          if (digesting) {
+            if (idSuffix != null) {
+              digest(idSuffix);
+            }
+            digest.update((byte) 2);
+          }
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          char[] text = reader.getTextCharacters();
+          int start   = reader.getTextStart();
+          int length  = reader.getTextLength();
+          if (!ids.characters(text, start, length)) {
+            writer.writeCharacters(text, start, length);
+          }
+          if (digesting) {
+            digest(text, start, length);
+          }
+          break;
+        case XMLStreamConstants.CDATA:
+          writer.writeCData(reader.getText());
+          if (digesting) {
+            digest(reader.getText());
+          }
+          break;
+        case XMLStreamConstants.COMMENT:
+          writer.writeComment(reader.getText());
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+          break;
+        case XMLStreamConstants.ENTITY_REFERENCE:
+          writer.writeEntityRef(reader.getLocalName());
+          break;
+        default:
+          break;
       }
-      else {
-        f.add(e);
+    }
+    writer.flush();
+    synchronized (adding) {
+      if (ended) {
+        throw new XMLStreamException("The parsing was cancelled");
+      }
+      if (!digesting || isNew()) {
+        q.add(new Fragment(buffer.toByteArray(), input));
+      }
+    }
+    buffer.reset();
+    digesting = false;
+  }
+  
+  /**
+   * Registers the digested fragment in the index. If the index already
+   * holds a copy, the IDs defined in the fragment are aliased to that copy.
+   * If the rewriter can take no more aliases, the duplicate is kept.
+   * 
+   * @return True if the fragment is to be written, false if it is dropped.
+   */
+  private boolean isNew() {
+    String survivor = index.register(digest.digest(), ids.getSuffix());
+    return survivor == null || !ids.alias(definitions, survivor);
+  }
+  
+  /**
+   * Adds a string, and a separator, to the digest of the fragment.
+   * 
+   * @param s The string.
+   */
+  private void digest(String s) {
+    int n = s.length();
+    if (digestBuffer.length < 2 * n) {
+      digestBuffer = new byte[2 * n];
+    }
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      digestBuffer[2 * i]     = (byte) (c >> 8);
+      digestBuffer[2 * i + 1] = (byte) c;
+    }
+    digest.update(digestBuffer, 0, 2 * n);
+    digest.update((byte) 0);
+  }
+  
+  /**
+   * Adds characters to the digest of the fragment.
+   * 
+   * @param ch The characters.
+   * @param start The index of the first character in the array.
+   * @param length The number of characters.
+   */
+  private void digest(char[] ch, int start, int length) {
+    if (digestBuffer.length < 2 * length) {
+      digestBuffer = new byte[2 * length];
+    }
+    for (int i = 0; i < length; i++) {
+      char c = ch[start + i];
+      digestBuffer[2 * i]     = (byte) (c >> 8);
+      digestBuffer[2 * i + 1] = (byte) c;
+    }
+    digest.update(digestBuffer, 0, 2 * length);
+  }
+  
+  /**
+   * Tells the queues for elements that precede the given element in XSAMS
+   * that this Analyzer has no more fragments for them. This lets the
+   * Collator drain those queues while parsing continues.
+   * <p>
+   * Only a job in pipeline needs this, and only there must the input follow
+   * the XSAMS order of elements. In a batch job, whose lists are read after 
+   * all the inputs have been parsed, elements may come in any order and the
+   * lists are finished when the Analyzer ends.
+   * 
+   * @param tag The local name of the element about to be parsed.
+   * @throws XMLStreamException If, in pipeline, the element's queue was 
+   * already finished, i.e. the input does not follow the XSAMS order of 
+   * elements.
+   */
+  private void finishQueuesBefore(String tag) throws XMLStreamException {
+    synchronized (this) {
+      if (ended) {
+        throw new XMLStreamException("The parsing was cancelled");
+      }
+      if (!(queues.get(tag) instanceof FragmentQueue)) {
+        return;
+      }
+      if (!openQueues.contains(tag)) {
+        throw new XMLStreamException(tag + " element is out of order in the input", reader.getLocation());
+      }
+      Iterator<String> i = openQueues.iterator();
+      while (i.hasNext()) {
+        String t = i.next();
+        if (t.equals(tag)) {
+          break;
+        }
+        queues.get(t).finish();
+        i.remove();
       }
-      
     }
-    q.add(f);
   }
   
   /**
-   * Corrects the attribute values in a StartEelement event. Attributes that
-   * are ID values are given a suffix to make sure that they are unique in the
-   * output.
+   * Copies the start of the element at the reader's cursor to the writer.
+   * The namespace declarations on the element are copied, and any namespace
+   * used by the element or its attributes but not yet declared in the 
+   * fragment is declared; this happens at the root of the fragment, for 
+   * namespaces declared in the input outside the fragment. Attributes that 
+   * are ID values are given a suffix to make sure that they are unique in 
+   * the output.
    * 
-   * @param e The event.
-   * @return A new, equivalent event with corrected attributes.
+   * @throws XMLStreamException If the element cannot be written.
    */
-  private StartElement modifyStartElement(StartElement e) {
-    List<Attribute> attributes = new ArrayList<Attribute>();
-    Iterator<Attribute> i = e.getAttributes();
-    while (i.hasNext()) {
-      attributes.add(modifyAttribute(i.next()));
+  private void writeStartElement() throws XMLStreamException {
+    String prefix = nonNull(reader.getPrefix());
+    String ns     = nonNull(reader.getNamespaceURI());
+    writer.writeStartElement(prefix, reader.getLocalName(), ns);
+    namespaces.pushContext();
+    ids.startElement(reader.getLocalName());
+    if (digesting) {
+      digest.update((byte) 1);
+      digest(ns);
+      digest(reader.getLocalName());
+    }
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      declareNamespace(nonNull(reader.getNamespacePrefix(i)), nonNull(reader.getNamespaceURI(i)));
+    }
+    declareNamespace(prefix, ns);
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String attributePrefix = nonNull(reader.getAttributePrefix(i));
+      if (attributePrefix.length() > 0) {
+        declareNamespace(attributePrefix, nonNull(reader.getAttributeNamespace(i)));
+      }
+    }
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      writeAttribute(i);
     }
-    return factory.createStartElement(e.getName(), attributes.iterator(), e.getNamespaces());
   }
   
+  /**
+   * Declares a namespace binding in the output unless the binding is 
+   * already in scope there.
+   * 
+   * @param prefix The prefix ("" for the default namespace).
+   * @param ns The namespace URI ("" for no namespace).
+   * @throws XMLStreamException If the declaration cannot be written.
+   */
+  private void declareNamespace(String prefix, String ns) throws XMLStreamException {
+    if (!ns.equals(nonNull(namespaces.getURI(prefix)))) {
+      namespaces.declarePrefix(prefix, ns);
+      if (prefix.length() == 0) {
+        writer.writeDefaultNamespace(ns);
+      }
+      else {
+        writer.writeNamespace(prefix, ns);
+      }
+    }
+  }
   
   /**
-   * Corrects one attribute value. Attributes that are ID values are given a 
-   * suffix to make sure that they are unique in the output.
+   * Copies one attribute at the reader's cursor to the writer. Attributes
+   * that are ID values are given a suffix to make sure that they are unique 
+   * in the output.
    * 
-   * @param e The event.
-   * @return A new, equivalent event with corrected attributes.
+   * @param i The index of the attribute on the current element.
+   * @throws XMLStreamException If the attribute cannot be written.
    */
-  private Attribute modifyAttribute(Attribute a) {
-    QName name = a.getName();
-    if (idAttributes.contains(name.getLocalPart())) {
-      return factory.createAttribute(name, a.getValue()+suffix);
+  private void writeAttribute(int i) throws XMLStreamException {
+    String localName = reader.getAttributeLocalName(i);
+    String input = reader.getAttributeValue(i);
+    String value = ids.rewriteAttribute(localName, input);
+    if (digesting) {
+      digest(nonNull(reader.getAttributeNamespace(i)));
+      digest(localName);
+      if (ids.isDefinition(localName)) {
+        digest(input);
+        definitions.add(input);
+      }
+      else if (definitions.contains(input)) {
+        // A reference within the fragment to an ID that it defines.
+        digest(input);
+      }
+      else {
+        digest(value);
+      }
+    }
+    String prefix = nonNull(reader.getAttributePrefix(i));
+    if (prefix.length() == 0) {
+      writer.writeAttribute(localName, value);
     }
     else {
-      return a;
+      writer.writeAttribute(prefix, reader.getAttributeNamespace(i), localName, value);
     }
   }
+  
+  private static String nonNull(String s) {
+    return (s == null)? "" : s;
+  }
 
 }
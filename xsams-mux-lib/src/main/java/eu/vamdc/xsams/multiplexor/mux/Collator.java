@@ -1,26 +1,38 @@
 package eu.vamdc.xsams.multiplexor.mux;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.XMLEvent;
 
 /**
  * A collator for one set of XSAMS inputs, producing one XSAMS output.
@@ -80,6 +92,89 @@ public class Collator implements Runnable {
   
   public static final QName SCHEMALOCATION = new QName(XSI_NS_URI, "schemaLocation");
   
+  /**
+   * The number of fragments held in each queue when running in pipeline,
+   * unless set otherwise by {@link #setQueueCapacity}.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+  
+  /**
+   * The estimated bytes of parsed fragments held in memory by one job when
+   * not running in pipeline, unless set otherwise by {@link #setMemoryBudget}.
+   * Fragments beyond this budget are spilled to temporary files.
+   */
+  public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+  
+  /**
+   * The number of fragment digests held to detect duplicates, unless set
+   * otherwise by {@link #setIndexCapacity}.
+   */
+  public static final int DEFAULT_INDEX_CAPACITY = 65536;
+  
+  /**
+   * The size of the buffer between the collator and its output stream.
+   */
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  
+  /**
+   * Stops the inputs of jobs that pass their deadlines. One daemon thread
+   * serves all jobs.
+   */
+  private static final Timer DEADLINES = new Timer("xsams-mux-deadlines", true);
+  
+  /**
+   * The names of the elements collated, in the order in which they appear
+   * in XSAMS.
+   */
+  private static final String[] FRAGMENT_TAGS = {
+    "Source",
+    "Method",
+    "Function",
+    "Environment",
+    "Atom",
+    "Molecule",
+    "Particle",
+    "Solid",
+    "RadiativeTransition",
+    "AbsorbtionCrossSection",
+    "CollisionInducedAbsorbtionCrossSection",
+    "NonRadiativeTransition",
+    "CollisionalTransition"
+  };
+  
+  /**
+   * The names of the elements that may be deduplicated between inputs.
+   */
+  private static final String[] DEDUPLICATED_TAGS = {
+    "Source",
+    "Method",
+    "Atom",
+    "Molecule",
+    "Particle",
+    "Solid"
+  };
+  
+  /**
+   * The sections of the output that hold fragments, in the order in which 
+   * they appear in XSAMS, with the names of the elements in each section.
+   */
+  private static final Map<QName,String[]> SECTIONS = new LinkedHashMap<QName,String[]>();
+  static {
+    SECTIONS.put(SOURCES,      new String[] {"Source"});
+    SECTIONS.put(METHODS,      new String[] {"Method"});
+    SECTIONS.put(FUNCTIONS,    new String[] {"Function"});
+    SECTIONS.put(ENVIRONMENTS, new String[] {"Environment"});
+    SECTIONS.put(ATOMS,        new String[] {"Atom"});
+    SECTIONS.put(MOLECULES,    new String[] {"Molecule"});
+    SECTIONS.put(PARTICLES,    new String[] {"Particle"});
+    SECTIONS.put(SOLIDS,       new String[] {"Solid"});
+    SECTIONS.put(RADIATIVE,    new String[] {"RadiativeTransition", 
+                                             "AbsorbtionCrossSection", 
+                                             "CollisionInducedAbsorbtionCrossSection"});
+    SECTIONS.put(NONRADIATIVE, new String[] {"NonRadiativeTransition"});
+    SECTIONS.put(COLLISIONS,   new String[] {"CollisionalTransition"});
+  }
+  
   private Map<String,FragmentList> queues;
   
   private Set<URL> inputUrls;
@@ -88,14 +183,91 @@ public class Collator implements Runnable {
   
   private OutputStream output;
   
+  /**
+   * The destination for a gzip-compressed copy of the output; null if
+   * no such copy is wanted.
+   */
+  private OutputStream compressedOutput;
+  
+  /**
+   * The cache through which input URLs are read; null if they are read
+   * directly.
+   */
+  private UpstreamCache upstreamCache;
+  
+  /**
+   * The Downloader that fetches the input URLs.
+   */
+  private Downloader downloader;
+  
+  /**
+   * The time allowed for the inputs to be read, in milliseconds from the
+   * start of the collation; zero for no limit.
+   */
+  private long deadline;
+  
   private CountDownLatch contributorCount;
   
   private List<Exception> errors;
   
+  /**
+   * The errors reported by the analyzers.
+   */
+  private List<Exception> inputErrors;
+  
+  /**
+   * True if inputs that fail are left out of the output rather than 
+   * failing the job.
+   */
+  private boolean partial;
+  
+  /**
+   * The index of fragments shared by the analyzers; null unless the 
+   * output is deduplicated.
+   */
+  private FragmentIndex index;
+  
   private AtomicBoolean finished;
   
   private List<Analyzer> analyzers;
   
+  private boolean pipelined;
+  
+  private int queueCapacity;
+  
+  private long memoryBudget;
+  
+  /**
+   * The bytes of the memory budget not yet spent, shared by the fragment
+   * lists and the segments of a job not in pipeline.
+   */
+  private AtomicLong budget;
+  
+  private Executor executor;
+  
+  /**
+   * The directory in which inputs are spooled before parsing; null if 
+   * they are parsed as they are downloaded.
+   */
+  private File spoolDirectory;
+  
+  /**
+   * The executor that parses spooled inputs.
+   */
+  private Executor parser;
+  
+  private boolean parallelTranscription;
+  
+  private boolean deduplicated;
+  
+  private int indexCapacity;
+  
+  /**
+   * The sections of output being written in parallel; null if the sections
+   * are written sequentially.
+   */
+  private Map<QName,FutureTask<SegmentBuffer>> segments;
+  
   
   /**
    * Constructs a Collator for any mix of input files and URLs.
@@ -115,12 +287,12 @@ public class Collator implements Runnable {
     for (File f : files) {
       i++;
       String suffix = "_" + i.toString();
-      analyzers.add(new Analyzer(f, queues, suffix, contributorCount, errors));
+      analyzers.add(new Analyzer(f, queues, suffix, contributorCount, inputErrors));
     }
     for (URL u : urls) {
       i++;
       String suffix = "_" + i.toString();
-      analyzers.add(new Analyzer(u, queues, suffix, contributorCount, errors));
+      analyzers.add(new Analyzer(u, queues, suffix, contributorCount, inputErrors));
     }
   }
   
@@ -132,7 +304,7 @@ public class Collator implements Runnable {
     for (File f : files) {
       i++;
       String suffix = "_" + i.toString();
-      analyzers.add(new Analyzer(f, queues, suffix, contributorCount, errors));
+      analyzers.add(new Analyzer(f, queues, suffix, contributorCount, inputErrors));
     }
   }
   
@@ -144,7 +316,7 @@ public class Collator implements Runnable {
     for (URL u : urls) {
       i++;
       String suffix = "_" + i.toString();
-      analyzers.add(new Analyzer(u, queues, suffix, contributorCount, errors));
+      analyzers.add(new Analyzer(u, queues, suffix, contributorCount, inputErrors));
     }
   }
   
@@ -157,31 +329,40 @@ public class Collator implements Runnable {
   public Collator(int nInputs, OutputStream o) {
     contributorCount = new CountDownLatch(nInputs);
     errors = new CopyOnWriteArrayList();
+    inputErrors = new CopyOnWriteArrayList<Exception>();
     finished = new AtomicBoolean(false);
     
     analyzers = new ArrayList<Analyzer>(nInputs);
     
+    pipelined = false;
+    queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    memoryBudget = DEFAULT_MEMORY_BUDGET;
+    executor = new ThreadPerTaskExecutor();
+    spoolDirectory = null;
+    parser = null;
+    parallelTranscription = false;
+    segments = null;
+    deduplicated = false;
+    indexCapacity = DEFAULT_INDEX_CAPACITY;
+    partial = false;
+    index = null;
+    
     
     // Set up the queues for the XSAMS fragments.
     // Analyzers will fill these queues and the Multiplexor will drain them.
+    // The queues are listed in the order in which their elements appear in
+    // XSAMS; the Analyzers rely on this order when running in pipeline.
     
-    queues = new HashMap<String,FragmentList>();
-    queues.put("Atom",                                   new MemoryFragmentList());
-    queues.put("Molecule",                               new MemoryFragmentList());
-    queues.put("Particle",                               new MemoryFragmentList());
-    queues.put("Solid",                                  new MemoryFragmentList());
-    queues.put("CollisionalTransition",                  new MemoryFragmentList());
-    queues.put("AbsorbtionCrossSection",                 new MemoryFragmentList());
-    queues.put("CollisionInducedAbsorbtionCrossSection", new MemoryFragmentList());
-    queues.put("RadiativeTransition",                    new MemoryFragmentList());
-    queues.put("NonRadiativeTransition",                 new MemoryFragmentList());
-    queues.put("Environment",                            new MemoryFragmentList());
-    queues.put("Source",                                 new MemoryFragmentList());
-    queues.put("Method",                                 new MemoryFragmentList());
-    queues.put("Function",                               new MemoryFragmentList());
-    queues.put("Comments",                               new MemoryFragmentList());
+    queues = new LinkedHashMap<String,FragmentList>();
+    for (String tag : FRAGMENT_TAGS) {
+      queues.put(tag, new MemoryFragmentList());
+    }
     
     output = o;
+    compressedOutput = null;
+    upstreamCache = null;
+    downloader = new Downloader();
+    deadline = 0L;
   }
   
   /**
@@ -215,10 +396,340 @@ public class Collator implements Runnable {
     return errors;
   }
   
+  /**
+   * Reveals the errors reported by the inputs so far. If the collation 
+   * fails for errors in the inputs, these are also given by 
+   * {@link #getErrors}. In {@link #setPartial partial mode} a collation may
+   * succeed despite errors in some inputs; the errors are then given only
+   * here.
+   * 
+   * @return The errors (never null; empty if no input has failed).
+   */
+  public List<Exception> getInputErrors() {
+    return inputErrors;
+  }
+  
+  /**
+   * Reveals the number of inputs that have failed so far. In partial mode,
+   * these are the inputs left out of the output.
+   * 
+   * @return The number of failed inputs.
+   */
+  public int getFailedInputCount() {
+    int n = 0;
+    for (Analyzer a : analyzers) {
+      if (a.isFailed()) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
   public int getContributorCount() {
     return (int) contributorCount.getCount();
   }
   
+  /**
+   * Reveals the number of inputs, i.e. the number of analyzer tasks that
+   * the collation will run.
+   * 
+   * @return The number of inputs.
+   */
+  public int getInputCount() {
+    return analyzers.size();
+  }
+  
+  /**
+   * Reveals whether the output is written while the inputs are being parsed.
+   * 
+   * @return True if the collation runs in pipeline.
+   */
+  public boolean isPipelined() {
+    return pipelined;
+  }
+  
+  /**
+   * Chooses whether to write the output while the inputs are being parsed.
+   * By default, the collator waits for all inputs to be parsed before writing
+   * anything, and holds all the parsed fragments in memory. In pipeline, the
+   * fragments pass through bounded queues (see {@link #setQueueCapacity})
+   * and each section of the output is written as soon as all inputs have 
+   * passed the corresponding section of their documents. This requires the
+   * inputs to follow the XSAMS order of elements; an input that does not is 
+   * rejected. If an input fails in pipeline, part of the output may have been
+   * written before the failure is reported.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param p True to run in pipeline.
+   */
+  public void setPipelined(boolean p) {
+    pipelined = p;
+  }
+  
+  /**
+   * Sets the number of fragments held in each queue when running in pipeline.
+   * 
+   * @param n The capacity (must be positive).
+   */
+  public void setQueueCapacity(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Queue capacity must be positive");
+    }
+    queueCapacity = n;
+  }
+  
+  /**
+   * Sets the memory budget for parsed fragments when not running in pipeline.
+   * Once the budget is spent, further fragments are written to temporary 
+   * files, which are deleted when the collation ends. A budget of zero sends
+   * all fragments to files.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param bytes The budget, in bytes of estimated heap use (must not be negative).
+   */
+  public void setMemoryBudget(long bytes) {
+    if (bytes < 0L) {
+      throw new IllegalArgumentException("Memory budget must not be negative");
+    }
+    memoryBudget = bytes;
+  }
+  
+  /**
+   * Sets the executor that runs the analyzers, one task per input. By default,
+   * each analyzer runs in a new thread. An application running many jobs 
+   * should share a bounded pool between them. If the executor rejects an
+   * analyzer, that input is abandoned and reported as an error.
+   * <p>
+   * Except in pipeline, an analyzer reading a URL is given to the executor
+   * only when a connection to its host has been reserved with the {@link
+   * #setDownloader Downloader}, so that a thread of the executor is not held
+   * waiting for a busy host. If no connection is free within the 
+   * Downloader's queue timeout, the input fails without taking a thread.
+   * <p>
+   * In pipeline, all the analyzers of a job must be able to run at the same
+   * time, so the executor must not hold any of them back waiting for a 
+   * thread.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param e The executor (not null).
+   */
+  public void setExecutor(Executor e) {
+    if (e == null) {
+      throw new IllegalArgumentException("Executor must not be null");
+    }
+    executor = e;
+  }
+  
+  /**
+   * Chooses to download each input URL to a spool file before parsing it.
+   * The downloads run in the {@link #setExecutor executor}, as many at once
+   * as it allows, each at the speed of its network; each spooled input is
+   * then parsed by the given parser, which should be sized for the CPUs.
+   * Thus a slow download holds up neither the CPU nor the parsing of the
+   * inputs already downloaded. Sections written in {@link 
+   * #setParallelTranscription parallel} also run in the parser. The spool 
+   * files are deleted as each input is parsed. By default, each input is 
+   * parsed as it is downloaded.
+   * <p>
+   * This has no effect in pipeline, where the inputs are parsed as they
+   * arrive so that output can start at once.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param directory The directory for the spool files; created if missing.
+   * @param p The executor for the parsing (not null).
+   */
+  public void setPrefetch(File directory, Executor p) {
+    if (directory == null || p == null) {
+      throw new IllegalArgumentException("Spool directory and parser must not be null");
+    }
+    spoolDirectory = directory;
+    parser = p;
+  }
+  
+  /**
+   * Chooses whether to write the sections of the output in parallel. This
+   * applies only when not running in pipeline. Each section is written by a 
+   * separate task, run by the {@link #setExecutor executor}, into a segment
+   * that is held in memory within the job's {@link #setMemoryBudget memory
+   * budget}, or in a temporary file beyond it. The segments are then joined 
+   * in XSAMS order, each as soon as it and its predecessors are ready.
+   * The segments and the parsed fragments draw on the same budget, so the
+   * fragments held in memory leave less room for the segments; together 
+   * they do not exceed it.
+   * <p>
+   * The fragments are already serialized when parsed, so writing a section
+   * held in memory is a plain copy and gains little from this. The gain is
+   * when the fragments have been spilled to files, which are then read in
+   * parallel.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param p True to write the sections in parallel.
+   */
+  public void setParallelTranscription(boolean p) {
+    parallelTranscription = p;
+  }
+  
+  /**
+   * Chooses whether to drop sources, methods and species that duplicate
+   * those already written from other inputs. Only one copy of each such item
+   * is written, and references to the dropped copies are changed to refer
+   * to the surviving copy. Two items are duplicates if their text in the 
+   * inputs is identical, apart from the suffixes on their IDs; items that 
+   * refer to other items are duplicates only if those items were also 
+   * deduplicated. Duplicates are detected while parsing, so this works in 
+   * pipeline. See {@link FragmentIndex}.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param d True to drop duplicates.
+   */
+  public void setDeduplicated(boolean d) {
+    deduplicated = d;
+  }
+  
+  /**
+   * Sets the number of fragment digests held to detect duplicates. Beyond
+   * this, the digests least recently matched are forgotten and some 
+   * duplicates may be written.
+   * 
+   * @param n The capacity (must be positive).
+   */
+  public void setIndexCapacity(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Index capacity must be positive");
+    }
+    indexCapacity = n;
+  }
+  
+  /**
+   * Chooses whether to write the output from the inputs that succeed when
+   * others fail. By default, an error in any input fails the job. In 
+   * partial mode, the fragments of each failed input, including one that 
+   * missed the {@link #setDeadline deadline}, are left out of the output,
+   * and the job fails only if every input fails. The failures are listed
+   * in comments at the end of the output and are given by 
+   * {@link #getInputErrors}.
+   * <p>
+   * Without pipeline, the output is written after all the inputs have 
+   * ended, so all the fragments of a failed input are dropped. In pipeline,
+   * sections already written when an input fails keep that input's 
+   * fragments; only later sections drop them.
+   * <p>
+   * When {@link #setDeduplicated deduplicating}, other inputs may refer to
+   * a failed input's copy of a source, method or species in place of their
+   * own duplicate. The fragments of those kinds from such an input are 
+   * therefore kept, so that the references hold.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param p True for partial mode.
+   */
+  public void setPartial(boolean p) {
+    partial = p;
+  }
+  
+  /**
+   * Reveals whether inputs that fail are left out rather than failing the job.
+   * 
+   * @return True in partial mode.
+   */
+  public boolean isPartial() {
+    return partial;
+  }
+  
+  /**
+   * Chooses to write a gzip-compressed copy of the output as well as the
+   * plain output. The copy is compressed as it is written, so it is complete
+   * when the plain output is complete, and no second pass over the output 
+   * is needed. Both streams are closed when the collation ends normally.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param o The destination for the compressed copy; null for no copy.
+   */
+  public void setCompressedOutput(OutputStream o) {
+    compressedOutput = o;
+  }
+  
+  /**
+   * Closes the output streams, including the one for the compressed copy,
+   * without writing to them. This is for a job that is abandoned, either
+   * before it runs or after it fails, so that its files are not held open.
+   * Failures to close are ignored.
+   */
+  public void closeOutputs() {
+    closeQuietly(output);
+    closeQuietly(compressedOutput);
+  }
+  
+  /**
+   * Chooses to read the input URLs through a cache of upstream documents,
+   * which may be shared with other jobs. See {@link UpstreamCache}.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param c The cache; null to read the URLs directly.
+   */
+  public void setUpstreamCache(UpstreamCache c) {
+    upstreamCache = c;
+  }
+  
+  /**
+   * Sets the Downloader that fetches the input URLs. By default, the 
+   * collator has a Downloader of its own; an application running many jobs
+   * should share one between them, so that its limit on connections per
+   * host applies to all the jobs. The collator reads through its own 
+   * {@link Downloader#forJob view} of the Downloader, so that it takes 
+   * turns for connections with the other jobs. In pipeline, the inputs of
+   * the job are not held to that limit, as they must all be read at once.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param d The Downloader (not null).
+   */
+  public void setDownloader(Downloader d) {
+    if (d == null) {
+      throw new IllegalArgumentException("Downloader must not be null");
+    }
+    downloader = d;
+  }
+  
+  /**
+   * Sets the time allowed for reading the inputs, counted from the start
+   * of the collation. Inputs not read by then are stopped, and each is 
+   * reported as an error by an {@link InputTimeoutException}, so the job
+   * fails, unless {@link #setPartial partial} output is allowed. By default
+   * there is no deadline, and a slow input is limited only by the read 
+   * timeout of the {@link #setDownloader Downloader}.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @param milliseconds The deadline; zero for none.
+   */
+  public void setDeadline(long milliseconds) {
+    if (milliseconds < 0L) {
+      throw new IllegalArgumentException("Deadline must not be negative");
+    }
+    deadline = milliseconds;
+  }
+  
+  /**
+   * Chooses to run each analyzer in its own virtual thread. This suits jobs
+   * with many slow, remote inputs. See {@link VirtualThreadExecutor}.
+   * <p>
+   * This must be set before calling {@link #collate} or {@link #run}.
+   * 
+   * @throws UnsupportedOperationException If the platform has no virtual threads.
+   */
+  public void useVirtualThreads() {
+    setExecutor(new VirtualThreadExecutor());
+  }
+  
   public void run() {
     try {
       collate();
@@ -234,62 +745,252 @@ public class Collator implements Runnable {
   
   public void collate() throws XMLStreamException, Exception  {
     
-    // Parse the inputUrls in parallel.
-    for (Analyzer a : analyzers) {
-      new Thread(a).start();
+    if (pipelined) {
+      for (String tag : FRAGMENT_TAGS) {
+        queues.put(tag, new FragmentQueue(analyzers.size(), queueCapacity));
+      }
     }
-    
-    // Wait for all the analyzers to finish.
-    contributorCount.await();
-    if (errors.size() > 0) {
-      throw new Exception("Errors in inputs");
+    else {
+      budget = new AtomicLong(memoryBudget);
+      for (String tag : FRAGMENT_TAGS) {
+        queues.put(tag, new SpillingFragmentList(budget));
+      }
     }
     
+    Downloader jobDownloader = downloader.forJob();
+    boolean prefetching = (spoolDirectory != null && !pipelined);
+    if (prefetching && !spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+      throw new IOException("Failed to create the spool directory " + spoolDirectory);
+    }
+    for (Analyzer a : analyzers) {
+      a.setUpstreamCache(upstreamCache);
+      a.setDownloader(jobDownloader.forInput(), !pipelined);
+      if (prefetching) {
+        a.setPrefetch(spoolDirectory, parser);
+      }
+    }
     
-    // Create the StaX apparatus to write the output.
-    XMLEventFactory  eFactory = XMLEventFactory.newFactory();
-    XMLOutputFactory oFactory = XMLOutputFactory.newFactory();
-    oFactory.setProperty("javax.xml.stream.isRepairingNamespaces", true);
-    XMLEventWriter out = oFactory.createXMLEventWriter(output, "UTF-8");
-    out.setDefaultNamespace(XSAMS_NS_URI);
-    
-    
-    // Create the output, adding the detail from the fragment queues.
-    startDocument(eFactory, out);
-    
-    
+    if (deduplicated) {
+      index = new FragmentIndex(new HashSet<String>(Arrays.asList(DEDUPLICATED_TAGS)), indexCapacity);
+      for (Analyzer a : analyzers) {
+        a.setFragmentIndex(index);
+      }
+    }
+    for (int i = 0; i < analyzers.size(); i++) {
+      analyzers.get(i).setInput(i);
+    }
     
+    // Stop the inputs still being read at the deadline.
+    TimerTask watchdog = null;
+    if (deadline > 0L) {
+      watchdog = new TimerTask() {
+        @Override
+        public void run() {
+          cancelInputs();
+        }
+      };
+      DEADLINES.schedule(watchdog, deadline);
+    }
     
-    // @TODO: handle the comments. They have to be munged into one element.
+    // Parse the inputUrls in parallel. Outside pipeline, each URL waits
+    // for a connection to its host before it takes a thread.
+    for (final Analyzer a : analyzers) {
+      final URL u = a.getUrl();
+      if (pipelined || u == null) {
+        execute(a);
+      }
+      else {
+        a.getDownloader().reserve(u, new Runnable() {
+          @Override
+          public void run() {
+            execute(a);
+          }
+        }, new Runnable() {
+          @Override
+          public void run() {
+            a.cancel(new SocketTimeoutException("Timed out waiting for a connection to " + u.getHost()));
+          }
+        });
+      }
+    }
     
-    transcribeQueues(SOURCES,      eFactory, out, queues.get("Source"));   
-    transcribeQueues(FUNCTIONS,    eFactory, out, queues.get("Function"));
-    transcribeQueues(METHODS,      eFactory, out, queues.get("Method"));
-    transcribeQueues(ENVIRONMENTS, eFactory, out, queues.get("Environment"));
-    startElement(eFactory, SPECIES, out);
-    transcribeQueues(ATOMS,     eFactory, out, queues.get("Atom"));
-    transcribeQueues(MOLECULES, eFactory, out, queues.get("Molecule"));
-    transcribeQueues(PARTICLES, eFactory, out, queues.get("Particle"));
-    transcribeQueues(SOLIDS, eFactory, out, queues.get("Solid"));
-    endElement(eFactory, SPECIES, out);
-    startElement(eFactory, PROCESSES, out);
+    try {
+      
+      // Unless running in pipeline, wait for all the analyzers to finish.
+      if (!pipelined) {
+        contributorCount.await();
+        checkInputs();
+        if (parallelTranscription) {
+          startSegments();
+        }
+      }
 
-    transcribeQueues(RADIATIVE,    eFactory, out, queues.get("RadiativeTransition"), 
-                                                 queues.get("AbsorbtionCrossSection"),
-                                                 queues.get("CollisionInducedAbsorbtionCrossSection"));
-    
-    transcribeQueues(NONRADIATIVE, eFactory, out, queues.get("NonRadiativeTransition"));
-    transcribeQueues(COLLISIONS,   eFactory, out, queues.get("CollisionalTransition"));
-    endElement(eFactory, PROCESSES, out);
-    
-    endDocument(eFactory, out);
-    
-    out.close();
-    output.close();
+      // Create the StaX apparatus to write the output. The fragments bypass
+      // the StaX writer and go straight to the buffered stream under it.
+      XMLEventFactory  eFactory = XMLEventFactory.newFactory();
+      XMLOutputFactory oFactory = XMLOutputFactory.newFactory();
+      oFactory.setProperty("javax.xml.stream.isRepairingNamespaces", true);
+      OutputStream sink = (compressedOutput == null)?
+          new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE) :
+          new BufferedOutputStream(new CopyingOutputStream(output, 
+                                                           new GZIPOutputStream(compressedOutput, OUTPUT_BUFFER_SIZE)),
+                                   OUTPUT_BUFFER_SIZE);
+      XMLEventWriter out = oFactory.createXMLEventWriter(sink, "UTF-8");
+      out.setDefaultNamespace(XSAMS_NS_URI);
+
+      // Create the output, adding the detail from the fragment queues.
+      // The sections are written in XSAMS order; in pipeline, each one is
+      // written as soon as the analyzers have all passed it.
+      startDocument(eFactory, out);
+
+      // @TODO: handle the comments. They have to be munged into one element.
+
+      transcribeSection(SOURCES,      eFactory, out, sink);
+      transcribeSection(METHODS,      eFactory, out, sink);
+      transcribeSection(FUNCTIONS,    eFactory, out, sink);
+      transcribeSection(ENVIRONMENTS, eFactory, out, sink);
+      startElement(eFactory, SPECIES, out);
+      transcribeSection(ATOMS,        eFactory, out, sink);
+      transcribeSection(MOLECULES,    eFactory, out, sink);
+      transcribeSection(PARTICLES,    eFactory, out, sink);
+      transcribeSection(SOLIDS,       eFactory, out, sink);
+      endElement(eFactory, SPECIES, out);
+      startElement(eFactory, PROCESSES, out);
+      transcribeSection(RADIATIVE,    eFactory, out, sink);
+      transcribeSection(NONRADIATIVE, eFactory, out, sink);
+      transcribeSection(COLLISIONS,   eFactory, out, sink);
+      endElement(eFactory, PROCESSES, out);
+      
+      if (partial) {
+        contributorCount.await();
+        checkInputs();
+        writeExclusions(eFactory, out);
+      }
+
+      endDocument(eFactory, out);
+
+      out.close();
+      sink.close();
+      
+      contributorCount.await();
+      checkInputs();
+    }
+    finally {
+      if (watchdog != null) {
+        watchdog.cancel();
+      }
+      discardSegments();
+      discardQueues();
+    }
     
     finished.set(true);
   }
   
+  /**
+   * Gives an analyzer to the executor, abandoning it if it is rejected.
+   * 
+   * @param a The analyzer.
+   */
+  private void execute(Analyzer a) {
+    try {
+      executor.execute(a);
+    }
+    catch (RejectedExecutionException e) {
+      a.abandon(e);
+    }
+  }
+  
+  private static void closeQuietly(OutputStream o) {
+    if (o != null) {
+      try {
+        o.close();
+      }
+      catch (IOException e) {
+        // The stream is being abandoned.
+      }
+    }
+  }
+  
+  /**
+   * Stops the analyzers that have not yet ended, reporting for each an
+   * {@link InputTimeoutException}.
+   */
+  private void cancelInputs() {
+    for (Analyzer a : analyzers) {
+      if (!a.isEnded()) {
+        a.cancel(new InputTimeoutException(a.getUrl(), deadline));
+      }
+    }
+  }
+  
+  /**
+   * Checks for errors reported by the analyzers. If the job is to fail,
+   * the errors are copied to the job's errors.
+   * 
+   * @throws Exception If any analyzer has reported an error, or, in partial
+   * mode, if every analyzer has.
+   */
+  private void checkInputs() throws Exception {
+    if (inputErrors.isEmpty()) {
+      return;
+    }
+    if (partial && getFailedInputCount() < analyzers.size()) {
+      return;
+    }
+    errors.addAll(inputErrors);
+    throw new Exception("Errors in inputs");
+  }
+  
+  /**
+   * Determines whether a fragment is to be left out of the output as its
+   * input failed. See {@link #setPartial}.
+   * 
+   * @param f The fragment.
+   * @param section The section of the output holding the fragment.
+   * @return True if the fragment is to be left out.
+   */
+  private boolean isExcluded(Fragment f, QName section) {
+    if (!partial || f.getInput() < 0) {
+      return false;
+    }
+    Analyzer a = analyzers.get(f.getInput());
+    if (!a.isFailed()) {
+      return false;
+    }
+    return index == null || 
+           !index.covers(SECTIONS.get(section)[0]) || 
+           !index.isDonor(a.getSuffix());
+  }
+  
+  /**
+   * Writes a comment for each input left out of the output.
+   * 
+   * @param factory The event factory.
+   * @param out The StaX writer for the output.
+   * @throws XMLStreamException If the output cannot be written.
+   */
+  private void writeExclusions(XMLEventFactory factory, XMLEventWriter out) throws XMLStreamException {
+    for (Analyzer a : analyzers) {
+      Exception e = a.getFailure();
+      if (e != null) {
+        String input = (a.getUrl() == null)? "file (IDs suffixed " + a.getSuffix() + ")" : a.getUrl().toString();
+        String text = " Input " + input + " was left out of this output: " + e + " ";
+        out.add(factory.createComment(text.replace("--", "- -")));
+        out.add(factory.createCharacters("\n"));
+      }
+    }
+  }
+  
+  /**
+   * Discards the fragment queues, deleting any files they use and releasing
+   * analyzers that are waiting to write to them.
+   */
+  private void discardQueues() {
+    for (FragmentList l : queues.values()) {
+      l.discard();
+    }
+  }
+  
   private void startDocument(XMLEventFactory factory, XMLEventWriter out) throws XMLStreamException {
     assert factory != null;
     assert out != null;
@@ -316,34 +1017,257 @@ public class Collator implements Runnable {
   }
   
   /**
-   * Copies the events from the given queues to the output, bracketing them
-   * in events for start and end of a given element.
+   * Copies a section of fragments to the output. The section is taken from
+   * its segment if the sections are being written in parallel, and otherwise
+   * directly from its queues. In pipeline, the section is flushed through to
+   * the output stream so that a client reading the output as it is written
+   * receives each section as soon as it is complete.
+   * 
+   * @param tag The name of the element bracketing the section.
+   * @param factory The event factory.
+   * @param out The StaX writer for the output.
+   * @param sink The stream under the StaX writer.
+   * @throws XMLStreamException If the output cannot be written.
+   * @throws IOException If the output cannot be written.
+   * @throws Exception If any analyzer has reported an error.
+   */
+  private void transcribeSection(QName tag, 
+                                 XMLEventFactory factory, 
+                                 XMLEventWriter out, 
+                                 OutputStream sink) 
+      throws XMLStreamException, IOException, Exception  {
+    if (segments == null) {
+      transcribeQueues(tag, factory, out, sink, getQueues(tag));
+    }
+    else {
+      SegmentBuffer b;
+      try {
+        b = segments.get(tag).get();
+      }
+      catch (ExecutionException e) {
+        throw (e.getCause() instanceof Exception)? (Exception) e.getCause() : e;
+      }
+      out.flush();
+      b.writeTo(sink);
+      b.discard();
+    }
+    if (pipelined) {
+      out.flush();
+      sink.flush();
+    }
+  }
+  
+  /**
+   * Copies the fragments from the given queues to the output, bracketing them
+   * in events for start and end of a given element. The bracketing element
+   * is written when the first fragment arrives; if the queues are empty, 
+   * nothing is written. In pipeline, this blocks until all the analyzers
+   * have finished with the queues. It also fails if any analyzer has failed,
+   * unless in partial mode; the fragments of failed inputs are then left out.
+   * <p>
+   * The text of each fragment is copied to the output stream in one write,
+   * without parsing. The StaX writer is flushed first so that its output
+   * precedes the fragments.
    * 
    * @param tag The name of the bracketing element.
    * @param factory The event factory.
-   * @param out The output.
+   * @param out The StaX writer for the output.
+   * @param sink The stream under the StaX writer.
    * @param l The fragment queues.
-   * @throws XMLStreamException
-   * @throws Exception 
+   * @throws XMLStreamException If the output cannot be written.
+   * @throws IOException If the output cannot be written.
+   * @throws Exception If any analyzer has reported an error.
    */
-  private void transcribeQueues(QName tag, XMLEventFactory factory, XMLEventWriter out, FragmentList... l) 
-      throws XMLStreamException  {
-    int totalEvents = 0;
+  private void transcribeQueues(QName tag, 
+                                XMLEventFactory factory, 
+                                XMLEventWriter out, 
+                                OutputStream sink, 
+                                FragmentList... l) 
+      throws XMLStreamException, IOException, Exception  {
+    boolean started = false;
     for (FragmentList q : l) {
-      totalEvents += q.size();
+      boolean written = false;
+      for (Fragment f : q) {
+        if (isExcluded(f, tag)) {
+          continue;
+        }
+        if (!started) {
+          startElement(factory, tag, out);
+          started = true;
+        }
+        if (!written) {
+          out.flush();
+          written = true;
+        }
+        f.writeTo(sink);
+      }
+      if (written) {
+        out.add(factory.createCharacters("\n"));
+      }
     }
-    if (totalEvents > 0) {
-      startElement(factory, tag, out);
+    if (started) {
+      endElement(factory, tag, out);
+    }
+    checkInputs();
+  }
+  
+  /**
+   * Starts a task for each section of the output, writing that section into
+   * a segment. The segments share what the fragment lists leave of the
+   * job's memory budget.
+   */
+  private void startSegments() {
+    segments = new HashMap<QName,FutureTask<SegmentBuffer>>();
+    for (final QName tag : SECTIONS.keySet()) {
+      final FragmentList[] l = getQueues(tag);
+      FutureTask<SegmentBuffer> task = new FutureTask<SegmentBuffer>(new Callable<SegmentBuffer>() {
+        @Override
+        public SegmentBuffer call() throws IOException {
+          return writeSegment(tag, l);
+        }
+      });
+      segments.put(tag, task);
+      try {
+        ((parser == null)? executor : parser).execute(task);
+      }
+      catch (RejectedExecutionException e) {
+        task.run();
+      }
+    }
+  }
+  
+  /**
+   * Writes the fragments of one section into a segment, with the same
+   * bracketing and layout as {@link #transcribeQueues}. The bracketing 
+   * elements are unprefixed, relying on the default namespace declared
+   * at the root of the output.
+   * 
+   * @param tag The name of the bracketing element.
+   * @param l The fragment queues.
+   * @return The segment, closed.
+   * @throws IOException If the segment cannot be written.
+   */
+  private SegmentBuffer writeSegment(QName tag, FragmentList[] l) throws IOException {
+    SegmentBuffer b = new SegmentBuffer(budget);
+    try {
+      boolean started = false;
       for (FragmentList q : l) {
+        boolean written = false;
         for (Fragment f : q) {
-          for (XMLEvent x : f) {
-            out.add(x);
+          if (isExcluded(f, tag)) {
+            continue;
+          }
+          if (!started) {
+            b.write(("<" + tag.getLocalPart() + ">\n").getBytes("UTF-8"));
+            started = true;
           }
+          f.writeTo(b);
+          written = true;
+        }
+        if (written) {
+          b.write('\n');
         }
-        out.add(factory.createCharacters("\n"));
       }
-      endElement(factory, tag, out);
+      if (started) {
+        b.write(("</" + tag.getLocalPart() + ">\n").getBytes("UTF-8"));
+      }
+      b.close();
+      return b;
+    }
+    catch (IOException e) {
+      b.discard();
+      throw e;
+    }
+  }
+  
+  /**
+   * Discards the segments of a parallel transcription, waiting for any still
+   * being written.
+   */
+  private void discardSegments() {
+    if (segments != null) {
+      for (FutureTask<SegmentBuffer> task : segments.values()) {
+        try {
+          task.get().discard();
+        }
+        catch (Exception e) {
+          // The task failed, so there is nothing to discard.
+        }
+      }
+      segments = null;
     }
   }
+  
+  /**
+   * Supplies the fragment queues for a section of the output.
+   * 
+   * @param tag The name of the element bracketing the section.
+   * @return The queues, in order.
+   */
+  private FragmentList[] getQueues(QName tag) {
+    String[] names = SECTIONS.get(tag);
+    FragmentList[] l = new FragmentList[names.length];
+    for (int i = 0; i < names.length; i++) {
+      l[i] = queues.get(names[i]);
+    }
+    return l;
+  }
+  
+  /**
+   * Writes the same bytes to two streams: the plain output and its
+   * compressed copy.
+   */
+  private static class CopyingOutputStream extends OutputStream {
+    
+    private final OutputStream first;
+    
+    private final OutputStream second;
+    
+    CopyingOutputStream(OutputStream first, OutputStream second) {
+      this.first  = first;
+      this.second = second;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      first.write(b);
+      second.write(b);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      first.write(b, off, len);
+      second.write(b, off, len);
+    }
+    
+    @Override
+    public void flush() throws IOException {
+      first.flush();
+      second.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      try {
+        first.close();
+      }
+      finally {
+        second.close();
+      }
+    }
+    
+  }
+  
+  /**
+   * The default executor: one new thread per task.
+   */
+  private static class ThreadPerTaskExecutor implements Executor {
+    
+    @Override
+    public void execute(Runnable r) {
+      new Thread(r).start();
+    }
+    
+  }
 
 }
@@ -0,0 +1,716 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Opens the input URLs of jobs, applying timeouts, retries and a limit on
+ * the connections to each host. One Downloader may be shared by many jobs,
+ * so that the limit applies to them all.
+ * <p>
+ * Connections are made with the platform's HttpURLConnection, which keeps
+ * connections alive and reuses them for later requests to the same host.
+ * A connection returns to the pool when the stream from it is read to its
+ * end and closed; the streams supplied here therefore read any unread
+ * remainder of a short response when closed, rather than dropping the
+ * connection.
+ * <p>
+ * A request that fails to connect, or that gets a status of 429 (too many
+ * requests) or 5xx, is tried again up to a given number of times, after a
+ * delay that doubles with each try. Once the response body is being read
+ * the request cannot be repeated, as the parser has already consumed part
+ * of it; a read that stalls for longer than the read timeout then fails
+ * with a SocketTimeoutException.
+ * <p>
+ * At most a given number of streams may be open to each host. A request
+ * beyond this waits for a stream to be closed, for no longer than the
+ * queue timeout. Requests made {@link #open(URL, Map, boolean) without
+ * the limit} neither wait nor count against it; pipelined collation needs
+ * this, since all the inputs of such a job must be read together and a job
+ * with more inputs on one host than the limit would otherwise deadlock.
+ * Only HTTP and HTTPS URLs are held to the limits on hosts; other URLs,
+ * such as those of local files, are read without them.
+ * <p>
+ * Each job should make its requests through its own view of the Downloader,
+ * obtained from {@link #forJob}. The views share the settings and limits,
+ * but a freed connection to a host goes to the waiting job with the fewest
+ * connections open to that host, so that a job with many inputs on one 
+ * host does not hold up the jobs that come after it. Optionally, the rate 
+ * at which each host is read may also be limited, across all jobs; see
+ * {@link HostGate}.
+ * <p>
+ * A job that reads its inputs in a pool of threads should not hold a
+ * thread while it waits for a busy host. Instead, each input may have its
+ * own view of the job's view, from {@link #forInput}, through which it
+ * {@link #reserve reserves} a connection before its task is put in the pool.
+ * The input's request then uses the reserved connection without waiting.
+ *
+ * @author Guy Rixon
+ */
+public class Downloader {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT_IN_MILLISECONDS = 30 * 1000;
+
+  public static final int DEFAULT_READ_TIMEOUT_IN_MILLISECONDS = 120 * 1000;
+
+  public static final int DEFAULT_RETRIES = 2;
+
+  public static final long DEFAULT_BACKOFF_IN_MILLISECONDS = 1000L;
+
+  public static final int DEFAULT_CONNECTIONS_PER_HOST = 4;
+
+  public static final long DEFAULT_QUEUE_TIMEOUT_IN_MILLISECONDS = 10L * 60L * 1000L;
+
+  /**
+   * The longest delay between tries.
+   */
+  private static final long MAX_BACKOFF_IN_MILLISECONDS = 60L * 1000L;
+
+  /**
+   * The most bytes of a response left unread that are read when the stream
+   * is closed, to return the connection to the pool.
+   */
+  private static final long DRAIN_LIMIT = 64L * 1024L;
+
+  private volatile int connectTimeout;
+
+  private volatile int readTimeout;
+
+  private volatile int retries;
+
+  private volatile long backoff;
+
+  private volatile int connectionsPerHost;
+
+  private volatile long queueTimeout;
+
+  private volatile long bandwidthPerHost;
+
+  /**
+   * The limits on each host, keyed by host and port.
+   */
+  private final ConcurrentMap<String,HostGate> hosts;
+
+  /**
+   * The Downloader whose settings and limits apply: this one, unless this
+   * is a view made by {@link #forJob}.
+   */
+  private final Downloader shared;
+
+  /**
+   * The job on whose behalf requests are made.
+   */
+  private final Object job;
+
+  /**
+   * The host to which this view holds a reserved connection; null if none.
+   */
+  private HostGate reserved;
+
+  /**
+   * Constructs a Downloader with the default settings.
+   */
+  public Downloader() {
+    connectTimeout     = DEFAULT_CONNECT_TIMEOUT_IN_MILLISECONDS;
+    readTimeout        = DEFAULT_READ_TIMEOUT_IN_MILLISECONDS;
+    retries            = DEFAULT_RETRIES;
+    backoff            = DEFAULT_BACKOFF_IN_MILLISECONDS;
+    connectionsPerHost = DEFAULT_CONNECTIONS_PER_HOST;
+    queueTimeout       = DEFAULT_QUEUE_TIMEOUT_IN_MILLISECONDS;
+    bandwidthPerHost   = 0L;
+    hosts = new ConcurrentHashMap<String,HostGate>();
+    shared = this;
+    job = this;
+    reserved = null;
+  }
+
+  /**
+   * Constructs a view of a Downloader for one job.
+   *
+   * @param d The Downloader.
+   */
+  private Downloader(Downloader d, Object j) {
+    hosts = null;
+    shared = d.shared;
+    job = (j == null)? this : j;
+    reserved = null;
+  }
+
+  /**
+   * Supplies a view of this Downloader for one job. Requests made through
+   * the view share the settings and limits of this Downloader, and take
+   * turns for connections with the requests of other views. Changes to 
+   * the settings of the view change those of this Downloader.
+   *
+   * @return The view.
+   */
+  public Downloader forJob() {
+    return new Downloader(this, null);
+  }
+
+  /**
+   * Supplies a view of this Downloader for one input of a job. The view 
+   * makes its requests on behalf of this view's job, but holds its own
+   * {@link #reserve reservation}.
+   *
+   * @return The view.
+   */
+  public Downloader forInput() {
+    return new Downloader(this, job);
+  }
+
+  /**
+   * Reserves a connection to the host of a URL, without waiting for it in
+   * the calling thread. Once a connection is reserved, a task is run; the
+   * next request through this view to that host, made with the limit, uses
+   * the reserved connection instead of waiting for one. If no connection 
+   * is free within the queue timeout, another task is run instead.
+   * <p>
+   * The tasks run in the calling thread if a connection is free, in the
+   * thread that frees a connection, or in a timer thread; they should only
+   * hand work on to another thread. A reservation that is not used must be
+   * {@link #releaseReservation released}.
+   *
+   * @param u The URL.
+   * @param task The task to run when the connection is reserved.
+   * @param timeout The task to run if the wait times out.
+   * @throws IllegalStateException If this view already holds a reservation.
+   */
+  public void reserve(URL u, final Runnable task, final Runnable timeout) {
+    if (!isGated(u)) {
+      task.run();
+      return;
+    }
+    final HostGate gate = getGate(u);
+    synchronized (this) {
+      if (reserved != null) {
+        throw new IllegalStateException("A connection is already reserved");
+      }
+    }
+    gate.acquire(job, shared.queueTimeout, new HostGate.Listener() {
+      @Override
+      public void granted() {
+        synchronized (Downloader.this) {
+          reserved = gate;
+        }
+        task.run();
+      }
+      @Override
+      public void timedOut() {
+        timeout.run();
+      }
+    });
+  }
+
+  /**
+   * Gives back a reserved connection that has not been used. This does
+   * nothing if the view holds no reservation.
+   */
+  public void releaseReservation() {
+    HostGate g;
+    synchronized (this) {
+      g = reserved;
+      reserved = null;
+    }
+    if (g != null) {
+      g.release(job);
+    }
+  }
+
+  /**
+   * Takes the reserved connection for a request, if it is to the given host.
+   *
+   * @param g The host.
+   * @return True if the reservation was taken.
+   */
+  private synchronized boolean takeReservation(HostGate g) {
+    if (reserved != g) {
+      return false;
+    }
+    reserved = null;
+    return true;
+  }
+
+  /**
+   * Sets the time allowed to connect to a server.
+   *
+   * @param milliseconds The timeout (must be positive).
+   */
+  public void setConnectTimeout(int milliseconds) {
+    if (milliseconds < 1) {
+      throw new IllegalArgumentException("Timeout must be positive");
+    }
+    shared.connectTimeout = milliseconds;
+  }
+
+  /**
+   * Sets the time allowed for each read from a server.
+   *
+   * @param milliseconds The timeout (must be positive).
+   */
+  public void setReadTimeout(int milliseconds) {
+    if (milliseconds < 1) {
+      throw new IllegalArgumentException("Timeout must be positive");
+    }
+    shared.readTimeout = milliseconds;
+  }
+
+  /**
+   * Sets the number of times a failed request is tried again.
+   *
+   * @param n The number of retries (zero for none).
+   */
+  public void setRetries(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("Retries must not be negative");
+    }
+    shared.retries = n;
+  }
+
+  /**
+   * Sets the delay before the first retry. Later retries wait twice as
+   * long as the one before, up to a minute.
+   *
+   * @param milliseconds The delay.
+   */
+  public void setBackoff(long milliseconds) {
+    if (milliseconds < 0L) {
+      throw new IllegalArgumentException("Backoff must not be negative");
+    }
+    shared.backoff = milliseconds;
+  }
+
+  /**
+   * Sets the most streams open at once to any one host. This applies to
+   * hosts first contacted after the call.
+   *
+   * @param n The limit (must be positive).
+   */
+  public void setConnectionsPerHost(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Connections per host must be positive");
+    }
+    shared.connectionsPerHost = n;
+  }
+
+  /**
+   * Sets the time allowed to wait for a free connection to a host.
+   *
+   * @param milliseconds The timeout (must be positive).
+   */
+  public void setQueueTimeout(long milliseconds) {
+    if (milliseconds < 1L) {
+      throw new IllegalArgumentException("Timeout must be positive");
+    }
+    shared.queueTimeout = milliseconds;
+  }
+
+  /**
+   * Sets the most bytes per second read from any one host, by all jobs 
+   * together. This applies to hosts first contacted after the call.
+   *
+   * @param bytesPerSecond The limit; zero for none.
+   */
+  public void setBandwidthPerHost(long bytesPerSecond) {
+    if (bytesPerSecond < 0L) {
+      throw new IllegalArgumentException("Bandwidth must not be negative");
+    }
+    shared.bandwidthPerHost = bytesPerSecond;
+  }
+
+  /**
+   * Opens the stream for a URL, within the limit on connections to its host.
+   * HTTP servers are told that gzip encoding is acceptable.
+   *
+   * @param u The URL.
+   * @return The stream.
+   * @throws IOException If the URL cannot be read.
+   */
+  public InputStream open(URL u) throws IOException {
+    return open(u, Collections.<String,String>emptyMap(), true).getInputStream();
+  }
+
+  /**
+   * Makes a request for a URL. For an HTTP URL, the status of the response
+   * is one that should not be retried: a status of 400 or more is reported
+   * as an IOException, unless it is 304 (not modified), which is returned.
+   * A request with the limit uses the connection reserved by this view, if
+   * it is to the same host, and otherwise waits for a free connection.
+   *
+   * @param u The URL.
+   * @param headers Extra headers for an HTTP request.
+   * @param limited True if the request must wait for a free connection to
+   * its host; false if it ignores the limit. This is ignored for a URL
+   * other than HTTP or HTTPS, which is never limited.
+   * @return The response, which must be closed or have its stream closed.
+   * @throws IOException If the URL cannot be read.
+   */
+  public Download open(URL u, Map<String,String> headers, boolean limited) throws IOException {
+    if (!isGated(u)) {
+      return new Download(connect(u, headers), null, null);
+    }
+    HostGate gate = getGate(u);
+    if (limited && !takeReservation(gate)) {
+      try {
+        if (!gate.acquire(job, shared.queueTimeout)) {
+          throw new SocketTimeoutException("Timed out waiting for a connection to " + u.getHost());
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a connection to " + u.getHost(), e);
+      }
+    }
+    try {
+      return new Download(connect(u, headers), gate, limited? job : null);
+    }
+    catch (IOException e) {
+      if (limited) {
+        gate.release(job);
+      }
+      throw e;
+    }
+    catch (RuntimeException e) {
+      if (limited) {
+        gate.release(job);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Connects to a URL, trying again as necessary.
+   *
+   * @param u The URL.
+   * @param headers The extra headers.
+   * @return The connection, with its response received.
+   * @throws IOException If all the tries fail.
+   */
+  private URLConnection connect(URL u, Map<String,String> headers) throws IOException {
+    int connectTimeout = shared.connectTimeout;
+    int readTimeout = shared.readTimeout;
+    int retries = shared.retries;
+    long delay = shared.backoff;
+    for (int attempt = 0; ; attempt++) {
+      URLConnection c = u.openConnection();
+      c.setConnectTimeout(connectTimeout);
+      c.setReadTimeout(readTimeout);
+      if (!(c instanceof HttpURLConnection)) {
+        c.connect();
+        return c;
+      }
+      HttpURLConnection h = (HttpURLConnection) c;
+      h.setRequestProperty("Accept-Encoding", "gzip");
+      for (Map.Entry<String,String> e : headers.entrySet()) {
+        h.setRequestProperty(e.getKey(), e.getValue());
+      }
+      IOException failure;
+      try {
+        int status = h.getResponseCode();
+        if (status == 429 || status >= 500) {
+          failure = new IOException("Server returned HTTP " + status + " for " + u);
+          discard(h);
+        }
+        else if (status >= 400) {
+          discard(h);
+          throw new HttpStatusException(u, status);
+        }
+        else {
+          return h;
+        }
+      }
+      catch (HttpStatusException e) {
+        throw e;
+      }
+      catch (IOException e) {
+        failure = e;
+        h.disconnect();
+      }
+      if (attempt >= retries) {
+        throw failure;
+      }
+      try {
+        Thread.sleep(delay);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting to retry " + u, failure);
+      }
+      delay = Math.min(2L * delay, MAX_BACKOFF_IN_MILLISECONDS);
+    }
+  }
+
+  /**
+   * Reads and drops the body of an error response, so that the connection
+   * can be reused.
+   *
+   * @param h The connection.
+   */
+  private static void discard(HttpURLConnection h) {
+    InputStream in = h.getErrorStream();
+    if (in != null) {
+      drainAndClose(in);
+    }
+  }
+
+  private static void drainAndClose(InputStream in) {
+    try {
+      byte[] b = new byte[8192];
+      long n = 0L;
+      int m;
+      while (n < DRAIN_LIMIT && (m = in.read(b)) != -1) {
+        n += m;
+      }
+    }
+    catch (IOException e) {
+      // The connection will not be reused.
+    }
+    finally {
+      try {
+        in.close();
+      }
+      catch (IOException e) {
+        // Nothing more to do.
+      }
+    }
+  }
+
+  /**
+   * Determines whether a URL is held to the limits on its host.
+   *
+   * @param u The URL.
+   * @return True for an HTTP or HTTPS URL.
+   */
+  private static boolean isGated(URL u) {
+    String p = u.getProtocol();
+    return p.equals("http") || p.equals("https");
+  }
+
+  /**
+   * Finds the limits on the host of a URL.
+   *
+   * @param u The URL.
+   * @return The limits.
+   */
+  HostGate getGate(URL u) {
+    String key = u.getProtocol() + "://" + u.getHost() + ":" + ((u.getPort() == -1)? u.getDefaultPort() : u.getPort());
+    ConcurrentMap<String,HostGate> h = shared.hosts;
+    HostGate g = h.get(key);
+    if (g == null) {
+      HostGate t = new HostGate(shared.connectionsPerHost, shared.bandwidthPerHost);
+      g = h.putIfAbsent(key, t);
+      if (g == null) {
+        g = t;
+      }
+    }
+    return g;
+  }
+
+
+  /**
+   * The response to a request for a URL. Closing the response, or its
+   * stream, frees its connection to the host.
+   */
+  public static class Download {
+
+    private final URLConnection connection;
+
+    /**
+     * The limits on the host, or null for a URL not held to them.
+     */
+    private final HostGate gate;
+
+    /**
+     * The job holding a connection to the host, or null if the download
+     * was made without the limit.
+     */
+    private final Object holder;
+
+    private InputStream stream;
+
+    private boolean closed;
+
+    private volatile boolean aborted;
+
+    Download(URLConnection c, HostGate g, Object h) {
+      connection = c;
+      gate = g;
+      holder = h;
+      stream = null;
+      closed = false;
+      aborted = false;
+    }
+
+    /**
+     * Reveals the HTTP status of the response.
+     *
+     * @return The status, or 200 for a URL other than HTTP.
+     * @throws IOException If the status cannot be read.
+     */
+    public int getStatus() throws IOException {
+      return (connection instanceof HttpURLConnection)?
+          ((HttpURLConnection) connection).getResponseCode() : 200;
+    }
+
+    /**
+     * Reveals a header of the response.
+     *
+     * @param name The name of the header.
+     * @return The value, or null if the header is absent.
+     */
+    public String getHeader(String name) {
+      return connection.getHeaderField(name);
+    }
+
+    /**
+     * Reveals the length of the response body.
+     *
+     * @return The length, or -1 if it is not known.
+     */
+    public long getContentLength() {
+      return connection.getContentLengthLong();
+    }
+
+    /**
+     * Supplies the stream of the response body.
+     *
+     * @return The stream.
+     * @throws IOException If the stream cannot be opened.
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+      if (stream == null) {
+        try {
+          stream = new ReleasingInputStream(connection.getInputStream());
+        }
+        catch (IOException e) {
+          close();
+          throw e;
+        }
+      }
+      return stream;
+    }
+
+    /**
+     * Closes the response, freeing its connection.
+     */
+    public synchronized void close() {
+      if (!closed) {
+        closed = true;
+        if (stream == null && !aborted) {
+          try {
+            drainAndClose(connection.getInputStream());
+          }
+          catch (IOException e) {
+            // No body to read.
+          }
+        }
+        if (holder != null) {
+          gate.release(holder);
+        }
+      }
+    }
+
+    /**
+     * Stops the download from another thread. The next read of the stream
+     * fails, and the connection is dropped when the stream is closed. A 
+     * read already blocked is not woken, as the platform's connection 
+     * cannot be closed safely from another thread while it is being read;
+     * it ends when data arrive or at the read timeout.
+     */
+    public void abort() {
+      aborted = true;
+    }
+
+    /**
+     * The stream of a response body. Closing it reads any short remainder
+     * of the body, so that the connection can be reused, and frees the
+     * connection to the host.
+     */
+    private class ReleasingInputStream extends FilterInputStream implements Abortable {
+
+      ReleasingInputStream(InputStream in) {
+        super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+        checkAborted();
+        int b = super.read();
+        if (b != -1 && gate != null) {
+          gate.throttle(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        checkAborted();
+        int n = super.read(b, off, len);
+        if (gate != null) {
+          gate.throttle(n);
+        }
+        return n;
+      }
+
+      @Override
+      public void abort() {
+        Download.this.abort();
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          if (aborted) {
+            if (connection instanceof HttpURLConnection) {
+              ((HttpURLConnection) connection).disconnect();
+            }
+          }
+          else {
+            drainAndClose(in);
+          }
+        }
+        finally {
+          Download.this.close();
+        }
+      }
+
+      private void checkAborted() throws IOException {
+        if (aborted) {
+          throw new IOException("The download of " + connection.getURL() + " was aborted");
+        }
+      }
+
+    }
+
+  }
+
+
+  /**
+   * Reports a response from a server with a status that means the request
+   * should not be repeated.
+   */
+  public static class HttpStatusException extends IOException {
+
+    private final int status;
+
+    HttpStatusException(URL u, int status) {
+      super("Server returned HTTP " + status + " for " + u);
+      this.status = status;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+  }
+
+}
@@ -0,0 +1,201 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A list of fragments held in a temporary file. The list is bounded by
+ * the space on disc rather than by the heap.
+ * <p>
+ * The file is written append-only: the text of each fragment is stored as
+ * one record, prefixed by its length in bytes and the number of its input. The list is read back
+ * sequentially, one record at a time, so only the fragment currently
+ * being read is held in memory. Reading starts when the list is first iterated;
+ * no fragments may be added after that. The list must be read only after all
+ * its contributors have finished.
+ * <p>
+ * The file is deleted by {@link #discard}.
+ *
+ * @author Guy Rixon
+ */
+public class FileFragmentList implements FragmentList {
+
+  private final File file;
+
+  private DataOutputStream out;
+
+  /**
+   * Constructs an empty list, creating its file in the default
+   * directory for temporary files.
+   *
+   * @throws IOException If the file cannot be created.
+   */
+  public FileFragmentList() throws IOException {
+    this(File.createTempFile("xsams-mux-", ".fragments"));
+  }
+
+  /**
+   * Constructs an empty list in a given file. Any previous content of the
+   * file is lost.
+   *
+   * @param f The file.
+   * @throws IOException If the file cannot be opened for writing.
+   */
+  public FileFragmentList(File f) throws IOException {
+    file = f;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+  }
+
+  /**
+   * Reveals the file holding the list.
+   *
+   * @return The file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Appends a fragment to the file.
+   *
+   * @param f The fragment.
+   * @return True.
+   * @throws IllegalStateException If the list is being read or has been discarded.
+   * @throws IllegalStateException If the fragment cannot be written.
+   */
+  @Override
+  public synchronized boolean add(Fragment f) {
+    if (out == null) {
+      throw new IllegalStateException("Fragments cannot be added to " + file + " after reading starts");
+    }
+    try {
+      out.writeInt(f.getLength());
+      out.writeInt(f.getInput());
+      f.writeTo(out);
+      return true;
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Failed to write a fragment to " + file, e);
+    }
+  }
+
+  /**
+   * Does nothing: the list does not track its contributors.
+   */
+  @Override
+  public void finish() {
+  }
+
+  /**
+   * Deletes the file.
+   */
+  @Override
+  public synchronized void discard() {
+    closeOutput();
+    file.delete();
+  }
+
+  /**
+   * Supplies an iterator that reads the file from the start.
+   *
+   * @return The iterator.
+   * @throws IllegalStateException If the file cannot be opened.
+   */
+  @Override
+  public synchronized Iterator<Fragment> iterator() {
+    closeOutput();
+    try {
+      return new RecordIterator(new DataInputStream(new BufferedInputStream(new FileInputStream(file))));
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Failed to read fragments from " + file, e);
+    }
+  }
+
+  private void closeOutput() {
+    if (out != null) {
+      try {
+        out.close();
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to close " + file, e);
+      }
+      finally {
+        out = null;
+      }
+    }
+  }
+
+  /**
+   * Reads the records back from the file, one at a time. The file is
+   * closed when the last record has been read.
+   */
+  private class RecordIterator implements Iterator<Fragment> {
+
+    private final DataInputStream in;
+
+    private Fragment next;
+
+    private boolean exhausted;
+
+    RecordIterator(DataInputStream in) {
+      this.in = in;
+      this.exhausted = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null && !exhausted) {
+        next = read();
+      }
+      return next != null;
+    }
+
+    @Override
+    public Fragment next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Fragment f = next;
+      next = null;
+      return f;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private Fragment read() {
+      try {
+        int length;
+        try {
+          length = in.readInt();
+        }
+        catch (EOFException e) {
+          exhausted = true;
+          in.close();
+          return null;
+        }
+        int input = in.readInt();
+        byte[] record = new byte[length];
+        in.readFully(record);
+        return new Fragment(record, input);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to read fragments from " + file, e);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,125 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the fragments written by one job, used to drop fragments that
+ * duplicate ones already written from other inputs. Fragments are indexed
+ * by a digest of their content; the digest is computed by the {@link Analyzer}
+ * from the input text, so that it does not depend on the suffixes given to
+ * ID values. The index records, for each digest, the suffix of the input
+ * whose copy of the fragment survives.
+ * <p>
+ * The index covers only the kinds of element named at construction. It
+ * holds at most a given number of digests; when full, it forgets the digest
+ * least recently matched. A forgotten fragment is no longer deduplicated,
+ * so the bound limits the memory used by the index at the cost of letting
+ * some duplicates through.
+ * <p>
+ * The index also records which inputs supplied a surviving copy that was
+ * matched by another input. The output must keep those copies even if
+ * their input later fails, as the other inputs now refer to them.
+ * <p>
+ * The index is shared by all the Analyzers of a job and is thread-safe.
+ *
+ * @author Guy Rixon
+ */
+public class FragmentIndex {
+
+  private final Set<String> tags;
+
+  private final Map<ByteBuffer,String> survivors;
+
+  private final int capacity;
+
+  /**
+   * The suffixes of the inputs whose copies were matched by other inputs.
+   */
+  private final Set<String> donors;
+
+  /**
+   * Constructs an empty index.
+   *
+   * @param tags The local names of the elements to be deduplicated.
+   * @param capacity The greatest number of digests held.
+   */
+  public FragmentIndex(Set<String> tags, final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Index capacity must be positive");
+    }
+    this.tags = Collections.unmodifiableSet(tags);
+    this.capacity = capacity;
+    this.donors = new HashSet<String>();
+    this.survivors = new LinkedHashMap<ByteBuffer,String>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer,String> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Determines whether an element is to be deduplicated.
+   *
+   * @param tag The local name of the element.
+   * @return True if the element is covered by the index.
+   */
+  public boolean covers(String tag) {
+    return tags.contains(tag);
+  }
+
+  /**
+   * Registers a fragment, unless an identical one has already been registered.
+   *
+   * @param digest The digest of the fragment's content.
+   * @param suffix The suffix of the input from which the fragment comes.
+   * @return Null if the fragment is new and should be written; otherwise,
+   * the suffix of the input whose copy of the fragment survives.
+   */
+  public synchronized String register(byte[] digest, String suffix) {
+    ByteBuffer key = ByteBuffer.wrap(digest);
+    String survivor = survivors.get(key);
+    if (survivor == null) {
+      survivors.put(key, suffix);
+    }
+    else if (!survivor.equals(suffix)) {
+      donors.add(survivor);
+    }
+    return survivor;
+  }
+
+  /**
+   * Determines whether other inputs refer to fragments from an input, in 
+   * place of their own duplicates.
+   *
+   * @param suffix The suffix of the input.
+   * @return True if any fragment from the input was matched by another input.
+   */
+  public synchronized boolean isDonor(String suffix) {
+    return donors.contains(suffix);
+  }
+
+  /**
+   * Reveals the greatest number of digests held.
+   *
+   * @return The capacity.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Reveals the number of digests held.
+   *
+   * @return The number of digests.
+   */
+  public synchronized int size() {
+    return survivors.size();
+  }
+
+}
@@ -1,9 +1,37 @@
 package eu.vamdc.xsams.multiplexor.mux;
 
-import java.util.List;
-
 /**
+ * A sequence of fragments of one kind. {@link Analyzer}s add fragments
+ * to the list and the {@link Collator} reads them back, in order, by
+ * iterating over the list.
+ * <p>
+ * Each Analyzer calls {@link #finish} when it has no more fragments for the
+ * list. Implementations that let the Collator read while the Analyzers are
+ * still writing use these calls to know when the list is complete; other
+ * implementations may ignore them.
  *
  * @author Guy Rixon
  */
-public interface FragmentList extends List<Fragment> {}
+public interface FragmentList extends Iterable<Fragment> {
+
+  /**
+   * Appends a fragment to the list. Bounded implementations may block
+   * until there is space for the fragment.
+   *
+   * @param f The fragment.
+   * @return True (as specified by {@link java.util.Collection#add}).
+   */
+  boolean add(Fragment f);
+
+  /**
+   * Signals that one contributor has finished adding to the list.
+   */
+  void finish();
+
+  /**
+   * Discards the content of the list and releases any resources it holds.
+   * Contributors still adding to the list are released with an exception.
+   */
+  void discard();
+
+}
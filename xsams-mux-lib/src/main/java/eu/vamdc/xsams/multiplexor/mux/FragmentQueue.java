@@ -0,0 +1,163 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/**
+ * A bounded queue of fragments, shared by several contributing Analyzers and
+ * drained by one Collator while the Analyzers are still running.
+ * <p>
+ * The queue counts its contributors. Each contributor calls {@link #finish}
+ * when it has no more fragments for the queue. A contributor that adds
+ * a fragment while the queue is full blocks until the Collator has taken
+ * a fragment. The Collator reads the queue by iterating over it; the
+ * iteration removes the fragments it returns and blocks while the queue is
+ * empty and contributors remain. The iteration ends when the queue is empty
+ * and all the contributors have finished.
+ * <p>
+ * If the job fails, {@link #discard} discards the queued fragments and
+ * releases any thread blocked on the queue. After that, additions
+ * are rejected.
+ *
+ * @author Guy Rixon
+ */
+public class FragmentQueue implements FragmentList {
+
+  private final LinkedList<Fragment> fragments;
+
+  private final int capacity;
+
+  private int contributors;
+
+  private boolean discarded;
+
+  /**
+   * Constructs a queue.
+   *
+   * @param nContributors The number of Analyzers writing to the queue.
+   * @param capacity The greatest number of fragments held at one time.
+   */
+  public FragmentQueue(int nContributors, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be positive");
+    }
+    this.fragments    = new LinkedList<Fragment>();
+    this.capacity     = capacity;
+    this.contributors = nContributors;
+    this.discarded    = false;
+  }
+
+  /**
+   * Adds a fragment at the tail of the queue, waiting for space if necessary.
+   *
+   * @param f The fragment.
+   * @return True.
+   * @throws IllegalStateException If the queue has been discarded.
+   * @throws IllegalStateException If the thread is interrupted while waiting.
+   */
+  @Override
+  public synchronized boolean add(Fragment f) {
+    try {
+      while (fragments.size() >= capacity && !discarded) {
+        wait();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for queue space", e);
+    }
+    if (discarded) {
+      throw new IllegalStateException("The fragment queue has been discarded");
+    }
+    fragments.addLast(f);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Records that one contributor has finished with the queue.
+   */
+  @Override
+  public synchronized void finish() {
+    if (contributors > 0) {
+      contributors--;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Discards the queued fragments and stops the queue. Threads waiting to
+   * add fragments are released with an exception; the reader sees the end
+   * of the queue.
+   */
+  @Override
+  public synchronized void discard() {
+    discarded = true;
+    fragments.clear();
+    notifyAll();
+  }
+
+  /**
+   * Removes the fragment at the head of the queue, waiting for one to arrive
+   * if necessary.
+   *
+   * @return The fragment, or null if the queue is empty and all contributors have finished.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  public synchronized Fragment take() throws InterruptedException {
+    while (fragments.isEmpty() && contributors > 0 && !discarded) {
+      wait();
+    }
+    if (fragments.isEmpty()) {
+      return null;
+    }
+    Fragment f = fragments.removeFirst();
+    notifyAll();
+    return f;
+  }
+
+  /**
+   * Supplies an iterator that drains the queue. The iterator's methods
+   * block as described for {@link #take}.
+   *
+   * @return The iterator.
+   */
+  @Override
+  public Iterator<Fragment> iterator() {
+    return new Iterator<Fragment>() {
+
+      private Fragment next;
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          try {
+            next = take();
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for fragments", e);
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Fragment next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Fragment f = next;
+        next = null;
+        return f;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+}
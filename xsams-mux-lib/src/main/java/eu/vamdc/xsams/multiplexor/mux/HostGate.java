@@ -0,0 +1,322 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The limits on the downloads from one host, shared by all the jobs of a
+ * {@link Downloader}.
+ * <p>
+ * At most a given number of streams may be open to the host. When a stream
+ * is closed, its permit goes to the waiting job that has the fewest streams
+ * open to the host, and among those to the one that has waited longest.
+ * Thus a job with many inputs on the host takes turns with the others,
+ * rather than holding the host until all its inputs are read.
+ * <p>
+ * A permit may be waited for in the calling thread, or requested with a
+ * {@link Listener} that is told later, so that a pooled thread need not be
+ * held while the host is busy. Listeners are called outside the gate's lock.
+ * <p>
+ * The bytes read from the host, by all streams together, may also be held
+ * to a given rate. A read that takes the streams ahead of the rate is
+ * followed by a pause that brings them back to it.
+ *
+ * @author Guy Rixon
+ */
+class HostGate {
+
+  /**
+   * Times out the requests waiting with listeners.
+   */
+  private static final Timer TIMEOUTS = new Timer("xsams-mux-host-queue", true);
+
+  private final int limit;
+
+  private final long bytesPerSecond;
+
+  /**
+   * The number of permits granted and not yet released.
+   */
+  private int open;
+
+  /**
+   * The number of permits held by each job that holds any.
+   */
+  private final Map<Object,Integer> held;
+
+  /**
+   * The requests waiting for permits, oldest first.
+   */
+  private final LinkedList<Waiter> waiting;
+
+  /**
+   * The time, as from System.nanoTime(), at which the bytes already read
+   * are within the rate.
+   */
+  private long paidUntil;
+
+  /**
+   * Constructs a gate.
+   *
+   * @param limit The most streams open at once.
+   * @param bytesPerSecond The most bytes read per second; zero for no limit.
+   */
+  HostGate(int limit, long bytesPerSecond) {
+    this.limit = limit;
+    this.bytesPerSecond = bytesPerSecond;
+    open = 0;
+    held = new HashMap<Object,Integer>();
+    waiting = new LinkedList<Waiter>();
+    paidUntil = 0L;
+  }
+
+  /**
+   * Takes a permit for a job, waiting for one if necessary.
+   *
+   * @param job The job.
+   * @param timeout The longest wait, in milliseconds.
+   * @return True if the permit was taken; false if the wait timed out.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  boolean acquire(Object job, long timeout) throws InterruptedException {
+    boolean granted;
+    InterruptedException interruption = null;
+    synchronized (this) {
+      if (waiting.isEmpty() && open < limit) {
+        grant(job);
+        return true;
+      }
+      Waiter w = new Waiter(job, null);
+      waiting.add(w);
+      long end = System.currentTimeMillis() + timeout;
+      try {
+        while (!w.granted) {
+          long remaining = end - System.currentTimeMillis();
+          if (remaining <= 0L) {
+            break;
+          }
+          wait(remaining);
+        }
+      }
+      catch (InterruptedException e) {
+        interruption = e;
+      }
+      if (!w.granted) {
+        waiting.remove(w);
+      }
+      granted = w.granted;
+    }
+    if (interruption != null) {
+      if (granted) {
+        release(job);
+      }
+      throw interruption;
+    }
+    return granted;
+  }
+
+  /**
+   * Takes a permit for a job without waiting for it in this thread. If a
+   * permit is free, the listener is told at once, in this thread; otherwise
+   * the request joins the queue and the listener is told in the thread that
+   * frees a permit, or in a timer thread if the wait times out. Either way,
+   * the listener should only hand work on to another thread.
+   *
+   * @param job The job.
+   * @param timeout The longest wait, in milliseconds.
+   * @param l The listener.
+   */
+  void acquire(Object job, long timeout, Listener l) {
+    final Waiter w;
+    synchronized (this) {
+      if (waiting.isEmpty() && open < limit) {
+        grant(job);
+        w = null;
+      }
+      else {
+        w = new Waiter(job, l);
+        waiting.add(w);
+        w.timeout = new TimerTask() {
+          @Override
+          public void run() {
+            expire(w);
+          }
+        };
+        TIMEOUTS.schedule(w.timeout, timeout);
+      }
+    }
+    if (w == null) {
+      l.granted();
+    }
+  }
+
+  /**
+   * Gives back a permit taken for a job.
+   *
+   * @param job The job.
+   */
+  void release(Object job) {
+    List<Listener> granted = new ArrayList<Listener>(1);
+    synchronized (this) {
+      Integer n = held.get(job);
+      if (n == null) {
+        return;
+      }
+      if (n == 1) {
+        held.remove(job);
+      }
+      else {
+        held.put(job, n - 1);
+      }
+      open--;
+      while (open < limit && !waiting.isEmpty()) {
+        Waiter next = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Waiter w : waiting) {
+          Integer m = held.get(w.job);
+          int count = (m == null)? 0 : m;
+          if (count < fewest) {
+            next = w;
+            fewest = count;
+          }
+        }
+        waiting.remove(next);
+        grant(next.job);
+        next.granted = true;
+        if (next.listener != null) {
+          next.timeout.cancel();
+          granted.add(next.listener);
+        }
+      }
+      notifyAll();
+    }
+    for (Listener l : granted) {
+      l.granted();
+    }
+  }
+
+  /**
+   * Ends the wait of a request with a listener, unless it has been granted.
+   *
+   * @param w The request.
+   */
+  private void expire(Waiter w) {
+    synchronized (this) {
+      if (w.granted) {
+        return;
+      }
+      waiting.remove(w);
+    }
+    w.listener.timedOut();
+  }
+
+  /**
+   * Pauses, if necessary, after bytes are read from the host, so that the
+   * reads keep to the rate.
+   *
+   * @param bytes The number of bytes just read.
+   * @throws InterruptedIOException If the thread is interrupted during the pause.
+   */
+  void throttle(int bytes) throws InterruptedIOException {
+    if (bytesPerSecond == 0L || bytes <= 0) {
+      return;
+    }
+    long pause;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (paidUntil - now < 0L) {
+        paidUntil = now;
+      }
+      paidUntil += (bytes * 1000000000L) / bytesPerSecond;
+      pause = (paidUntil - now) / 1000000L;
+    }
+    if (pause > 0L) {
+      try {
+        Thread.sleep(pause);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while limiting the rate of a download");
+      }
+    }
+  }
+
+  /**
+   * Reveals the number of permits held by a job. For tests.
+   *
+   * @param job The job.
+   * @return The number of permits.
+   */
+  synchronized int getHeld(Object job) {
+    Integer n = held.get(job);
+    return (n == null)? 0 : n;
+  }
+
+  /**
+   * Reveals the number of requests waiting for permits. For tests.
+   *
+   * @return The number of requests.
+   */
+  synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  private void grant(Object job) {
+    Integer n = held.get(job);
+    held.put(job, (n == null)? 1 : n + 1);
+    open++;
+  }
+
+
+  /**
+   * Receives the outcome of a request for a permit that does not wait.
+   */
+  interface Listener {
+
+    /**
+     * Notes that the permit has been taken for the job.
+     */
+    void granted();
+
+    /**
+     * Notes that no permit was free within the timeout.
+     */
+    void timedOut();
+
+  }
+
+
+  /**
+   * A request waiting for a permit.
+   */
+  private static class Waiter {
+
+    final Object job;
+
+    /**
+     * The listener to tell of the grant; null if a thread is waiting.
+     */
+    final Listener listener;
+
+    /**
+     * The task that ends the wait of a request with a listener.
+     */
+    TimerTask timeout;
+
+    boolean granted;
+
+    Waiter(Object job, Listener listener) {
+      this.job = job;
+      this.listener = listener;
+      granted = false;
+    }
+
+  }
+
+}
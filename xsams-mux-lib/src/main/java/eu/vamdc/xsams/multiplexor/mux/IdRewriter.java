@@ -0,0 +1,327 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Makes the ID values of one input unique in the output by adding a suffix
+ * to each of them. ID values appear either as attributes or as the text
+ * content of certain elements; the names of these attributes and elements
+ * depend on the version of XSAMS.
+ * <p>
+ * The names are held in hash sets built once per version of XSAMS and
+ * shared by all rewriters for that version. The suffix is held as a character
+ * array, so that it can be appended to element content without creating
+ * strings. Suffixed attribute values are built in a buffer that is re-used
+ * for every attribute. Therefore, a rewriter serves one input and must not
+ * be shared between threads.
+ * <p>
+ * Where the Analyzer drops a fragment as a duplicate of one from another
+ * input, the IDs defined in the dropped fragment are {@link #alias aliased}
+ * to the suffix of the surviving copy, and later references to them are
+ * given that suffix instead of the rewriter's own. To support this, the
+ * content of elements holding ID values is collected in a buffer and written
+ * when the element ends.
+ * <p>
+ * The number of aliases is {@link #setAliasLimit limited}, by default to
+ * the default capacity of the Collator's index of fragments. Once the limit
+ * is reached, no more IDs are aliased and the Analyzer keeps the fragments
+ * that it would have dropped, so the output holds some duplicates but no
+ * reference is left without its target.
+ * <p>
+ * A different rule for IDs may be plugged into an {@link Analyzer} by
+ * extending this class.
+ *
+ * @author Guy Rixon
+ */
+public class IdRewriter {
+
+  /**
+   * Namespace URI for XSAMS-0.3.
+   */
+  public static final String XSAMS_0_3_NS_URI = "http://vamdc.org/xml/xsams/0.3";
+
+  private static final Set<String> ID_ATTRIBUTES_0_3 = names(
+    "methodID", "sourceID", "functionID", "speciesID", "stateID", "environmentID", "processID",
+    "methodRef", "sourceRef", "functionRef", "speciesRef", "stateRef", "envRef", "processRef",
+    "id"
+  );
+
+  private static final Set<String> ID_ATTRIBUTES_1_0 = names(
+    "methodID", "sourceID", "functionID", "speciesID", "stateID", "environmentID", "processID",
+    "methodRef", "sourceRef", "functionRef", "speciesRef", "stateRef", "envRef", "processRef",
+    "envID", "id"
+  );
+
+  private static final Set<String> ID_ELEMENTS = names(
+    "StateRef", "UpperStateRef", "LowerStateRef", "SpeciesRef", "SourceRef"
+  );
+
+  /**
+   * The names of ID attributes, keyed by the namespace URI of the XSAMS version.
+   */
+  private static final Map<String,Set<String>> ATTRIBUTES_BY_VERSION = new HashMap<String,Set<String>>();
+
+  /**
+   * The names of elements with ID content, keyed by the namespace URI of the XSAMS version.
+   */
+  private static final Map<String,Set<String>> ELEMENTS_BY_VERSION = new HashMap<String,Set<String>>();
+
+  static {
+    ATTRIBUTES_BY_VERSION.put(XSAMS_0_3_NS_URI,     ID_ATTRIBUTES_0_3);
+    ATTRIBUTES_BY_VERSION.put(Collator.XSAMS_NS_URI, ID_ATTRIBUTES_1_0);
+    ELEMENTS_BY_VERSION.put(XSAMS_0_3_NS_URI,     ID_ELEMENTS);
+    ELEMENTS_BY_VERSION.put(Collator.XSAMS_NS_URI, ID_ELEMENTS);
+  }
+
+  private final Set<String> idAttributes;
+
+  private final Set<String> idElements;
+
+  private final String suffix;
+
+  private final char[] suffixCharacters;
+
+  /**
+   * The buffer in which suffixed attribute values are built.
+   */
+  private final StringBuilder value;
+
+  /**
+   * The suffixes for IDs aliased to other inputs, keyed by unsuffixed ID.
+   */
+  private final Map<String,String> aliases;
+
+  /**
+   * The greatest number of aliases held.
+   */
+  private int aliasLimit;
+
+  /**
+   * The content of the ID element being copied.
+   */
+  private char[] content;
+
+  private int contentLength;
+
+  private boolean inIdElement;
+
+  /**
+   * Constructs a rewriter for the given names of ID attributes and elements.
+   *
+   * @param suffix The suffix for ID values.
+   * @param attributes The local names of the attributes holding ID values.
+   * @param elements The local names of the elements with ID values as content.
+   */
+  public IdRewriter(String suffix, Collection<String> attributes, Collection<String> elements) {
+    this(suffix, names(attributes), names(elements));
+  }
+
+  private IdRewriter(String suffix, Set<String> attributes, Set<String> elements) {
+    this.suffix           = suffix;
+    this.suffixCharacters = suffix.toCharArray();
+    this.idAttributes     = attributes;
+    this.idElements       = elements;
+    this.value            = new StringBuilder();
+    this.aliases          = new HashMap<String,String>();
+    this.aliasLimit       = Collator.DEFAULT_INDEX_CAPACITY;
+    this.content          = new char[64];
+    this.contentLength    = 0;
+    this.inIdElement      = false;
+  }
+
+  /**
+   * Constructs a rewriter for a version of XSAMS. Unknown versions are
+   * treated as XSAMS-0.3, which is the version that the multiplexor was
+   * written to read.
+   *
+   * @param namespaceUri The namespace URI of the XSAMS version.
+   * @param suffix The suffix for ID values.
+   * @return The rewriter.
+   */
+  public static IdRewriter forNamespace(String namespaceUri, String suffix) {
+    Set<String> attributes = ATTRIBUTES_BY_VERSION.get(namespaceUri);
+    Set<String> elements   = ELEMENTS_BY_VERSION.get(namespaceUri);
+    if (attributes == null) {
+      attributes = ID_ATTRIBUTES_0_3;
+      elements   = ID_ELEMENTS;
+    }
+    return new IdRewriter(suffix, attributes, elements);
+  }
+
+  /**
+   * Reveals the suffix for ID values.
+   *
+   * @return The suffix.
+   */
+  public String getSuffix() {
+    return suffix;
+  }
+
+  /**
+   * Determines whether an attribute holds an ID value.
+   *
+   * @param localName The local name of the attribute.
+   * @return True if the attribute holds an ID value.
+   */
+  public boolean isIdAttribute(String localName) {
+    return idAttributes.contains(localName);
+  }
+
+  /**
+   * Determines whether an attribute defines an ID, rather than referring
+   * to one. Any ID attribute whose name does not end in "Ref" is taken to be
+   * a definition.
+   *
+   * @param localName The local name of the attribute.
+   * @return True if the attribute defines an ID.
+   */
+  public boolean isDefinition(String localName) {
+    return isIdAttribute(localName) && !localName.endsWith("Ref");
+  }
+
+  /**
+   * Sets the greatest number of IDs that may be aliased. The Analyzer sets
+   * this to the capacity of its {@link FragmentIndex}, so that the aliases
+   * take no more memory than the index does.
+   *
+   * @param n The limit (must be positive).
+   */
+  public void setAliasLimit(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Alias limit must be positive");
+    }
+    aliasLimit = n;
+  }
+
+  /**
+   * Directs the rewriter to give the IDs defined in a fragment the suffix of
+   * another input, which holds the surviving copy of that fragment. The IDs
+   * are aliased all together or not at all: if aliasing them would pass the
+   * {@link #setAliasLimit limit}, none is aliased and the fragment must be
+   * kept, since later references to its IDs will be given this rewriter's
+   * own suffix.
+   *
+   * @param ids The unsuffixed IDs.
+   * @param otherSuffix The suffix of the other input.
+   * @return True if the IDs were aliased, false if the limit was reached.
+   */
+  public boolean alias(Collection<String> ids, String otherSuffix) {
+    if (aliases.size() + ids.size() > aliasLimit) {
+      return false;
+    }
+    for (String id : ids) {
+      aliases.put(id, otherSuffix);
+    }
+    return true;
+  }
+
+  /**
+   * Determines whether an element has an ID value as its content.
+   *
+   * @param localName The local name of the element.
+   * @return True if the element's content is an ID value.
+   */
+  public boolean isIdElement(String localName) {
+    return idElements.contains(localName);
+  }
+
+  /**
+   * Supplies the value to be written for an attribute: the input value,
+   * with the suffix added if the attribute holds an ID value.
+   *
+   * @param localName The local name of the attribute.
+   * @param value The input value of the attribute.
+   * @return The output value of the attribute.
+   */
+  public String rewriteAttribute(String localName, String value) {
+    if (!isIdAttribute(localName)) {
+      return value;
+    }
+    this.value.setLength(0);
+    this.value.append(value);
+    String alias = aliases.isEmpty()? null : aliases.get(value);
+    if (alias == null) {
+      this.value.append(suffixCharacters);
+    }
+    else {
+      this.value.append(alias);
+    }
+    return this.value.toString();
+  }
+
+  /**
+   * Notes the start of an element. If the element holds an ID value, its
+   * content is collected from here until the element ends.
+   *
+   * @param localName The local name of the element.
+   */
+  public void startElement(String localName) {
+    inIdElement = isIdElement(localName);
+    contentLength = 0;
+  }
+
+  /**
+   * Collects character content if inside an element holding an ID value.
+   *
+   * @param ch The characters.
+   * @param start The index of the first character in the array.
+   * @param length The number of characters.
+   * @return True if the characters were collected, false if they should be
+   * written unchanged.
+   */
+  public boolean characters(char[] ch, int start, int length) {
+    if (!inIdElement) {
+      return false;
+    }
+    if (contentLength + length > content.length) {
+      content = Arrays.copyOf(content, Math.max(2 * content.length, contentLength + length));
+    }
+    System.arraycopy(ch, start, content, contentLength, length);
+    contentLength += length;
+    return true;
+  }
+
+  /**
+   * Writes the collected content of an element holding an ID value, with
+   * its suffix. This is called just before the end of the element is written.
+   *
+   * @param localName The local name of the element.
+   * @param writer The writer for the output.
+   * @return The suffix written, or null if the element does not hold an ID value.
+   * @throws XMLStreamException If the content cannot be written.
+   */
+  public String endElement(String localName, XMLStreamWriter writer) throws XMLStreamException {
+    if (!inIdElement || !isIdElement(localName)) {
+      inIdElement = false;
+      return null;
+    }
+    inIdElement = false;
+    writer.writeCharacters(content, 0, contentLength);
+    String alias = aliases.isEmpty()? null : aliases.get(new String(content, 0, contentLength).trim());
+    if (alias == null) {
+      writer.writeCharacters(suffixCharacters, 0, suffixCharacters.length);
+      return suffix;
+    }
+    else {
+      writer.writeCharacters(alias);
+      return alias;
+    }
+  }
+
+  private static Set<String> names(String... names) {
+    return names(Arrays.asList(names));
+  }
+
+  private static Set<String> names(Collection<String> names) {
+    return Collections.unmodifiableSet(new HashSet<String>(names));
+  }
+
+}
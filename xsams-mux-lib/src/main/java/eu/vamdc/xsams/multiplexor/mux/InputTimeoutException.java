@@ -0,0 +1,37 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Reports that an input of a job was not read within the job's deadline.
+ * See {@link Collator#setDeadline}.
+ * 
+ * @author Guy Rixon
+ */
+public class InputTimeoutException extends IOException {
+  
+  private final URL input;
+  
+  /**
+   * Constructs an exception for an input.
+   * 
+   * @param u The URL of the input; null for an input in a file.
+   * @param milliseconds The deadline that was missed.
+   */
+  public InputTimeoutException(URL u, long milliseconds) {
+    super(((u == null)? "An input file" : "Input " + u) + 
+          " was not read within the deadline of " + milliseconds + " ms");
+    input = u;
+  }
+  
+  /**
+   * Reveals the input that was not read in time.
+   * 
+   * @return The URL, or null for an input in a file.
+   */
+  public URL getInput() {
+    return input;
+  }
+  
+}
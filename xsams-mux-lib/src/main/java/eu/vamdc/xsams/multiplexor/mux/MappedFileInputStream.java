@@ -0,0 +1,242 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A stream reading a file through memory mapping. The file is mapped in
+ * windows of fixed size, one at a time, so that files larger than a single
+ * mapping allows (2 GB) can be read, and so that the address space taken
+ * is bounded. Reads copy from the mapped window without a system call;
+ * the operating system pages the file in as it is read.
+ * <p>
+ * The stream supports mark and reset, which need no buffer, so it need
+ * not be wrapped in a BufferedInputStream.
+ * <p>
+ * The platform releases a mapping only when the buffer is collected as
+ * garbage, not when the stream is closed. On Linux a file that is still
+ * mapped can be deleted, but on Windows the deletion fails until the
+ * mapping is released.
+ *
+ * @author Guy Rixon
+ */
+class MappedFileInputStream extends InputStream {
+
+  /**
+   * The size of the mapped windows.
+   */
+  static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+  /**
+   * The size below which files are read without mapping; for a small file
+   * the cost of mapping outweighs the saving.
+   */
+  static final long MAPPING_THRESHOLD = 1024L * 1024L;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  private final long length;
+
+  private final int windowSize;
+
+  /**
+   * The mapped part of the file; null before the first read.
+   */
+  private MappedByteBuffer window;
+
+  /**
+   * The position in the file of the start of the window.
+   */
+  private long windowStart;
+
+  private long mark;
+
+  private volatile boolean closed;
+
+  /**
+   * Constructs a stream with the default window size.
+   *
+   * @param f The file.
+   * @throws FileNotFoundException If the file cannot be opened.
+   * @throws IOException If the length of the file cannot be read.
+   */
+  MappedFileInputStream(File f) throws IOException {
+    this(f, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Constructs a stream with a given window size.
+   *
+   * @param f The file.
+   * @param size The size of the window (must be positive).
+   * @throws FileNotFoundException If the file cannot be opened.
+   * @throws IOException If the length of the file cannot be read.
+   */
+  MappedFileInputStream(File f, int size) throws IOException {
+    if (size < 1) {
+      throw new IllegalArgumentException("Window size must be positive");
+    }
+    file = new RandomAccessFile(f, "r");
+    channel = file.getChannel();
+    try {
+      length = channel.size();
+    }
+    catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    windowSize = size;
+    window = null;
+    windowStart = 0L;
+    mark = 0L;
+    closed = false;
+  }
+
+  /**
+   * Opens a file for reading, through mapping if the file is large enough
+   * to gain from it.
+   *
+   * @param f The file.
+   * @return The stream; not buffered if the file is small.
+   * @throws FileNotFoundException If the file cannot be opened.
+   */
+  static InputStream open(File f) throws FileNotFoundException {
+    if (f.length() >= MAPPING_THRESHOLD) {
+      try {
+        return new MappedFileInputStream(f);
+      }
+      catch (FileNotFoundException e) {
+        throw e;
+      }
+      catch (IOException e) {
+        // The file cannot be mapped; read it normally.
+      }
+    }
+    return new FileInputStream(f);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureWindow()) {
+      return -1;
+    }
+    return window.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureWindow()) {
+      return -1;
+    }
+    int n = Math.min(len, window.remaining());
+    window.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    checkOpen();
+    if (n <= 0L) {
+      return 0L;
+    }
+    long p = getPosition();
+    long s = Math.min(n, length - p);
+    seek(p + s);
+    return s;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkOpen();
+    return (int) Math.min(Integer.MAX_VALUE, length - getPosition());
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readLimit) {
+    mark = getPosition();
+  }
+
+  @Override
+  public void reset() throws IOException {
+    checkOpen();
+    seek(mark);
+  }
+
+  /**
+   * Closes the file. A read in another thread fails at its next call.
+   *
+   * @throws IOException If the file cannot be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    file.close();
+  }
+
+  private long getPosition() {
+    return (window == null)? windowStart : windowStart + window.position();
+  }
+
+  /**
+   * Moves to a position in the file. If the position is outside the 
+   * current window, the window is dropped and the next read maps another.
+   *
+   * @param p The position.
+   */
+  private void seek(long p) {
+    if (window != null && p >= windowStart && p <= windowStart + window.limit()) {
+      window.position((int) (p - windowStart));
+    }
+    else {
+      window = null;
+      windowStart = p;
+    }
+  }
+
+  /**
+   * Ensures that the window has bytes to read, mapping the next window if
+   * the current one is exhausted.
+   *
+   * @return True if there are bytes to read; false at the end of the file.
+   * @throws IOException If the stream is closed or the window cannot be mapped.
+   */
+  private boolean ensureWindow() throws IOException {
+    checkOpen();
+    if (window != null && window.hasRemaining()) {
+      return true;
+    }
+    long start = getPosition();
+    if (start >= length) {
+      return false;
+    }
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, length - start));
+    windowStart = start;
+    return true;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("The stream is closed");
+    }
+  }
+
+}
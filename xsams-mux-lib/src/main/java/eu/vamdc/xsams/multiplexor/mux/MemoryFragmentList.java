@@ -8,14 +8,29 @@ package eu.vamdc.xsams.multiplexor.mux;
 import java.util.ArrayList;
 
 /**
+ * A list of fragments held entirely in memory. The list is unbounded and
+ * may be read any number of times, but only after all the contributors
+ * have finished.
  *
  * @author Guy Rixon
  */
 public class MemoryFragmentList extends ArrayList<Fragment> implements FragmentList {
-  
+
   @Override
   public synchronized boolean add(Fragment f) {
     return super.add(f);
   }
 
+  /**
+   * Does nothing: the list does not track its contributors.
+   */
+  @Override
+  public void finish() {
+  }
+
+  @Override
+  public synchronized void discard() {
+    clear();
+  }
+
 }
@@ -0,0 +1,163 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A segment of output, written once and then copied, once, to its final
+ * destination. The segment is held in memory while it fits in a memory
+ * budget, and beyond that in a temporary file. The budget is a count of
+ * bytes shared with other segments and with the job's fragment lists (see
+ * {@link SpillingFragmentList}), so that together they keep to the job's
+ * limit; the bytes are returned to the budget when the segment spills or 
+ * is discarded.
+ * <p>
+ * The Collator uses segments to write sections of its output in parallel 
+ * and then join them in order.
+ * 
+ * @author Guy Rixon
+ */
+public class SegmentBuffer extends OutputStream {
+  
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+  
+  private final AtomicLong budget;
+  
+  /**
+   * The bytes charged to the budget by this segment.
+   */
+  private long charged;
+  
+  private ByteArrayOutputStream memory;
+  
+  private File file;
+  
+  private OutputStream fileOutput;
+  
+  /**
+   * Constructs an empty segment.
+   * 
+   * @param budget The bytes of memory remaining to the job; shared.
+   */
+  public SegmentBuffer(AtomicLong budget) {
+    this.budget      = budget;
+    this.charged     = 0L;
+    this.memory      = new ByteArrayOutputStream();
+    this.file        = null;
+    this.fileOutput  = null;
+  }
+  
+  /**
+   * Reveals whether the segment has moved to a file.
+   * 
+   * @return True if the segment is held in a file.
+   */
+  public boolean isSpilled() {
+    return file != null;
+  }
+  
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (file == null) {
+      if (budget.addAndGet(-len) >= 0L) {
+        charged += len;
+      }
+      else {
+        budget.addAndGet(len);
+        spill();
+      }
+    }
+    if (file == null) {
+      memory.write(b, off, len);
+    }
+    else {
+      fileOutput.write(b, off, len);
+    }
+  }
+  
+  /**
+   * Ends the writing of the segment.
+   * 
+   * @throws IOException If the file cannot be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (fileOutput != null) {
+      fileOutput.close();
+      fileOutput = null;
+    }
+  }
+  
+  /**
+   * Copies the segment to a stream. The segment must have been closed.
+   * 
+   * @param out The stream.
+   * @throws IOException If the segment cannot be read or the stream cannot be written.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    if (file == null) {
+      memory.writeTo(out);
+    }
+    else {
+      InputStream in = new BufferedInputStream(new FileInputStream(file), COPY_BUFFER_SIZE);
+      try {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        while (true) {
+          int n = in.read(buffer);
+          if (n == -1) {
+            break;
+          }
+          out.write(buffer, 0, n);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+  }
+  
+  /**
+   * Discards the content of the segment, deleting its file if any.
+   */
+  public void discard() {
+    try {
+      close();
+    }
+    catch (IOException e) {
+      // The file is being deleted anyway.
+    }
+    memory = new ByteArrayOutputStream();
+    release();
+    if (file != null) {
+      file.delete();
+      file = null;
+    }
+  }
+  
+  private void spill() throws IOException {
+    file = File.createTempFile("xsams-mux-", ".segment");
+    fileOutput = new BufferedOutputStream(new FileOutputStream(file), COPY_BUFFER_SIZE);
+    memory.writeTo(fileOutput);
+    memory = null;
+    release();
+  }
+  
+  private void release() {
+    budget.addAndGet(charged);
+    charged = 0L;
+  }
+  
+}
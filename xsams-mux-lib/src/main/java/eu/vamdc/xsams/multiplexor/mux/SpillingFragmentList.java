@@ -0,0 +1,147 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A list of fragments held in memory until a memory budget is spent, and in
+ * a file after that.
+ * <p>
+ * The budget is a count of bytes that may be shared by several lists, so
+ * that it applies to a whole job. Each fragment added to the list is charged
+ * against the budget at its {@link Fragment#getEstimatedSize estimated size}.
+ * When a fragment does not fit in what remains of the budget, the list opens
+ * a {@link FileFragmentList} and sends that fragment, and all later ones, to
+ * the file. Reading the list returns the fragments held in memory followed
+ * by those in the file, which is the order in which they were added.
+ *
+ * @author Guy Rixon
+ */
+public class SpillingFragmentList implements FragmentList {
+
+  private final AtomicLong budget;
+
+  private final MemoryFragmentList memory;
+
+  private FileFragmentList file;
+
+  /**
+   * The bytes charged to the budget by this list.
+   */
+  private long charged;
+
+  private boolean discarded;
+
+  /**
+   * Constructs an empty list.
+   *
+   * @param budget The bytes of memory remaining to the job; shared with other lists.
+   */
+  public SpillingFragmentList(AtomicLong budget) {
+    this.budget  = budget;
+    this.memory  = new MemoryFragmentList();
+    this.file    = null;
+    this.charged = 0L;
+    this.discarded = false;
+  }
+
+  /**
+   * Reveals whether the list has started to use a file.
+   *
+   * @return True if some fragments are in a file.
+   */
+  public synchronized boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * Adds a fragment to memory, if it fits in the budget, or to the file.
+   *
+   * @param f The fragment.
+   * @return True.
+   * @throws IllegalStateException If the file is needed but cannot be created.
+   * @throws IllegalStateException If the list has been discarded.
+   */
+  @Override
+  public synchronized boolean add(Fragment f) {
+    if (discarded) {
+      throw new IllegalStateException("The fragment list has been discarded");
+    }
+    if (file == null) {
+      long size = f.getEstimatedSize();
+      if (budget.addAndGet(-size) >= 0L) {
+        charged += size;
+        return memory.add(f);
+      }
+      budget.addAndGet(size);
+      try {
+        file = new FileFragmentList();
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to create a file for fragments", e);
+      }
+    }
+    return file.add(f);
+  }
+
+  /**
+   * Does nothing: the list does not track its contributors.
+   */
+  @Override
+  public void finish() {
+  }
+
+  /**
+   * Discards the fragments in memory, returning their share of the budget,
+   * and deletes the file.
+   */
+  @Override
+  public synchronized void discard() {
+    discarded = true;
+    budget.addAndGet(charged);
+    charged = 0L;
+    memory.discard();
+    if (file != null) {
+      file.discard();
+      file = null;
+    }
+  }
+
+  /**
+   * Supplies an iterator over the fragments in memory, followed by the
+   * fragments in the file.
+   *
+   * @return The iterator.
+   */
+  @Override
+  public synchronized Iterator<Fragment> iterator() {
+    final Iterator<Fragment> first  = memory.iterator();
+    final Iterator<Fragment> second = (file == null)? null : file.iterator();
+    return new Iterator<Fragment>() {
+
+      @Override
+      public boolean hasNext() {
+        return first.hasNext() || (second != null && second.hasNext());
+      }
+
+      @Override
+      public Fragment next() {
+        if (first.hasNext()) {
+          return first.next();
+        }
+        if (second != null) {
+          return second.next();
+        }
+        throw new NoSuchElementException();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,541 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A cache on disk of the documents read from HTTP URLs, shared by all the
+ * jobs that use it. A document is kept under a name derived from a digest
+ * of its URL, with a small file of metadata beside it. When the URL is read
+ * again, the server is asked whether the document has changed, using the
+ * ETag and Last-Modified headers that came with the cached copy; if it has
+ * not, the cached copy is read instead of downloading the document again.
+ * <p>
+ * A document is cached as it is read, so caching does not delay the
+ * parsing. The copy is kept only if the document is read to its end and
+ * the server gave it an ETag or a Last-Modified time, without which it
+ * could not be revalidated. Documents are kept as received, so documents
+ * sent with gzip encoding stay compressed on disk.
+ * <p>
+ * The cache holds at most a given number of bytes. When a new document
+ * takes it over that size, the documents least recently read are deleted.
+ * The order of use is kept in the modification times of the cached files,
+ * so the cache survives a restart.
+ * <p>
+ * URLs other than HTTP are read directly and are not cached. The cache is
+ * thread-safe; a document being read while it is replaced or evicted can
+ * still be read to its end on platforms that allow open files to be
+ * deleted.
+ *
+ * @author Guy Rixon
+ */
+public class UpstreamCache {
+
+  private static final String BODY_SUFFIX = ".body";
+
+  private static final String META_SUFFIX = ".meta";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The most bytes read, after the parser has finished with a document,
+   * to reach the end of the stream so that the document can be cached.
+   */
+  private static final long DRAIN_LIMIT = 64L * 1024L;
+
+  private final File directory;
+
+  private final long capacity;
+
+  /**
+   * The Downloader used when none is given.
+   */
+  private final Downloader downloader;
+
+  /**
+   * The cached documents keyed by the digest of their URLs, in order
+   * of use with the least recently used first.
+   */
+  private final Map<String,Entry> entries;
+
+  /**
+   * The total size of the cached documents.
+   */
+  private long size;
+
+  /**
+   * Constructs a cache in a given directory. Documents already cached
+   * in the directory are kept, subject to the capacity.
+   *
+   * @param dir The directory; created if it does not exist.
+   * @param bytes The greatest number of bytes of documents held.
+   * @throws IOException If the directory cannot be created.
+   */
+  public UpstreamCache(File dir, long bytes) throws IOException {
+    if (bytes < 1L) {
+      throw new IllegalArgumentException("Cache capacity must be positive");
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create the directory " + dir);
+    }
+    directory = dir;
+    capacity = bytes;
+    downloader = new Downloader();
+    entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    size = 0L;
+    load();
+  }
+
+  /**
+   * Opens a stream to read the document at a URL, either from the cache or
+   * from the server, using a Downloader of the cache's own.
+   *
+   * @param u The URL.
+   * @return The stream.
+   * @throws IOException If the URL cannot be read.
+   */
+  public InputStream open(URL u) throws IOException {
+    return open(u, downloader, true);
+  }
+
+  /**
+   * Opens a stream to read the document at a URL, either from the cache or
+   * from the server. Requests to the server, including those revalidating
+   * a cached copy, are made by a given Downloader and so are subject to its
+   * timeouts, retries and limits.
+   *
+   * @param u The URL.
+   * @param d The Downloader.
+   * @param limited True if the request must keep to the limit on
+   * connections per host; see {@link Downloader#open(URL, Map, boolean)}.
+   * @return The stream.
+   * @throws IOException If the URL cannot be read.
+   */
+  public InputStream open(URL u, Downloader d, boolean limited) throws IOException {
+    if (!u.getProtocol().equals("http") && !u.getProtocol().equals("https")) {
+      return d.open(u, Collections.<String,String>emptyMap(), limited).getInputStream();
+    }
+    String key = getKey(u);
+    Entry e = get(key);
+    Map<String,String> headers = new HashMap<String,String>();
+    if (e != null) {
+      if (e.etag != null) {
+        headers.put("If-None-Match", e.etag);
+      }
+      if (e.lastModified != null) {
+        headers.put("If-Modified-Since", e.lastModified);
+      }
+    }
+
+    Downloader.Download h = d.open(u, headers, limited);
+    int status = h.getStatus();
+    if (status == HttpURLConnection.HTTP_NOT_MODIFIED && e != null) {
+      h.close();
+      try {
+        InputStream in = MappedFileInputStream.open(e.body);
+        e.body.setLastModified(System.currentTimeMillis());
+        return in;
+      }
+      catch (FileNotFoundException x) {
+        // Evicted since it was found; fetch it again, unconditionally.
+        remove(key);
+        return open(u, d, limited);
+      }
+    }
+
+    InputStream in = h.getInputStream();
+    String etag = h.getHeader("ETag");
+    String lastModified = h.getHeader("Last-Modified");
+    String cacheControl = h.getHeader("Cache-Control");
+    if (status == HttpURLConnection.HTTP_OK &&
+        (etag != null || lastModified != null) &&
+        (cacheControl == null || !cacheControl.contains("no-store"))) {
+      return new CachingInputStream(in, u, key, etag, lastModified, h.getContentLength());
+    }
+    else {
+      return in;
+    }
+  }
+
+  /**
+   * Reveals the total size of the cached documents.
+   *
+   * @return The size in bytes.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Reveals the number of cached documents.
+   *
+   * @return The number of documents.
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Determines whether a URL is cached.
+   *
+   * @param u The URL.
+   * @return True if the document at the URL is cached.
+   */
+  public synchronized boolean contains(URL u) {
+    return entries.containsKey(getKey(u));
+  }
+
+  private synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  private synchronized void remove(String key) {
+    Entry e = entries.remove(key);
+    if (e != null) {
+      size -= e.length;
+      e.delete();
+    }
+  }
+
+  /**
+   * Enters a completed download in the cache, replacing any earlier copy,
+   * and evicts the documents least recently used until the cache is within
+   * its capacity.
+   *
+   * @param key The digest of the URL.
+   * @param download The temporary file holding the document.
+   * @param meta The metadata for the document.
+   * @throws IOException If the files cannot be moved into place.
+   */
+  private synchronized void put(String key, File download, Properties meta) throws IOException {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      size -= old.length;
+    }
+    Entry e = new Entry(key, meta);
+    File metaDownload = File.createTempFile(key, ".part", directory);
+    OutputStream out = new FileOutputStream(metaDownload);
+    try {
+      meta.store(out, null);
+    }
+    finally {
+      out.close();
+    }
+    Files.move(download.toPath(), e.body.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.move(metaDownload.toPath(), e.meta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    e.length = e.body.length();
+    entries.put(key, e);
+    size += e.length;
+
+    Iterator<Entry> i = entries.values().iterator();
+    while (size > capacity && i.hasNext()) {
+      Entry eldest = i.next();
+      i.remove();
+      size -= eldest.length;
+      eldest.delete();
+    }
+  }
+
+  /**
+   * Reads the index of a cache left in the directory by an earlier instance.
+   * Entries whose files are incomplete are deleted, as are the remains of
+   * interrupted downloads.
+   */
+  private synchronized void load() {
+    List<Entry> found = new ArrayList<Entry>();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(".part")) {
+        f.delete();
+      }
+      else if (name.endsWith(META_SUFFIX)) {
+        String key = name.substring(0, name.length() - META_SUFFIX.length());
+        try {
+          Properties meta = new Properties();
+          InputStream in = new FileInputStream(f);
+          try {
+            meta.load(in);
+          }
+          finally {
+            in.close();
+          }
+          Entry e = new Entry(key, meta);
+          if (e.body.exists()) {
+            e.length = e.body.length();
+            found.add(e);
+          }
+          else {
+            f.delete();
+          }
+        }
+        catch (IOException x) {
+          f.delete();
+        }
+      }
+    }
+    Collections.sort(found, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        long ta = a.body.lastModified();
+        long tb = b.body.lastModified();
+        return (ta < tb)? -1 : ((ta == tb)? 0 : 1);
+      }
+    });
+    for (Entry e : found) {
+      entries.put(e.key, e);
+      size += e.length;
+    }
+    Iterator<Entry> i = entries.values().iterator();
+    while (size > capacity && i.hasNext()) {
+      Entry eldest = i.next();
+      i.remove();
+      size -= eldest.length;
+      eldest.delete();
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(BODY_SUFFIX) &&
+          !entries.containsKey(name.substring(0, name.length() - BODY_SUFFIX.length()))) {
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Forms the key for a URL: the hexadecimal SHA-256 digest of its text.
+   *
+   * @param u The URL.
+   * @return The key.
+   */
+  private static String getKey(URL u) {
+    try {
+      byte[] d = MessageDigest.getInstance("SHA-256").digest(u.toString().getBytes(UTF8));
+      StringBuilder sb = new StringBuilder(2 * d.length);
+      for (byte b : d) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+
+  /**
+   * One cached document.
+   */
+  private class Entry {
+
+    final String key;
+
+    final File body;
+
+    final File meta;
+
+    final String etag;
+
+    final String lastModified;
+
+    long length;
+
+    Entry(String key, Properties p) {
+      this.key     = key;
+      body         = new File(directory, key + BODY_SUFFIX);
+      meta         = new File(directory, key + META_SUFFIX);
+      etag         = p.getProperty("etag");
+      lastModified = p.getProperty("lastModified");
+      length       = 0L;
+    }
+
+    void delete() {
+      meta.delete();
+      body.delete();
+    }
+
+  }
+
+
+  /**
+   * Passes through the document from the server, copying it to a temporary
+   * file. If the document is read to its end, and is of the length that the
+   * server gave, the copy is entered in the cache when the stream is closed.
+   */
+  private class CachingInputStream extends FilterInputStream implements Abortable {
+
+    private final URL url;
+
+    private final String key;
+
+    private final String etag;
+
+    private final String lastModified;
+
+    private final long expectedLength;
+
+    private final File download;
+
+    private final OutputStream copy;
+
+    private long length;
+
+    private boolean complete;
+
+    private boolean closed;
+
+    private volatile boolean aborted;
+
+    CachingInputStream(InputStream in, URL url, String key,
+                       String etag, String lastModified, long expectedLength)
+        throws IOException {
+      super(in);
+      this.url = url;
+      this.key = key;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expectedLength = expectedLength;
+      download = File.createTempFile(key, ".part", directory);
+      copy = new FileOutputStream(download);
+      length = 0L;
+      complete = false;
+      closed = false;
+      aborted = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        complete = true;
+      }
+      else {
+        copy.write(b);
+        length++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n == -1) {
+        complete = true;
+      }
+      else {
+        copy.write(b, off, n);
+        length += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] b = new byte[(int) Math.min(n, 8192L)];
+      int m = read(b, 0, b.length);
+      return (m < 0)? 0L : m;
+    }
+
+    /**
+     * Reads the trailing bytes, if any, that a parser leaves after the end
+     * of the document. Nothing is read beyond {@link #DRAIN_LIMIT}, so a
+     * stream abandoned early is not read to its end.
+     */
+    private void drain() {
+      byte[] b = new byte[8192];
+      long n = 0L;
+      try {
+        while (!complete && n < DRAIN_LIMIT) {
+          int m = read(b, 0, b.length);
+          if (m > 0) {
+            n += m;
+          }
+        }
+      }
+      catch (IOException e) {
+        complete = false;
+      }
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * Stops the download. The copy is not entered in the cache, as the
+     * document will not be read to its end.
+     */
+    @Override
+    public void abort() {
+      aborted = true;
+      if (in instanceof Abortable) {
+        ((Abortable) in).abort();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (!aborted) {
+          drain();
+        }
+        super.close();
+      }
+      finally {
+        copy.close();
+        if (complete && !aborted && (expectedLength < 0L || expectedLength == length)) {
+          Properties meta = new Properties();
+          meta.setProperty("url", url.toString());
+          if (etag != null) {
+            meta.setProperty("etag", etag);
+          }
+          if (lastModified != null) {
+            meta.setProperty("lastModified", lastModified);
+          }
+          try {
+            put(key, download, meta);
+          }
+          finally {
+            download.delete();
+          }
+        }
+        else {
+          download.delete();
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,77 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An executor that runs each task in a new virtual thread. Virtual threads
+ * cost little to create and to block, so this suits Analyzers that spend 
+ * most of their time waiting for slow remote inputs: a job may have 
+ * thousands of inputs in flight without a platform thread for each.
+ * <p>
+ * Virtual threads are provided by Java 21 and later. The library is built
+ * for older platforms, so the executor finds the virtual-thread API at
+ * run time; use {@link #isSupported} to check whether it is present.
+ * 
+ * @author Guy Rixon
+ */
+public class VirtualThreadExecutor implements Executor {
+  
+  /**
+   * The method Thread.startVirtualThread(Runnable), or null if the
+   * platform lacks it.
+   */
+  private static final Method START_VIRTUAL_THREAD = findStartMethod();
+  
+  /**
+   * Constructs an executor.
+   * 
+   * @throws UnsupportedOperationException If the platform has no virtual threads.
+   */
+  public VirtualThreadExecutor() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later; this is Java " + 
+                                              System.getProperty("java.version"));
+    }
+  }
+  
+  /**
+   * Determines whether the platform has virtual threads.
+   * 
+   * @return True if virtual threads are available.
+   */
+  public static boolean isSupported() {
+    return START_VIRTUAL_THREAD != null;
+  }
+  
+  /**
+   * Starts a virtual thread for a task.
+   * 
+   * @param r The task.
+   * @throws RejectedExecutionException If the thread cannot be started.
+   */
+  @Override
+  public void execute(Runnable r) {
+    try {
+      START_VIRTUAL_THREAD.invoke(null, r);
+    }
+    catch (IllegalAccessException e) {
+      throw new RejectedExecutionException("Failed to start a virtual thread", e);
+    }
+    catch (InvocationTargetException e) {
+      throw new RejectedExecutionException("Failed to start a virtual thread", e.getCause());
+    }
+  }
+  
+  private static Method findStartMethod() {
+    try {
+      return Thread.class.getMethod("startVirtualThread", Runnable.class);
+    }
+    catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+  
+}
@@ -1,7 +1,6 @@
 package eu.vamdc.xsams.multiplexor.mux;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
@@ -17,13 +16,13 @@ import javax.xml.stream.util.EventReaderDelegate;
  * The reader may be constructed on either a URL or a File as source of the
  * XML. When a file is used, that file may be marked as a cache file in
  * which case the file is deleted when the reader is closed.
+ * <p>
+ * The events are generated from an {@link XsamsStreamReader}, which handles
+ * the input and its resources.
  * 
  * @author Guy Rixon
  */
 public class XsamsEventReader extends EventReaderDelegate {
-  private final File cacheFile;
-  
-  private final boolean deleteFileOnClose;
   
   /**
    * Constructs a reader for data on a URL.
@@ -33,9 +32,7 @@ public class XsamsEventReader extends EventReaderDelegate {
    * @throws IOException If the URL cannot be read.
    */
   public XsamsEventReader(URL u) throws XMLStreamException, IOException {
-    super(XMLInputFactory.newFactory().createXMLEventReader(u.openStream()));
-    cacheFile = null;
-    deleteFileOnClose = false;
+    super(XMLInputFactory.newFactory().createXMLEventReader(new XsamsStreamReader(u)));
   }
   
   /**
@@ -47,23 +44,7 @@ public class XsamsEventReader extends EventReaderDelegate {
    * @throws XMLStreamException If the file cannot be read.
    */
   public XsamsEventReader(File file, boolean isCache) throws FileNotFoundException, XMLStreamException {
-    super(XMLInputFactory.newFactory().createXMLEventReader(new FileInputStream(file)));
-    cacheFile = file;
-    deleteFileOnClose = isCache;
-  }
-  
-  /**
-   * Frees the resources associated with the reader. If the data source
-   * was marked at construction as a cache file, deletes that file.
-   * 
-   * @throws XMLStreamException If the reader cannot close cleanly.
-   */
-  @Override
-  public void close() throws XMLStreamException {
-    super.close();
-    if (deleteFileOnClose) {
-      cacheFile.delete();
-    }
+    super(XMLInputFactory.newFactory().createXMLEventReader(new XsamsStreamReader(file, isCache)));
   }
 
 }
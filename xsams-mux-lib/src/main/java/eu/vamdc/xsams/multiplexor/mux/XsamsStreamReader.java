@@ -0,0 +1,256 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * A stream (cursor) reader for one XML input. The XML is parsed normally, and
+ * instances of this class behave as would XMLStreamReader. The differences
+ * in this class lie in the constructors and the resource management.
+ * <p>
+ * The reader may be constructed on either a URL or a File as source of the
+ * XML. When a file is used, that file may be marked as a cache file in
+ * which case the file is deleted when the reader is closed. Closing the
+ * reader also closes the underlying input stream. A large file is read
+ * through memory mapping; see {@link MappedFileInputStream}.
+ * <p>
+ * The input may be compressed with gzip, whatever its source. Compressed
+ * input is recognized by its first bytes, not by the name of the file or
+ * by the HTTP headers, and is decompressed as it is read. When reading
+ * from an HTTP URL, the reader asks the server for gzip encoding.
+ * <p>
+ * URLs are read by a {@link Downloader}, which applies timeouts and retries.
+ * <p>
+ * The cursor API lets a caller copy names, text and attribute values 
+ * straight to an XMLStreamWriter without creating an event object for each
+ * item of the input.
+ * 
+ * @author Guy Rixon
+ */
+public class XsamsStreamReader extends StreamReaderDelegate {
+  
+  private final InputStream input;
+  
+  /**
+   * The stream under the buffering and decompression of {@link #input}.
+   */
+  private final InputStream rawInput;
+  
+  private final File cacheFile;
+  
+  private final boolean deleteFileOnClose;
+  
+  /**
+   * The size of the buffer in front of the parser, which is also used to
+   * look for the signature of compressed input.
+   */
+  private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+  
+  /**
+   * The first two bytes of a gzip stream.
+   */
+  private static final int GZIP_MAGIC_0 = 0x1f;
+  private static final int GZIP_MAGIC_1 = 0x8b;
+  
+  /**
+   * Constructs a reader for data on a URL.
+   * 
+   * @param u The URL.
+   * @throws XMLStreamException If the URL cannot be read.
+   * @throws IOException If the URL cannot be read.
+   */
+  public XsamsStreamReader(URL u) throws XMLStreamException, IOException {
+    this(u, null, new Downloader(), true);
+  }
+  
+  /**
+   * Constructs a reader for data on a URL, read through a cache.
+   * 
+   * @param u The URL.
+   * @param cache The cache of upstream documents; null to read the URL directly.
+   * @throws XMLStreamException If the URL cannot be read.
+   * @throws IOException If the URL cannot be read.
+   */
+  public XsamsStreamReader(URL u, UpstreamCache cache) throws XMLStreamException, IOException {
+    this(u, cache, new Downloader(), true);
+  }
+  
+  /**
+   * Constructs a reader for data on a URL, fetched by a given Downloader 
+   * and optionally read through a cache.
+   * 
+   * @param u The URL.
+   * @param cache The cache of upstream documents; null to read the URL directly.
+   * @param d The Downloader.
+   * @param limited True if the download must keep to the Downloader's limit 
+   * on connections per host.
+   * @throws XMLStreamException If the URL cannot be read.
+   * @throws IOException If the URL cannot be read.
+   */
+  public XsamsStreamReader(URL u, UpstreamCache cache, Downloader d, boolean limited) 
+      throws XMLStreamException, IOException {
+    this(open(u, cache, d, limited), null, false);
+  }
+  
+  /**
+   * Constructs a reader for data in a file.
+   * 
+   * @param file The file.
+   * @param isCache If true, the file is deleted when the reader is closed.
+   * @throws FileNotFoundException If the file does not exist.
+   * @throws XMLStreamException If the file cannot be read.
+   */
+  public XsamsStreamReader(File file, boolean isCache) throws FileNotFoundException, XMLStreamException {
+    this(MappedFileInputStream.open(file), file, isCache);
+  }
+  
+  /**
+   * Constructs a reader for a stream already opened. This lets the caller
+   * {@link #abort(InputStream) abort} the stream while the reader is being 
+   * constructed, which involves reading the start of the stream.
+   * 
+   * @param raw The stream, as from {@link #open(URL, UpstreamCache, Downloader, boolean)}.
+   * @throws XMLStreamException If the stream cannot be read.
+   */
+  XsamsStreamReader(InputStream raw) throws XMLStreamException {
+    this(raw, null, false);
+  }
+  
+  private XsamsStreamReader(InputStream raw, File file, boolean isCache) throws XMLStreamException {
+    this(raw, prepare(raw), file, isCache);
+  }
+  
+  private XsamsStreamReader(InputStream raw, InputStream in, File file, boolean isCache) throws XMLStreamException {
+    super(XMLInputFactory.newFactory().createXMLStreamReader(in));
+    rawInput = raw;
+    input = in;
+    cacheFile = file;
+    deleteFileOnClose = isCache;
+  }
+  
+  /**
+   * Opens the stream for a URL.
+   * 
+   * @param u The URL.
+   * @param cache The cache of upstream documents; null to read the URL directly.
+   * @param d The Downloader.
+   * @param limited True if the download must keep to the Downloader's limit 
+   * on connections per host.
+   * @return The stream.
+   * @throws IOException If the URL cannot be read.
+   */
+  static InputStream open(URL u, UpstreamCache cache, Downloader d, boolean limited) throws IOException {
+    return (cache == null)? 
+        d.open(u, Collections.<String,String>emptyMap(), limited).getInputStream() : 
+        cache.open(u, d, limited);
+  }
+  
+  /**
+   * Prepares a stream for the parser.
+   * 
+   * @param raw The stream as read from the source.
+   * @return The stream, buffered and decompressed if necessary.
+   * @throws XMLStreamException If the stream cannot be read.
+   */
+  private static InputStream prepare(InputStream raw) throws XMLStreamException {
+    try {
+      return decompress(raw);
+    }
+    catch (IOException e) {
+      throw new XMLStreamException("Failed to read the input", e);
+    }
+  }
+  
+  /**
+   * Buffers a stream and, if it starts with the gzip signature, decompresses
+   * it. Any other stream is passed through. A {@link MappedFileInputStream}
+   * is not buffered, as its reads already come from memory.
+   * 
+   * @param raw The stream.
+   * @return The buffered stream, decompressed if necessary.
+   * @throws IOException If the stream cannot be read.
+   */
+  static InputStream decompress(InputStream raw) throws IOException {
+    try {
+      InputStream in = (raw instanceof MappedFileInputStream)? 
+          raw : new BufferedInputStream(raw, INPUT_BUFFER_SIZE);
+      in.mark(2);
+      int b0 = in.read();
+      int b1 = in.read();
+      in.reset();
+      if (b0 == GZIP_MAGIC_0 && b1 == GZIP_MAGIC_1) {
+        return new BufferedInputStream(new GZIPInputStream(in, INPUT_BUFFER_SIZE), INPUT_BUFFER_SIZE);
+      }
+      else {
+        return in;
+      }
+    }
+    catch (IOException e) {
+      raw.close();
+      throw e;
+    }
+  }
+  
+  /**
+   * Stops the reading of the input from another thread, so that a parser
+   * reading a slow source fails. For an input downloaded from an HTTP URL,
+   * the next read fails (see {@link Downloader.Download#abort}); for other
+   * inputs, the stream is closed. The reader must still be closed 
+   * afterwards.
+   */
+  public void abort() {
+    abort(rawInput);
+  }
+  
+  /**
+   * Stops the reading of a stream from another thread.
+   * 
+   * @param raw The stream, as opened from the source.
+   */
+  static void abort(InputStream raw) {
+    if (raw instanceof Abortable) {
+      ((Abortable) raw).abort();
+    }
+    else {
+      try {
+        raw.close();
+      }
+      catch (IOException e) {
+        // The stream is finished either way.
+      }
+    }
+  }
+  
+  /**
+   * Frees the resources associated with the reader, including the input
+   * stream. If the data source was marked at construction as a cache file, 
+   * deletes that file.
+   * 
+   * @throws XMLStreamException If the reader cannot close cleanly.
+   */
+  @Override
+  public void close() throws XMLStreamException {
+    try {
+      super.close();
+      input.close();
+    }
+    catch (IOException e) {
+      throw new XMLStreamException("Failed to close the input", e);
+    }
+    finally {
+      if (deleteFileOnClose) {
+        cacheFile.delete();
+      }
+    }
+  }
+
+}
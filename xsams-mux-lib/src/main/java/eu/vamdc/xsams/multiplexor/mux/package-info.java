@@ -44,5 +44,11 @@
  * <p>
  * A FragmentQueue may be implemented to store the queued data in memory, or
  * in a file. The file implementation is cumbersome but allows a longer queue.
+ * When the Collator does not run in pipeline, it holds fragments in memory 
+ * until the job's memory budget is spent and then spills them to files (see
+ * SpillingFragmentList and FileFragmentList).
+ * <p>
+ * Optionally, the Analyzers drop sources, methods and species already 
+ * written from other inputs, consulting a FragmentIndex shared by the job.
  */
 package eu.vamdc.xsams.multiplexor.mux;
@@ -2,18 +2,31 @@ package eu.vamdc.xsams.multiplexor.mux;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 import org.xml.sax.helpers.DefaultHandler;
 
 
@@ -67,6 +80,321 @@ public class CollatorTest {
   }
   
   
+  @Test
+  public void testPipelinedRead() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    Collator sut = new Collator(getDefaultInputsInFiles(), getDefaultInputs(), out);
+    sut.setPipelined(true);
+    sut.setQueueCapacity(1);
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    assertEquals(0, sut.getContributorCount());
+    validateXsamsOutput(sink);
+  }
+  
+  @Test
+  public void testSpilledRead() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    Collator sut = new Collator(new HashSet<File>(0), getDefaultInputs(), out);
+    sut.setMemoryBudget(0L);
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+  }
+  
+  @Test
+  public void testNamespacesPreserved() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    Collator sut = new Collator(new HashSet<File>(0), getDefaultInputs(), out);
+    sut.collate();
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document d = factory.newDocumentBuilder().parse(sink);
+    assertEquals(Collator.XSAMS_NS_URI, d.getDocumentElement().getNamespaceURI());
+    NodeList sources = d.getElementsByTagNameNS("http://vamdc.org/xml/xsams/0.3", "Source");
+    assertEquals(2, sources.getLength());
+    NodeList transitions = d.getElementsByTagNameNS("http://vamdc.org/xml/xsams/0.3", "RadiativeTransition");
+    assertTrue(transitions.getLength() > 0);
+  }
+  
+  @Test
+  public void testParallelTranscription() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    Collator sut = new Collator(new HashSet<File>(0), getDefaultInputs(), out);
+    sut.setParallelTranscription(true);
+    sut.setMemoryBudget(0L);
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document d = factory.newDocumentBuilder().parse(sink);
+    assertEquals(1, d.getElementsByTagNameNS(Collator.XSAMS_NS_URI, "Sources").getLength());
+    assertEquals(1, d.getElementsByTagNameNS(Collator.XSAMS_NS_URI, "Radiative").getLength());
+    NodeList sources = d.getElementsByTagNameNS("http://vamdc.org/xml/xsams/0.3", "Source");
+    assertEquals(2, sources.getLength());
+  }
+
+  @Test
+  public void testDeduplication() throws Exception {
+    String ns = "http://vamdc.org/xml/xsams/0.3";
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+
+    File sink = new File("target", "collator-test.xml");
+    Collator single = new Collator(new HashSet<File>(0), getDefaultInputs(), new FileOutputStream(sink));
+    single.collate();
+    Document expected = factory.newDocumentBuilder().parse(sink);
+
+    // Each input is given twice, once as a file and once as a URL.
+    Collator sut = new Collator(getDefaultInputsInFiles(), getDefaultInputs(), new FileOutputStream(sink));
+    sut.setDeduplicated(true);
+    sut.setPipelined(true);
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+    Document d = factory.newDocumentBuilder().parse(sink);
+    for (String tag : new String[] {"Source", "Method", "Atom"}) {
+      assertEquals(tag,
+                   expected.getElementsByTagNameNS(ns, tag).getLength(),
+                   d.getElementsByTagNameNS(ns, tag).getLength());
+    }
+    assertEquals(2 * expected.getElementsByTagNameNS(ns, "RadiativeTransition").getLength(),
+                 d.getElementsByTagNameNS(ns, "RadiativeTransition").getLength());
+
+    // Every reference must lead to a surviving state.
+    Set<String> states = new HashSet<String>();
+    NodeList l = d.getElementsByTagNameNS(ns, "AtomicState");
+    for (int i = 0; i < l.getLength(); i++) {
+      states.add(((Element) l.item(i)).getAttribute("stateID"));
+    }
+    l = d.getElementsByTagNameNS(ns, "UpperStateRef");
+    for (int i = 0; i < l.getLength(); i++) {
+      assertTrue(states.contains(l.item(i).getTextContent().trim()));
+    }
+  }
+
+  @Test
+  public void testPartialResult() throws Exception {
+    String ns = "http://vamdc.org/xml/xsams/0.3";
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+
+    File sink = new File("target", "collator-test.xml");
+    Collator whole = new Collator(new HashSet<File>(0), getDefaultInputs(), new FileOutputStream(sink));
+    whole.collate();
+    Document expected = factory.newDocumentBuilder().parse(sink);
+
+    for (boolean pipelined : new boolean[] {false, true}) {
+      Set<URL> inputs = getDefaultInputs();
+      inputs.add(new File("target", "no-such-input.xml").toURI().toURL());
+      Collator sut = new Collator(new HashSet<File>(0), inputs, new FileOutputStream(sink));
+      sut.setPartial(true);
+      sut.setPipelined(pipelined);
+      sut.collate();
+      assertEquals(0, sut.getErrors().size());
+      assertEquals(1, sut.getInputErrors().size());
+      assertEquals(1, sut.getFailedInputCount());
+      validateXsamsOutput(sink);
+      Document d = factory.newDocumentBuilder().parse(sink);
+      assertEquals(expected.getElementsByTagNameNS(ns, "RadiativeTransition").getLength(),
+                   d.getElementsByTagNameNS(ns, "RadiativeTransition").getLength());
+      String text = new String(Files.readAllBytes(sink.toPath()), "UTF-8");
+      assertTrue(text.contains("no-such-input.xml was left out of this output"));
+    }
+
+    // Without partial mode, the failure fails the job.
+    Set<URL> inputs = getDefaultInputs();
+    inputs.add(new File("target", "no-such-input.xml").toURI().toURL());
+    Collator strict = new Collator(new HashSet<File>(0), inputs, new FileOutputStream(sink));
+    try {
+      strict.collate();
+      fail("The collation should have failed");
+    }
+    catch (Exception e) {
+      assertEquals(1, strict.getInputErrors().size());
+      assertFalse(strict.getErrors().isEmpty());
+    }
+  }
+
+  @Test
+  public void testPartialResultWithDeduplication() throws Exception {
+    String ns = "http://vamdc.org/xml/xsams/0.3";
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+
+    // A copy of an input cut off in its processes fails after its species
+    // are parsed, and those species may be the ones that survive.
+    byte[] whole = Files.readAllBytes(transcribeResourceToFile("/chianti-ti.xml").toPath());
+    int cut = new String(whole, "UTF-8").indexOf("<Radiative>") + 20000;
+    File truncated = File.createTempFile("truncated-", ".xml", new File("target"));
+    Files.write(truncated.toPath(), Arrays.copyOf(whole, cut));
+
+    File sink = new File("target", "collator-test.xml");
+    Set<URL> inputs = getDefaultInputs();
+    inputs.add(truncated.toURI().toURL());
+    Collator sut = new Collator(new HashSet<File>(0), inputs, new FileOutputStream(sink));
+    sut.setDeduplicated(true);
+    sut.setPartial(true);
+    sut.collate();
+    assertEquals(1, sut.getFailedInputCount());
+    validateXsamsOutput(sink);
+
+    // Every reference must lead to a surviving state.
+    Document d = factory.newDocumentBuilder().parse(sink);
+    Set<String> states = new HashSet<String>();
+    NodeList l = d.getElementsByTagNameNS(ns, "AtomicState");
+    for (int i = 0; i < l.getLength(); i++) {
+      states.add(((Element) l.item(i)).getAttribute("stateID"));
+    }
+    l = d.getElementsByTagNameNS(ns, "UpperStateRef");
+    assertTrue(l.getLength() > 0);
+    for (int i = 0; i < l.getLength(); i++) {
+      assertTrue(states.contains(l.item(i).getTextContent().trim()));
+    }
+  }
+
+  @Test
+  public void testPartialResultNeedsOneInput() throws Exception {
+    Set<URL> inputs = new HashSet<URL>();
+    inputs.add(new File("target", "no-such-input.xml").toURI().toURL());
+    Collator sut = new Collator(new HashSet<File>(0), inputs, new ByteArrayOutputStream());
+    sut.setPartial(true);
+    try {
+      sut.collate();
+      fail("The collation should have failed");
+    }
+    catch (Exception e) {
+      assertEquals(1, sut.getErrors().size());
+    }
+  }
+
+  @Test
+  public void testCompressedOutput() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    File compressed = new File("target", "collator-test.xml.gz");
+    Collator sut = new Collator(new HashSet<File>(0), getDefaultInputs(), new FileOutputStream(sink));
+    sut.setCompressedOutput(new FileOutputStream(compressed));
+    sut.setPipelined(true);
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+    assertTrue(compressed.length() < sink.length());
+    InputStream plain = new BufferedInputStream(new FileInputStream(sink));
+    InputStream unzipped = new BufferedInputStream(new GZIPInputStream(new FileInputStream(compressed)));
+    try {
+      while (true) {
+        int c = plain.read();
+        assertEquals(c, unzipped.read());
+        if (c == -1) {
+          break;
+        }
+      }
+    }
+    finally {
+      plain.close();
+      unzipped.close();
+    }
+  }
+
+  @Test
+  public void testCompressedInputs() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    Set<File> files = new HashSet<File>(1);
+    files.add(compress(transcribeResourceToFile("/chianti-ti.xml")));
+    Set<URL> urls = new HashSet<URL>(1);
+    urls.add(compress(transcribeResourceToFile("/chianti-fe.xml")).toURI().toURL());
+    Collator sut = new Collator(files, urls, out);
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document d = factory.newDocumentBuilder().parse(sink);
+    assertEquals(2, d.getElementsByTagNameNS("http://vamdc.org/xml/xsams/0.3", "Source").getLength());
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    assumeTrue(VirtualThreadExecutor.isSupported());
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    Collator sut = new Collator(new HashSet<File>(0), getDefaultInputs(), out);
+    sut.useVirtualThreads();
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+  }
+  
+  @Test
+  public void testPrefetch() throws Exception {
+    File sink = new File("target", "collator-test.xml");
+    OutputStream out  = new FileOutputStream(sink);
+    File spool = new File("target", "collator-spool");
+    Set<URL> urls = new HashSet<URL>(2);
+    urls.add(this.getClass().getResource("/chianti-ti.xml"));
+    urls.add(compress(transcribeResourceToFile("/chianti-fe.xml")).toURI().toURL());
+    ExecutorService parser = Executors.newFixedThreadPool(1);
+    try {
+      Collator sut = new Collator(urls, out);
+      sut.setPrefetch(spool, parser);
+      sut.setParallelTranscription(true);
+      sut.collate();
+      assertEquals(0, sut.getErrors().size());
+    }
+    finally {
+      parser.shutdown();
+    }
+    validateXsamsOutput(sink);
+    assertEquals(0, spool.list().length); // Spool files are deleted after parsing.
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document d = factory.newDocumentBuilder().parse(sink);
+    assertEquals(2, d.getElementsByTagNameNS("http://vamdc.org/xml/xsams/0.3", "Source").getLength());
+  }
+  
+  @Test
+  public void testOutOfOrderInput() throws Exception {
+    // Move the Sources of one input to the end of the document.
+    String text = new String(Files.readAllBytes(transcribeResourceToFile("/chianti-fe.xml").toPath()), "UTF-8");
+    int start = text.indexOf("<Sources>");
+    int end = text.indexOf("</Sources>") + "</Sources>".length();
+    int close = text.indexOf("</XSAMSData>");
+    text = text.substring(0, start) + text.substring(end, close) + text.substring(start, end) + text.substring(close);
+    File disordered = new File("target", "chianti-fe-disordered.xml");
+    Files.write(disordered.toPath(), text.getBytes("UTF-8"));
+    Set<URL> urls = new HashSet<URL>(2);
+    urls.add(this.getClass().getResource("/chianti-ti.xml"));
+    urls.add(disordered.toURI().toURL());
+    
+    // In a batch job the order of the input does not matter.
+    File sink = new File("target", "collator-test.xml");
+    Collator sut = new Collator(urls, new FileOutputStream(sink));
+    sut.collate();
+    assertEquals(0, sut.getErrors().size());
+    validateXsamsOutput(sink);
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document d = factory.newDocumentBuilder().parse(sink);
+    assertEquals(2, d.getElementsByTagNameNS("http://vamdc.org/xml/xsams/0.3", "Source").getLength());
+    
+    // In pipeline it does.
+    Collator pipelined = new Collator(urls, new ByteArrayOutputStream());
+    pipelined.setPipelined(true);
+    try {
+      pipelined.collate();
+      fail("The pipelined job should have failed");
+    }
+    catch (Exception e) {
+      assertEquals(1, pipelined.getErrors().size());
+    }
+  }
+  
   @Test
   public void testMixedRead() throws Exception {
     File sink = new File("target", "collator-test.xml");
@@ -118,6 +446,25 @@ public class CollatorTest {
   }
   
   
+  private File compress(File plain) throws IOException {
+    File f = new File(plain.getPath() + ".gz");
+    InputStream in = new BufferedInputStream(new FileInputStream(plain));
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(f));
+    try {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return f;
+    }
+    finally {
+      in.close();
+      out.close();
+      plain.delete();
+    }
+  }
+  
   private void validateXsamsOutput(File xsams) throws Exception {
     SAXParserFactory factory = SAXParserFactory.newInstance();
     factory.setValidating(true);
@@ -0,0 +1,370 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * JUnit-4 tests for {@link Downloader}, and for the deadline of a
+ * {@link Collator} that uses it. The upstream documents are served by an
+ * HTTP server in the test.
+ *
+ * @author Guy Rixon
+ */
+public class DownloaderTest {
+
+  private HttpServer server;
+
+  private AtomicInteger requests;
+
+  /**
+   * Holds back the responses for /slow until counted down.
+   */
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() throws Exception {
+    requests = new AtomicInteger(0);
+    release = new CountDownLatch(1);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange x) throws IOException {
+        int n = requests.incrementAndGet();
+        String path = x.getRequestURI().getPath();
+        if (path.equals("/flaky") && n < 3) {
+          x.sendResponseHeaders(503, -1);
+        }
+        else if (path.equals("/missing")) {
+          x.sendResponseHeaders(404, -1);
+        }
+        else if (path.equals("/slow")) {
+          x.sendResponseHeaders(200, 0);
+          OutputStream out = x.getResponseBody();
+          out.write("<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\">".getBytes("UTF-8"));
+          out.flush();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException e) {
+            // Finish the response.
+          }
+          try {
+            out.write("</XSAMSData>".getBytes("UTF-8"));
+            out.close();
+          }
+          catch (IOException e) {
+            // The client has gone.
+          }
+        }
+        else if (path.equals("/big")) {
+          byte[] body = new byte[20000];
+          x.sendResponseHeaders(200, body.length);
+          OutputStream out = x.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+        else {
+          byte[] body = ("<doc>" + path + "</doc>").getBytes("UTF-8");
+          x.sendResponseHeaders(200, body.length);
+          OutputStream out = x.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+        x.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    server.stop(0);
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setBackoff(10L);
+    assertEquals("<doc>/flaky</doc>", read(sut.open(getUrl("/flaky"))));
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testRetriesAreBounded() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setBackoff(10L);
+    sut.setRetries(1);
+    try {
+      sut.open(getUrl("/flaky"));
+      fail("The request should have failed");
+    }
+    catch (IOException e) {
+      assertEquals(2, requests.get());
+    }
+  }
+
+  @Test
+  public void testClientErrorIsNotRetried() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setBackoff(10L);
+    try {
+      sut.open(getUrl("/missing"));
+      fail("The request should have failed");
+    }
+    catch (Downloader.HttpStatusException e) {
+      assertEquals(404, e.getStatus());
+      assertEquals(1, requests.get());
+    }
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setReadTimeout(200);
+    InputStream in = sut.open(getUrl("/slow"));
+    try {
+      read(in);
+      fail("The read should have timed out");
+    }
+    catch (SocketTimeoutException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testConnectionsPerHost() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setConnectionsPerHost(1);
+    sut.setQueueTimeout(200L);
+    InputStream first = sut.open(getUrl("/a"));
+    try {
+      sut.open(getUrl("/b"));
+      fail("The second request should have waited for the first");
+    }
+    catch (SocketTimeoutException e) {
+      // Expected.
+    }
+
+    // A request outside the limit does not wait.
+    Downloader.Download d = sut.open(getUrl("/c"), Collections.<String,String>emptyMap(), false);
+    d.close();
+
+    // Closing the first stream frees its connection.
+    assertEquals("<doc>/a</doc>", read(first));
+    assertEquals("<doc>/b</doc>", read(sut.open(getUrl("/b"))));
+  }
+
+  @Test
+  public void testJobsTakeTurns() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setConnectionsPerHost(2);
+    Downloader jobA = sut.forJob();
+    Downloader jobB = sut.forJob();
+    HostGate gate = sut.getGate(getUrl("/"));
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    InputStream a1 = jobA.open(getUrl("/a1"));
+    InputStream a2 = jobA.open(getUrl("/a2"));
+    Thread a3 = openLater(jobA, "/a3", order);
+    waitForQueue(gate, 1);
+    Thread b1 = openLater(jobB, "/b1", order);
+    waitForQueue(gate, 2);
+
+    // Job A has more connections than job B, so B goes first.
+    read(a1);
+    b1.join(5000L);
+    assertEquals(1, order.size());
+    assertEquals("/b1", order.get(0));
+    assertEquals(1, gate.getHeld(jobA));
+    assertEquals(1, gate.getHeld(jobB));
+
+    read(a2);
+    a3.join(5000L);
+    assertEquals(2, order.size());
+    assertEquals("/a3", order.get(1));
+  }
+
+  @Test
+  public void testReservation() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setConnectionsPerHost(1);
+    sut.setQueueTimeout(5000L);
+    Downloader job = sut.forJob();
+    Downloader input1 = job.forInput();
+    Downloader input2 = job.forInput();
+    HostGate gate = sut.getGate(getUrl("/"));
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    // The host is busy, so the reservation waits without holding a thread.
+    InputStream first = input1.open(getUrl("/a"));
+    input2.reserve(getUrl("/b"), note(events, "reserved"), note(events, "timed out"));
+    assertEquals(1, gate.getWaiting());
+    assertTrue(events.isEmpty());
+
+    // Freeing the connection passes it to the reservation, which the 
+    // input's request then uses without waiting.
+    assertEquals("<doc>/a</doc>", read(first));
+    assertEquals("[reserved]", events.toString());
+    assertEquals(1, gate.getHeld(job));
+    assertEquals("<doc>/b</doc>", read(input2.open(getUrl("/b"))));
+    assertEquals(0, gate.getHeld(job));
+
+    // A reservation not used is given back.
+    input1.reserve(getUrl("/c"), note(events, "reserved"), note(events, "timed out"));
+    assertEquals(1, gate.getHeld(job));
+    input1.releaseReservation();
+    assertEquals(0, gate.getHeld(job));
+
+    // A reservation that waits too long times out.
+    sut.setQueueTimeout(200L);
+    events.clear();
+    InputStream second = input1.open(getUrl("/d"));
+    input2.reserve(getUrl("/e"), note(events, "reserved"), note(events, "timed out"));
+    for (int i = 0; i < 500 && events.isEmpty(); i++) {
+      Thread.sleep(10L);
+    }
+    assertEquals("[timed out]", events.toString());
+    assertEquals(0, gate.getWaiting());
+    read(second);
+    assertEquals(0, gate.getHeld(job));
+  }
+
+  @Test
+  public void testFilesAreNotLimited() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setConnectionsPerHost(1);
+    sut.setQueueTimeout(200L);
+    sut.setBandwidthPerHost(1000L);
+    File f = File.createTempFile("downloader-test-", ".xml", new File("target"));
+    f.deleteOnExit();
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(new byte[20000]);
+    }
+    finally {
+      out.close();
+    }
+
+    // All the files are open at once, and are read at full speed.
+    List<InputStream> streams = new ArrayList<InputStream>();
+    for (int i = 0; i < 5; i++) {
+      streams.add(sut.open(f.toURI().toURL()));
+    }
+    long start = System.currentTimeMillis();
+    for (InputStream in : streams) {
+      assertEquals(20000, read(in).length());
+    }
+    assertTrue(System.currentTimeMillis() - start < 5000L);
+  }
+
+  @Test
+  public void testBandwidthPerHost() throws Exception {
+    Downloader sut = new Downloader();
+    sut.setBandwidthPerHost(40000L);
+    long start = System.currentTimeMillis();
+    assertEquals(20000, read(sut.open(getUrl("/big"))).length());
+    assertTrue(System.currentTimeMillis() - start >= 400L);
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    Set<URL> urls = new HashSet<URL>();
+    urls.add(getUrl("/slow"));
+    Collator sut = new Collator(urls, new ByteArrayOutputStream());
+    sut.setDeadline(300L);
+    long start = System.currentTimeMillis();
+    try {
+      sut.collate();
+      fail("The collation should have failed");
+    }
+    catch (Exception e) {
+      assertEquals(1, sut.getErrors().size());
+      assertTrue(sut.getErrors().get(0) instanceof InputTimeoutException);
+      assertTrue(System.currentTimeMillis() - start < 5000L);
+    }
+  }
+
+  /**
+   * Opens a URL in a new thread, noting the path when the stream is open.
+   * The stream is left open.
+   */
+  private Thread openLater(final Downloader d, final String path, final List<String> order) throws Exception {
+    final URL u = getUrl(path);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          d.open(u);
+          order.add(path);
+        }
+        catch (IOException e) {
+          order.add(e.toString());
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  private Runnable note(final List<String> events, final String event) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        events.add(event);
+      }
+    };
+  }
+
+  private void waitForQueue(HostGate gate, int n) throws InterruptedException {
+    for (int i = 0; i < 500 && gate.getWaiting() < n; i++) {
+      Thread.sleep(10L);
+    }
+    assertEquals(n, gate.getWaiting());
+  }
+
+  private URL getUrl(String path) throws Exception {
+    return new URL("http://localhost:" + server.getAddress().getPort() + path);
+  }
+
+  private String read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] b = new byte[1024];
+      int n;
+      while ((n = in.read(b)) != -1) {
+        out.write(b, 0, n);
+      }
+      return out.toString("UTF-8");
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+
+/**
+ * JUnit-4 tests for {@link IdRewriter}.
+ *
+ * @author Guy Rixon
+ */
+public class IdRewriterTest {
+
+  @Test
+  public void testAttributes() throws Exception {
+    IdRewriter sut = IdRewriter.forNamespace(IdRewriter.XSAMS_0_3_NS_URI, "_1");
+    assertEquals("S1_1", sut.rewriteAttribute("stateRef", "S1"));
+    assertEquals("S2_1", sut.rewriteAttribute("stateID", "S2"));
+    assertEquals("S1", sut.rewriteAttribute("name", "S1"));
+    assertFalse(sut.isIdAttribute("envID"));
+    assertTrue(IdRewriter.forNamespace(Collator.XSAMS_NS_URI, "_1").isIdAttribute("envID"));
+  }
+
+  @Test
+  public void testElements() throws Exception {
+    IdRewriter sut = IdRewriter.forNamespace("urn:unknown", "_2");
+    StringWriter text = new StringWriter();
+    XMLStreamWriter w = XMLOutputFactory.newFactory().createXMLStreamWriter(text);
+    char[] content = "S1".toCharArray();
+    w.writeStartElement("UpperStateRef");
+    sut.startElement("UpperStateRef");
+    assertTrue(sut.characters(content, 0, 2));
+    assertEquals("_2", sut.endElement("UpperStateRef", w));
+    w.writeEndElement();
+    w.writeStartElement("Comments");
+    sut.startElement("Comments");
+    assertFalse(sut.characters(content, 0, 2));
+    w.writeCharacters(content, 0, 2);
+    assertNull(sut.endElement("Comments", w));
+    w.writeEndElement();
+    w.flush();
+    assertEquals("<UpperStateRef>S1_2</UpperStateRef><Comments>S1</Comments>", text.toString());
+  }
+
+  @Test
+  public void testCustomNames() throws Exception {
+    IdRewriter sut = new IdRewriter("_3", Arrays.asList("ref"), Arrays.asList("Ref"));
+    assertEquals("a_3", sut.rewriteAttribute("ref", "a"));
+    assertEquals("a", sut.rewriteAttribute("stateRef", "a"));
+    assertTrue(sut.isIdElement("Ref"));
+  }
+
+  @Test
+  public void testAliases() throws Exception {
+    IdRewriter sut = IdRewriter.forNamespace(IdRewriter.XSAMS_0_3_NS_URI, "_2");
+    assertTrue(sut.alias(Arrays.asList("B1"), "_1"));
+    assertEquals("B1_1", sut.rewriteAttribute("sourceRef", "B1"));
+    assertEquals("B2_2", sut.rewriteAttribute("sourceRef", "B2"));
+    assertTrue(sut.isDefinition("sourceID"));
+    assertFalse(sut.isDefinition("sourceRef"));
+  }
+
+  @Test
+  public void testAliasLimit() throws Exception {
+    IdRewriter sut = IdRewriter.forNamespace(IdRewriter.XSAMS_0_3_NS_URI, "_2");
+    sut.setAliasLimit(2);
+    assertTrue(sut.alias(Arrays.asList("B1"), "_1"));
+    assertFalse(sut.alias(Arrays.asList("S1", "S2"), "_1"));
+    assertEquals("S1_2", sut.rewriteAttribute("stateRef", "S1"));
+    assertTrue(sut.alias(Arrays.asList("S3"), "_1"));
+    assertEquals("S3_1", sut.rewriteAttribute("stateRef", "S3"));
+  }
+
+}
@@ -0,0 +1,119 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * JUnit-4 tests for {@link MappedFileInputStream}. Small windows are used
+ * so that the reads cross from one window to the next.
+ *
+ * @author Guy Rixon
+ */
+public class MappedFileInputStreamTest {
+
+  @Test
+  public void testReadAcrossWindows() throws Exception {
+    byte[] content = getContent(1000);
+    File f = write(content);
+    InputStream sut = new MappedFileInputStream(f, 64);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(content[0], (byte) sut.read());
+      out.write(content[0]);
+      byte[] b = new byte[100];
+      int n;
+      while ((n = sut.read(b)) != -1) {
+        assertTrue(n <= 64);
+        out.write(b, 0, n);
+      }
+      assertArrayEquals(content, out.toByteArray());
+      assertEquals(-1, sut.read());
+    }
+    finally {
+      sut.close();
+    }
+  }
+
+  @Test
+  public void testMarkAndSkip() throws Exception {
+    byte[] content = getContent(1000);
+    InputStream sut = new MappedFileInputStream(write(content), 64);
+    try {
+      assertTrue(sut.markSupported());
+      assertEquals(60L, sut.skip(60L));
+      sut.mark(2);
+      byte[] b = new byte[10];
+      assertEquals(10, sut.read(b));
+      assertEquals(content[69], b[9]);
+      assertEquals(10, sut.read(b));
+      assertEquals(content[79], b[9]);
+      sut.reset();
+      assertEquals(content[60] & 0xff, sut.read());
+      assertEquals(939, sut.available());
+      assertEquals(939L, sut.skip(2000L));
+      assertEquals(-1, sut.read());
+    }
+    finally {
+      sut.close();
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws Exception {
+    InputStream sut = new MappedFileInputStream(write(new byte[0]), 64);
+    try {
+      assertEquals(-1, sut.read());
+      assertEquals(-1, sut.read(new byte[10]));
+    }
+    finally {
+      sut.close();
+    }
+  }
+
+  @Test(expected=IOException.class)
+  public void testReadAfterClose() throws Exception {
+    InputStream sut = new MappedFileInputStream(write(getContent(100)), 64);
+    sut.read();
+    sut.close();
+    sut.read();
+  }
+
+  @Test
+  public void testSmallFilesAreNotMapped() throws Exception {
+    InputStream small = MappedFileInputStream.open(write(getContent(100)));
+    small.close();
+    assertTrue(small instanceof FileInputStream);
+    InputStream large = MappedFileInputStream.open(write(getContent((int) MappedFileInputStream.MAPPING_THRESHOLD)));
+    large.close();
+    assertTrue(large instanceof MappedFileInputStream);
+  }
+
+  private byte[] getContent(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) (i * 7);
+    }
+    return b;
+  }
+
+  private File write(byte[] content) throws IOException {
+    File f = File.createTempFile("mapped-test-", ".bin", new File("target"));
+    f.deleteOnExit();
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content);
+    }
+    finally {
+      out.close();
+    }
+    return f;
+  }
+
+}
@@ -0,0 +1,153 @@
+package eu.vamdc.xsams.multiplexor.mux;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * JUnit-4 tests for {@link UpstreamCache}. The upstream documents are
+ * served by an HTTP server in the test.
+ *
+ * @author Guy Rixon
+ */
+public class UpstreamCacheTest {
+
+  private HttpServer server;
+
+  private AtomicInteger downloads;
+
+  private AtomicInteger revalidations;
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    downloads = new AtomicInteger(0);
+    revalidations = new AtomicInteger(0);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange x) throws IOException {
+        String path = x.getRequestURI().getPath();
+        byte[] body = ("<doc>" + path + "</doc>\n").getBytes("UTF-8");
+        String etag = "\"" + path.hashCode() + "\"";
+        if (etag.equals(x.getRequestHeaders().getFirst("If-None-Match"))) {
+          revalidations.incrementAndGet();
+          x.sendResponseHeaders(304, -1);
+        }
+        else {
+          downloads.incrementAndGet();
+          if (!path.startsWith("/volatile")) {
+            x.getResponseHeaders().set("ETag", etag);
+          }
+          x.sendResponseHeaders(200, body.length);
+          OutputStream out = x.getResponseBody();
+          out.write(body);
+          out.close();
+        }
+        x.close();
+      }
+    });
+    server.start();
+    directory = new File("target", "upstream-cache-test");
+    if (directory.isDirectory()) {
+      for (File f : directory.listFiles()) {
+        f.delete();
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testRevalidation() throws Exception {
+    UpstreamCache sut = new UpstreamCache(directory, 1024L * 1024L);
+    URL u = getUrl("/a");
+    assertEquals("<doc>/a</doc>\n", read(sut.open(u)));
+    assertTrue(sut.contains(u));
+    assertEquals(1, downloads.get());
+    assertEquals("<doc>/a</doc>\n", read(sut.open(u)));
+    assertEquals(1, downloads.get());
+    assertEquals(1, revalidations.get());
+
+    // A new instance finds the documents left by the old one.
+    UpstreamCache reloaded = new UpstreamCache(directory, 1024L * 1024L);
+    assertTrue(reloaded.contains(u));
+    assertEquals("<doc>/a</doc>\n", read(reloaded.open(u)));
+    assertEquals(1, downloads.get());
+  }
+
+  @Test
+  public void testUnvalidatedDocumentsAreNotCached() throws Exception {
+    UpstreamCache sut = new UpstreamCache(directory, 1024L * 1024L);
+    URL u = getUrl("/volatile");
+    read(sut.open(u));
+    read(sut.open(u));
+    assertFalse(sut.contains(u));
+    assertEquals(2, downloads.get());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    UpstreamCache sut = new UpstreamCache(directory, 30L);
+    URL a = getUrl("/a");
+    URL b = getUrl("/b");
+    URL c = getUrl("/c");
+    read(sut.open(a));
+    read(sut.open(b));
+    read(sut.open(a)); // Makes b the least recently used.
+    read(sut.open(c));
+    assertTrue(sut.contains(a));
+    assertFalse(sut.contains(b));
+    assertTrue(sut.contains(c));
+    assertEquals(2, sut.getEntryCount());
+    assertTrue(sut.getSize() <= 30L);
+  }
+
+  @Test
+  public void testEarlyCloseIsDrained() throws Exception {
+    UpstreamCache sut = new UpstreamCache(directory, 1024L * 1024L);
+    URL u = getUrl("/a");
+    InputStream in = sut.open(u);
+    in.read();
+    in.close();
+    // The rest of this small document is drained on closing.
+    assertTrue(sut.contains(u));
+  }
+
+  private URL getUrl(String path) throws Exception {
+    return new URL("http://localhost:" + server.getAddress().getPort() + path);
+  }
+
+  private String read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] b = new byte[1024];
+      int n;
+      while ((n = in.read(b)) != -1) {
+        out.write(b, 0, n);
+      }
+      return out.toString("UTF-8");
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+/**
+ * A range of bytes requested in an HTTP Range header. Only a single range is
+ * supported; requests for several ranges are treated as requests for the
+ * whole entity, as HTTP allows.
+ * 
+ * @author Guy Rixon
+ */
+public class ByteRange {
+  
+  private final long first;
+  
+  private final long last;
+  
+  private final long entityLength;
+  
+  private ByteRange(long first, long last, long entityLength) {
+    this.first        = first;
+    this.last         = last;
+    this.entityLength = entityLength;
+  }
+  
+  /**
+   * Parses a Range header.
+   * 
+   * @param header The value of the header (may be null).
+   * @param entityLength The length of the entity in bytes.
+   * @return The range, or null if the header is absent, malformed or asks 
+   * for several ranges, in which case the whole entity should be sent.
+   * @throws RangeNotSatisfiableException If the range lies outside the entity.
+   */
+  public static ByteRange parse(String header, long entityLength) 
+      throws RangeNotSatisfiableException {
+    if (header == null) {
+      return null;
+    }
+    String h = header.trim();
+    if (!h.startsWith("bytes=") || h.indexOf(',') != -1) {
+      return null;
+    }
+    String spec = h.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    try {
+      String a = spec.substring(0, dash).trim();
+      String b = spec.substring(dash + 1).trim();
+      if (a.length() == 0) {
+        // A suffix range: the last n bytes.
+        long n = Long.parseLong(b);
+        if (n <= 0L || entityLength == 0L) {
+          throw new RangeNotSatisfiableException(entityLength);
+        }
+        return new ByteRange(Math.max(0L, entityLength - n), entityLength - 1L, entityLength);
+      }
+      long first = Long.parseLong(a);
+      long last  = (b.length() == 0)? entityLength - 1L : Math.min(Long.parseLong(b), entityLength - 1L);
+      if (first < 0L || (b.length() > 0 && Long.parseLong(b) < first)) {
+        return null;
+      }
+      if (first >= entityLength) {
+        throw new RangeNotSatisfiableException(entityLength);
+      }
+      return new ByteRange(first, last, entityLength);
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+  
+  public long getFirst() {
+    return first;
+  }
+  
+  public long getLast() {
+    return last;
+  }
+  
+  public long getLength() {
+    return last - first + 1L;
+  }
+  
+  /**
+   * Supplies the value for the Content-Range header of a partial response.
+   * 
+   * @return The value.
+   */
+  public String getContentRange() {
+    return "bytes " + first + "-" + last + "/" + entityLength;
+  }
+  
+}
@@ -0,0 +1,373 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The index of a {@link DataCache} on disk, so that the cache survives a
+ * restart of the web application. The index is a log to which one line is
+ * appended for each change:
+ * <ul>
+ * <li>P, when a job is entered, with its key and output file;</li>
+ * <li>D, when a job has succeeded, with everything needed to restore it,
+ * including the number of inputs left out of a partial result;</li>
+ * <li>R, when an entry is removed.</li>
+ * </ul>
+ * Fields are separated by tabs and URL-encoded.
+ * <p>
+ * When the log is loaded, the entries recorded as done and not removed are
+ * restored, provided that their output is still on disk. Jobs entered but
+ * never done were cut short by the restart; their output is incomplete and
+ * is deleted. The log is then rewritten to hold just the restored entries.
+ * <p>
+ * While the cache runs, the log is {@link #compact compacted} again 
+ * whenever its lines for entries no longer in the cache outnumber the 
+ * entries that are, so that it does not grow without bound between restarts.
+ *
+ * @author Guy Rixon
+ */
+class CacheJournal {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheJournal.class);
+
+  private static final String ENCODING = "UTF-8";
+
+  private final File file;
+
+  private Writer out;
+
+  private long lastKey;
+
+  /**
+   * The number of lines in the log.
+   */
+  private int lines;
+
+  /**
+   * Constructs a journal in a given file. The file is not read or written
+   * until {@link #load} is called.
+   *
+   * @param f The file.
+   */
+  CacheJournal(File f) {
+    file = f;
+    out = null;
+    lastKey = 0L;
+    lines = 0;
+  }
+
+  /**
+   * Reads the log, deletes the output of jobs that did not finish, and
+   * rewrites the log to hold only the entries restored. After this, changes
+   * may be recorded.
+   *
+   * @return The entries restored, keyed as before the restart.
+   * @throws IOException If the log cannot be read or rewritten.
+   */
+  synchronized Map<String,CachedDataSet> load() throws IOException {
+    Map<String,String[]> pending = new HashMap<String,String[]>();
+    Map<String,String[]> done = new LinkedHashMap<String,String[]>();
+    if (file.exists()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] fields = line.split("\t", -1);
+          if (fields.length < 2) {
+            continue; // Torn write at the end of the log.
+          }
+          String key = fields[1];
+          noteKey(key);
+          if (fields[0].equals("P") && fields.length == 4) {
+            pending.put(key, fields);
+          }
+          else if (fields[0].equals("D") && (fields.length == 7 || fields.length == 8)) {
+            pending.remove(key);
+            done.put(key, fields);
+          }
+          else if (fields[0].equals("R")) {
+            pending.remove(key);
+            done.remove(key);
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    for (String[] fields : pending.values()) {
+      File output = new File(decode(fields[3]));
+      output.delete();
+      new File(output.getPath() + ".gz").delete();
+      LOG.info("Deleted the output of unfinished job " + fields[1]);
+    }
+
+    Map<String,CachedDataSet> restored = new LinkedHashMap<String,CachedDataSet>();
+    for (String[] fields : done.values()) {
+      try {
+        File output = new File(decode(fields[3]));
+        String c = decode(fields[4]);
+        File compressed = (c.length() == 0)? null : new File(c);
+        if (!output.exists()) {
+          if (compressed != null) {
+            compressed.delete();
+          }
+          continue;
+        }
+        if (compressed != null && !compressed.exists()) {
+          compressed = null;
+        }
+        String s = decode(fields[5]);
+        Set<URL> urls = new HashSet<URL>();
+        for (String u : fields[6].split(" ")) {
+          if (u.length() > 0) {
+            urls.add(new URL(decode(u)));
+          }
+        }
+        Date d = new Date(Long.parseLong(fields[2]));
+        int excluded = (fields.length == 8)? Integer.parseInt(fields[7]) : 0; // Older logs lack the count.
+        restored.put(fields[1], new CachedDataSet(output, compressed, d, (s.length() == 0)? null : s, urls, excluded));
+      }
+      catch (MalformedURLException e) {
+        LOG.warn("Dropped entry " + fields[1] + " from the cache index", e);
+      }
+      catch (NumberFormatException e) {
+        LOG.warn("Dropped entry " + fields[1] + " from the cache index", e);
+      }
+    }
+
+    rewrite(restored);
+    LOG.info("Restored " + restored.size() + " entries from the cache index " + file);
+    return restored;
+  }
+
+  /**
+   * Rewrites the log to hold only the entries now in the cache, if the 
+   * lines for other entries outnumber them. Entries recorded as done are
+   * written as such; the others are written as pending, so that their 
+   * output is deleted if the application stops before they finish.
+   * Changes to the cache wait for the rewriting to end.
+   *
+   * @param live The catalogue of the cache.
+   * @return True if the log was rewritten.
+   */
+  synchronized boolean compact(Map<String,CachedDataSet> live) {
+    if (out == null || lines - live.size() <= live.size()) {
+      return false;
+    }
+    try {
+      out.close();
+      rewrite(live);
+      LOG.info("Compacted the cache index " + file + " to " + lines + " entries");
+      return true;
+    }
+    catch (IOException e) {
+      LOG.error("Failed to compact the cache index " + file + "; changes are no longer recorded", e);
+      out = null;
+      return false;
+    }
+  }
+
+  /**
+   * Reveals the greatest key found in the log.
+   *
+   * @return The key, or zero if none was found.
+   */
+  synchronized long getLastKey() {
+    return lastKey;
+  }
+
+  /**
+   * Records that a job was entered in the cache.
+   *
+   * @param key The key to the entry.
+   * @param x The entry.
+   */
+  synchronized void pending(String key, CachedDataSet x) {
+    noteKey(key);
+    if (out == null) {
+      return;
+    }
+    try {
+      writePending(key, x);
+      out.flush();
+    }
+    catch (IOException e) {
+      LOG.error("Failed to write the cache index " + file, e);
+    }
+  }
+
+  /**
+   * Records that a job in the cache has succeeded.
+   *
+   * @param key The key to the entry.
+   * @param x The entry.
+   */
+  synchronized void done(String key, CachedDataSet x) {
+    if (out == null) {
+      return;
+    }
+    try {
+      writeDone(key, x);
+      out.flush();
+    }
+    catch (IOException e) {
+      LOG.error("Failed to write the cache index " + file, e);
+    }
+  }
+
+  /**
+   * Records that an entry was removed from the cache.
+   *
+   * @param key The key to the entry.
+   */
+  synchronized void removed(String key) {
+    append("R\t" + key);
+  }
+
+  /**
+   * Closes the log. Later changes are not recorded.
+   */
+  synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      }
+      catch (IOException e) {
+        LOG.error("Failed to close the cache index " + file, e);
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * Replaces the log with one holding the given entries, and opens it for
+   * appending. If the greatest key issued is not among the entries, its
+   * removal is recorded, so that keys are not issued again after a restart.
+   *
+   * @param entries The entries, keyed as in the cache.
+   * @throws IOException If the log cannot be written.
+   */
+  private void rewrite(Map<String,CachedDataSet> entries) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create the directory " + parent);
+    }
+    File compacted = File.createTempFile("xsams-mux-index-", ".part", parent);
+    lines = 0;
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), ENCODING));
+    try {
+      for (Map.Entry<String,CachedDataSet> e : entries.entrySet()) {
+        if (e.getValue().isJournaled()) {
+          writeDone(e.getKey(), e.getValue());
+        }
+        else {
+          writePending(e.getKey(), e.getValue());
+        }
+      }
+      String last = Long.toString(lastKey);
+      if (lastKey > 0L && !entries.containsKey(last)) {
+        out.write("R\t" + last + "\n");
+        lines++;
+      }
+    }
+    finally {
+      out.close();
+    }
+    Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), ENCODING));
+  }
+
+  private void writePending(String key, CachedDataSet x) throws IOException {
+    out.write("P\t" + key + "\t" + x.getEntryTime().getTime() + "\t" + encode(x.getCacheFile().getAbsolutePath()) + "\n");
+    lines++;
+  }
+
+  private void writeDone(String key, CachedDataSet x) throws IOException {
+    StringBuilder urls = new StringBuilder();
+    Set<URL> u = x.getOriginalUrls();
+    if (u != null) {
+      for (URL url : u) {
+        if (urls.length() > 0) {
+          urls.append(' ');
+        }
+        urls.append(encode(url.toString()));
+      }
+    }
+    File compressed = x.getCompressedFile();
+    out.write("D\t" + key +
+              "\t" + x.getEntryTime().getTime() +
+              "\t" + encode(x.getCacheFile().getAbsolutePath()) +
+              "\t" + encode((compressed == null)? "" : compressed.getAbsolutePath()) +
+              "\t" + encode((x.getSignature() == null)? "" : x.getSignature()) +
+              "\t" + urls +
+              "\t" + x.getExcludedInputCount() + "\n");
+    lines++;
+  }
+
+  private void append(String line) {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.write(line);
+      out.write("\n");
+      out.flush();
+      lines++;
+    }
+    catch (IOException e) {
+      LOG.error("Failed to write the cache index " + file, e);
+    }
+  }
+
+  private void noteKey(String key) {
+    try {
+      lastKey = Math.max(lastKey, Long.parseLong(key));
+    }
+    catch (NumberFormatException e) {
+      // Not a key issued by the cache; it cannot clash with new keys.
+    }
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, ENCODING);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, ENCODING);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -1,14 +1,22 @@
 package eu.vamdc.xsams.multiplexor.web;
 
 import eu.vamdc.xsams.multiplexor.mux.Collator;
+import eu.vamdc.xsams.multiplexor.mux.InputTimeoutException;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
+ * One entry in the {@link DataCache}: the output of a job and the
+ * {@link Collator} producing it. An entry restored from the cache's index 
+ * after a restart has no collator; its job is known to have succeeded.
  *
  * @author Guy Rixon
  */
@@ -26,10 +34,45 @@ public class CachedDataSet {
   
   /**
    * The object doing the work. This object will be running in its own
-   * thread. Status of the job can be got from the object itself.
+   * thread. Status of the job can be got from the object itself. Null if
+   * the entry was restored from the index of the cache.
    */
   private final Collator collator;
   
+  /**
+   * The input URLs of a restored entry; null otherwise.
+   */
+  private final Set<URL> restoredUrls;
+  
+  /**
+   * The number of inputs left out of a restored entry; zero otherwise.
+   */
+  private final int restoredExclusions;
+  
+  /**
+   * True when the entry has been recorded as complete in the index of
+   * the cache.
+   */
+  private volatile boolean journaled;
+  
+  /**
+   * The file to which a gzip-compressed copy of the merged XSAMS is written;
+   * null if no copy is made.
+   */
+  private File compressedFile;
+  
+  /**
+   * Identifies the inputs of the job, so that equivalent requests can share
+   * its output; null if the output is not to be shared.
+   */
+  private String signature;
+  
+  /**
+   * The time, in milliseconds since the epoch, when the data were last 
+   * requested from the cache. Used when evicting data from the cache.
+   */
+  private volatile long lastAccess;
+  
   
   public CachedDataSet(File out, Collator c) throws IOException {
     this(c, out, new Date());
@@ -39,16 +82,156 @@ public class CachedDataSet {
     collator    = c;
     entryTime   = d;
     outputFile  = out;
+    compressedFile = null;
+    signature = null;
+    lastAccess = d.getTime();
+    restoredUrls = null;
+    restoredExclusions = 0;
+    journaled = false;
+  }
+  
+  /**
+   * Constructs an entry for the output of a job that succeeded before the
+   * cache was last restarted.
+   * 
+   * @param out The merged XSAMS.
+   * @param compressed The compressed copy, or null if there is none.
+   * @param d The time of the original entry.
+   * @param s The signature of the job, or null if the output is not shared.
+   * @param urls The input URLs of the job.
+   * @param excluded The number of inputs left out of the output.
+   */
+  CachedDataSet(File out, File compressed, Date d, String s, Set<URL> urls, int excluded) {
+    collator       = null;
+    entryTime      = d;
+    outputFile     = out;
+    compressedFile = compressed;
+    signature      = s;
+    lastAccess     = System.currentTimeMillis();
+    restoredUrls   = urls;
+    restoredExclusions = excluded;
+    journaled      = true;
   }
   
   public File getCacheFile() {
     return outputFile;
   }
   
+  /**
+   * Arranges for the collator to write a gzip-compressed copy of the merged
+   * XSAMS, beside the plain output, with the extra suffix .gz. This must be 
+   * called before the job is started.
+   * 
+   * @throws FileNotFoundException If the file for the copy cannot be created.
+   */
+  public void compress() throws FileNotFoundException {
+    compressedFile = new File(outputFile.getPath() + ".gz");
+    collator.setCompressedOutput(new FileOutputStream(compressedFile));
+  }
+  
+  /**
+   * Reveals the gzip-compressed copy of the merged XSAMS.
+   * 
+   * @return The file, or null if no copy is made.
+   */
+  public File getCompressedFile() {
+    return compressedFile;
+  }
+  
+  /**
+   * Reveals the signature of the job's inputs.
+   * 
+   * @return The signature, or null if the output is not to be shared.
+   */
+  public String getSignature() {
+    return signature;
+  }
+  
+  /**
+   * Sets the signature of the job's inputs; see {@link DataCache#getSignature}.
+   * 
+   * @param s The signature, or null if the output is not to be shared.
+   */
+  public void setSignature(String s) {
+    signature = s;
+  }
+  
+  /**
+   * Determines whether the output of the job may be given to another request
+   * with the same inputs. A job still running may be shared; a finished job
+   * may be shared only if it succeeded, left out none of its inputs and its
+   * output is still on disk. A partial output is kept for the requests that
+   * already have it, but a later request runs the job again, so that one
+   * passing failure upstream does not spoil the result for the life of the
+   * cache.
+   * 
+   * @return True if the output may be shared.
+   */
+  public boolean isShareable() {
+    if (!isFinished()) {
+      return true;
+    }
+    return isSucceeded() && getExcludedInputCount() == 0 && outputFile.exists();
+  }
+  
+  /**
+   * Determines whether the job has finished, successfully or not.
+   * 
+   * @return True if the job has finished.
+   */
+  public boolean isFinished() {
+    return collator == null || collator.isFinished();
+  }
+  
+  /**
+   * Determines whether the job has finished without errors.
+   * 
+   * @return True if the job has succeeded.
+   */
+  public boolean isSucceeded() {
+    return collator == null || (collator.isFinished() && collator.getErrors().isEmpty());
+  }
+  
+  /**
+   * Reveals the number of inputs that failed and were left out of a job
+   * run in partial mode. See {@link Collator#setPartial}.
+   * 
+   * @return The number of inputs left out.
+   */
+  public int getExcludedInputCount() {
+    if (collator == null) {
+      return restoredExclusions;
+    }
+    return collator.isPartial()? collator.getFailedInputCount() : 0;
+  }
+  
+  /**
+   * Determines whether the entry has been recorded as complete in the index
+   * of the cache.
+   * 
+   * @return True if it has been recorded.
+   */
+  boolean isJournaled() {
+    return journaled;
+  }
+  
+  /**
+   * Notes that the entry has been recorded as complete in the index of the
+   * cache.
+   */
+  void setJournaled() {
+    journaled = true;
+  }
+  
   public Set<URL> getOriginalUrls() {
-    return collator.getInputUrls();
+    return (collator == null)? restoredUrls : collator.getInputUrls();
   }
   
+  /**
+   * Supplies the collator of the job.
+   * 
+   * @return The collator, or null if the entry was restored after a restart.
+   */
   public Collator getCollator() {
     return collator;
   }
@@ -57,16 +240,112 @@ public class CachedDataSet {
     return entryTime;
   }
   
+  /**
+   * Supplies an HTTP entity-tag for the merged XSAMS. The tag is derived from
+   * the time of the cache entry and the length of the output, so it changes
+   * if the entry is replaced. It is meaningful only when the data are ready.
+   * 
+   * @return The tag, quoted as HTTP requires.
+   */
+  public String getEtag() {
+    return "\"" + getEtagValue() + "\"";
+  }
+  
+  /**
+   * Supplies an HTTP entity-tag for the compressed copy of the merged XSAMS.
+   * This differs from {@link #getEtag} as the two copies are different
+   * representations of the data.
+   * 
+   * @return The tag, quoted as HTTP requires.
+   */
+  public String getCompressedEtag() {
+    return "\"" + getEtagValue() + "-gz\"";
+  }
+  
+  private String getEtagValue() {
+    return Long.toHexString(entryTime.getTime()) + "-" + Long.toHexString(outputFile.length());
+  }
+  
+  /**
+   * Records that the data have been requested.
+   */
+  public void touch() {
+    lastAccess = System.currentTimeMillis();
+  }
+  
+  /**
+   * Reveals when the data were last requested.
+   * 
+   * @return The time in milliseconds since the epoch.
+   */
+  public long getLastAccess() {
+    return lastAccess;
+  }
+  
+  /**
+   * Reveals the space taken on disk by the merged XSAMS and its compressed
+   * copy, if any.
+   * 
+   * @return The size in bytes.
+   */
+  public long getDiskUsage() {
+    long bytes = outputFile.length();
+    if (compressedFile != null) {
+      bytes += compressedFile.length();
+    }
+    return bytes;
+  }
+  
+  /**
+   * Determines whether the merged XSAMS is ready to be sent.
+   * 
+   * @return True if the job has succeeded; false if it is still running.
+   * @throws DownloadTimeoutException If the job failed as an input was too slow.
+   * @throws DownloadException If the job failed for errors in its inputs.
+   */
   public boolean isReady() throws DownloadException {
-    return collator.isFinished();
+    if (!isFinished()) {
+      return false;
+    }
+    if (isSucceeded()) {
+      return true;
+    }
+    throw getDownloadException(collator.getErrors());
+  }
+  
+  /**
+   * Describes the failure of a job. If any of the errors, or any of their
+   * causes, is a timeout, the failure is reported as a timeout.
+   * 
+   * @param errors The errors reported by the job's collator (not empty).
+   * @return The exception to report.
+   */
+  static DownloadException getDownloadException(List<Exception> errors) {
+    for (Exception e : errors) {
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof InputTimeoutException || t instanceof SocketTimeoutException) {
+          return new DownloadTimeoutException("Timed out reading the inputs: " + t.getMessage(), e);
+        }
+      }
+    }
+    Exception cause = errors.get(0);
+    return new DownloadException("Failed to read the inputs: " + cause, cause);
   }
   
   public void delete() {
+    if (collator != null) {
+      collator.closeOutputs();
+    }
     if (outputFile != null) {
       outputFile.delete();
     }
-    for (File f : collator.getInputFiles()) {
-      f.delete();
+    if (compressedFile != null) {
+      compressedFile.delete();
+    }
+    if (collator != null) {
+      for (File f : collator.getInputFiles()) {
+        f.delete();
+      }
     }
   }
   
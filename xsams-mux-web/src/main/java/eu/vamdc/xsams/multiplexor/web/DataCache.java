@@ -2,14 +2,29 @@ package eu.vamdc.xsams.multiplexor.web;
 
 import eu.vamdc.xsams.multiplexor.mux.Collator;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.stream.XMLStreamException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,12 +41,33 @@ import org.slf4j.LoggerFactory;
  * Calling {@link #empty} empties the cache and deletes the associated data.
  * After this, new mappings may be entered.
  * <p>
+ * Equivalent requests may share one job. Each job may be entered with a
+ * signature of its inputs (see {@link #getSignature}); {@link #share} then
+ * returns the key of any job already entered with the same signature, 
+ * instead of entering a new one, so long as the existing job is running or
+ * has succeeded.
+ * <p>
+ * Finished data-sets are evicted when they have not been requested for a
+ * given time, or when the cache holds more than a given number of bytes or
+ * of data-sets; the data-sets least recently requested are evicted first.
+ * Jobs still running are never evicted. Eviction is done by {@link #purge},
+ * which may be called periodically in a thread of its own; see 
+ * {@link #start}.
+ * <p>
+ * The cache may keep an index on disk (see {@link CacheJournal}), so that
+ * the results of jobs that succeeded are still available under their keys 
+ * after a restart. Such a cache is constructed with {@link #DataCache(File)}
+ * and should be shut down with {@link #close}, which keeps the data, rather
+ * than {@link #empty}, which deletes them.
+ * <p>
  * Thread safety is important. The contents of the cache are catalogued in 
- * a private HashMap, with a private counter to hold the last-issued key. 
- * Access to the map and counter is via synchronized, protected methods called
- * from the public methods. The lock on the instance is held for a short a time
- * as possible. In particular, the lock is not held while data are being
- * read in to the cache, but only while they are added in the map.
+ * a private ConcurrentHashMap, with an atomic counter to hold the last-issued
+ * key, so that lookups take no lock and do not wait for each other, for
+ * new entries, or for the purge. Entries are removed with conditional
+ * operations on the map, so that an entry replaced in the meantime is not
+ * removed by mistake, and their files are deleted after they have left the
+ * map. Sharing of jobs is made atomic by compare-and-set on the map of 
+ * signatures.
  * 
  * @author Guy Rixon
  */
@@ -46,14 +82,168 @@ public class DataCache {
   public static final long CACHE_LIFETIME_IN_MILLISECONDS = 
       CACHE_LIFETIME_IN_SECONDS * 1000L;
   
-  private Integer counter;
+  private final AtomicLong counter;
+  
+  private final ConcurrentMap<String, CachedDataSet> map;
+  
+  /**
+   * The keys of the latest jobs entered with each signature.
+   */
+  private final ConcurrentMap<String, String> signatures;
+  
+  /**
+   * The most bytes of data held on disk.
+   */
+  private volatile long maxBytes;
+  
+  /**
+   * The most data-sets held.
+   */
+  private volatile int maxEntries;
+  
+  /**
+   * The time after which data not requested are evicted.
+   */
+  private volatile long lifetime;
+  
+  /**
+   * Runs the periodic purge; null if the purge is not scheduled.
+   */
+  private ScheduledExecutorService reaper;
   
-  private HashMap<String, CachedDataSet> map;
+  /**
+   * The index of the cache on disk; null if the cache is not kept.
+   */
+  private final CacheJournal journal;
   
   
+  /**
+   * Constructs an empty cache that is not kept across restarts.
+   */
   public DataCache() {
-    counter = 0;
-    map = new HashMap<String, CachedDataSet>();
+    this((CacheJournal) null);
+  }
+  
+  /**
+   * Constructs a cache kept across restarts by an index on disk. The entries
+   * recorded in the index are restored; the output of jobs cut short by the
+   * last shutdown is deleted.
+   * 
+   * @param index The file holding the index; created if it does not exist.
+   * @throws IOException If the index cannot be read or written.
+   */
+  public DataCache(File index) throws IOException {
+    this(new CacheJournal(index));
+    for (Map.Entry<String, CachedDataSet> e : journal.load().entrySet()) {
+      map.put(e.getKey(), e.getValue());
+      if (e.getValue().getSignature() != null) {
+        signatures.put(e.getValue().getSignature(), e.getKey());
+      }
+    }
+    counter.set(journal.getLastKey());
+  }
+  
+  private DataCache(CacheJournal j) {
+    journal = j;
+    counter = new AtomicLong(0L);
+    map = new ConcurrentHashMap<String, CachedDataSet>();
+    signatures = new ConcurrentHashMap<String, String>();
+    maxBytes = Long.MAX_VALUE;
+    maxEntries = Integer.MAX_VALUE;
+    lifetime = CACHE_LIFETIME_IN_MILLISECONDS;
+    reaper = null;
+  }
+  
+  /**
+   * Sets the most bytes of data held on disk. The limit is applied when
+   * the cache is purged.
+   * 
+   * @param bytes The limit (must be positive).
+   */
+  public void setMaxBytes(long bytes) {
+    if (bytes < 1L) {
+      throw new IllegalArgumentException("Cache size must be positive");
+    }
+    maxBytes = bytes;
+  }
+  
+  /**
+   * Sets the most data-sets held. The limit is applied when the cache is 
+   * purged.
+   * 
+   * @param n The limit (must be positive).
+   */
+  public void setMaxEntries(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Number of cache entries must be positive");
+    }
+    maxEntries = n;
+  }
+  
+  /**
+   * Sets the time after which data not requested are evicted, instead of
+   * the default {@link #CACHE_LIFETIME_IN_MILLISECONDS}.
+   * 
+   * @param milliseconds The time (must be positive).
+   */
+  public void setLifetime(long milliseconds) {
+    if (milliseconds < 1L) {
+      throw new IllegalArgumentException("Cache lifetime must be positive");
+    }
+    lifetime = milliseconds;
+  }
+  
+  /**
+   * Starts purging the cache periodically in a daemon thread.
+   * 
+   * @param periodInSeconds The time between purges.
+   */
+  public synchronized void start(long periodInSeconds) {
+    if (reaper != null) {
+      return;
+    }
+    reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "xsams-mux-reaper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    reaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          purge();
+        }
+        catch (Exception e) {
+          LOG.error("Failed to purge the data cache", e);
+        }
+      }
+    }, periodInSeconds, periodInSeconds, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Stops the periodic purge.
+   */
+  public synchronized void stop() {
+    if (reaper != null) {
+      reaper.shutdownNow();
+      reaper = null;
+    }
+  }
+  
+  /**
+   * Stops the periodic purge and closes the index on disk, recording the
+   * jobs that have succeeded. The data are kept for the next instance of
+   * the cache to restore.
+   */
+  public void close() {
+    stop();
+    if (journal != null) {
+      journalCompletions();
+      journal.close();
+    }
   }
   
   /**
@@ -61,7 +251,7 @@ public class DataCache {
    * 
    * @throws IOException If any data-set cannot be deleted.
    */
-  public synchronized void empty() throws IOException {
+  public void empty() throws IOException {
     for (CachedDataSet x : map.values()) {
       if (!x.getCacheFile().delete()) {
         throw new IOException("Failed to delete " + x.getCacheFile() + " from the data cache");
@@ -73,79 +263,369 @@ public class DataCache {
    * Adds a multiplexing job to the cache. The caller may start the job 
    * (by running the Collator in a thread) either before or after this call.
    * The status of the job can be checked by retrieving the map entry and 
-   * asking the Collator therein.
+   * asking the Collator therein. If the cache already has an equivalent
+   * job, running or succeeded, no job is formed, the input files are 
+   * deleted and the key of that job is returned.
    * 
    * @param url The URLs for the data; not null, normally not empty.
    * @param files Cached input-files for the job; may be null or empty.
    * @return The key for the cached data.
    * @throws IOException If the cache file cannot be created.
    */
-  public synchronized String put(Set<URL> urls, Set<File> files) 
+  public String put(Set<URL> urls, Set<File> files) 
       throws IOException, IllegalArgumentException, XMLStreamException {
+    String signature = getSignature(urls, (files == null)? new HashSet<File>(0) : files);
+    String existing = find(signature);
+    if (existing != null) {
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      return existing;
+    }
     File out = File.createTempFile("xsams-mux-", ".xsams.xml");
     Collator c = new Collator(files, urls, new FileOutputStream(out));
-    return put(new CachedDataSet(out, c));
+    CachedDataSet x = new CachedDataSet(out, c);
+    x.setSignature(signature);
+    String key = share(x);
+    if (get(key) != x) {
+      x.delete();
+    }
+    return key;
+  }
+  
+  /**
+   * Adds a data-set to the cache unless an equivalent one is already there.
+   * Data-sets are equivalent if they have the same signature. An existing
+   * data-set is used only if it is shareable; see 
+   * {@link CachedDataSet#isShareable}. If an existing data-set is used, the
+   * caller should delete the given one, which is not entered, and should
+   * not start its job.
+   * 
+   * @param x The data-set to be shared.
+   * @return The key to the equivalent data-set, if any, or to the given one.
+   */
+  public String share(CachedDataSet x) {
+    String signature = x.getSignature();
+    if (signature == null) {
+      return put(x);
+    }
+    while (true) {
+      String previous = signatures.get(signature);
+      if (previous != null) {
+        CachedDataSet y = map.get(previous);
+        if (y != null && y.isShareable()) {
+          return previous;
+        }
+      }
+      String key = newKey();
+      map.put(key, x);
+      boolean entered = (previous == null)?
+          signatures.putIfAbsent(signature, key) == null :
+          signatures.replace(signature, previous, key);
+      if (entered) {
+        if (journal != null) {
+          journal.pending(key, x);
+        }
+        return key;
+      }
+      // Another thread changed the signature's entry; look again.
+      map.remove(key, x);
+    }
+  }
+  
+  /**
+   * Finds a shareable data-set with a given signature.
+   * 
+   * @param signature The signature (may be null).
+   * @return The key to the data-set, or null if there is none.
+   */
+  public String find(String signature) {
+    if (signature == null) {
+      return null;
+    }
+    String key = signatures.get(signature);
+    if (key == null) {
+      return null;
+    }
+    CachedDataSet x = map.get(key);
+    return (x != null && x.isShareable())? key : null;
+  }
+  
+  /**
+   * Forms the signature of a job's inputs. Jobs with the same signature 
+   * produce the same output. The signature covers the URLs in a canonical
+   * form, ignoring the order in which they were given, and the content
+   * of the files.
+   * 
+   * @param urls The input URLs.
+   * @param files The input files.
+   * @return The signature: a hexadecimal SHA-256 digest.
+   * @throws IOException If a file cannot be read.
+   */
+  public static String getSignature(Set<URL> urls, Set<File> files) throws IOException {
+    List<String> parts = new ArrayList<String>(urls.size() + files.size());
+    for (URL u : urls) {
+      parts.add("url " + canonicalize(u));
+    }
+    for (File f : files) {
+      parts.add("file " + toHex(digest(f)));
+    }
+    Collections.sort(parts);
+    MessageDigest d = newDigest();
+    for (String p : parts) {
+      d.update(p.getBytes("UTF-8"));
+      d.update((byte) 0);
+    }
+    return toHex(d.digest());
   }
   
   
   /**
-   * Adds a given data-set to the shared view of the cache.
-   * This is the only point in the class where data are shared. The other put
-   * methods store data but have to call this method to share them. By extension,
-   * this is the only method where new keys are allocated.
+   * Adds a given data-set to the shared view of the cache, under a new key.
+   * If the data-set has a signature, later equivalent requests are given
+   * this data-set; see {@link #share}.
    * 
    * @param x The data-set to be shared.
    * @return The key to the stored data.
    */
-  protected synchronized String put(CachedDataSet x) {
-    counter++;
-    String key = counter.toString();
+  protected String put(CachedDataSet x) {
+    String key = newKey();
     map.put(key, x);
+    if (x.getSignature() != null) {
+      signatures.put(x.getSignature(), key);
+    }
+    if (journal != null) {
+      journal.pending(key, x);
+    }
     return key;
   }
   
-  public synchronized CachedDataSet get(String k) {
-    return map.get(k);
+  /**
+   * Supplies the data-set for a key, and records that it was requested.
+   * 
+   * @param k The key.
+   * @return The data-set, or null if there is none for the key.
+   */
+  public CachedDataSet get(String k) {
+    CachedDataSet x = map.get(k);
+    if (x != null) {
+      x.touch();
+    }
+    return x;
   }
   
-  public synchronized boolean contains(String k) {
+  public boolean contains(String k) {
     return map.containsKey(k);
   }
   
-  public synchronized void remove(String k) {
-    if (map.containsKey(k)) {
-      map.get(k).delete();
-      map.remove(k);
+  /**
+   * Removes a data-set from the cache and deletes its files.
+   * 
+   * @param k The key to the data-set.
+   */
+  public void remove(String k) {
+    CachedDataSet x = map.remove(k);
+    if (x != null) {
+      forget(k, x);
+      if (journal != null) {
+        journal.removed(k);
+      }
+      x.delete();
+    }
+  }
+  
+  /**
+   * Allocates a new key.
+   * 
+   * @return The key.
+   */
+  private String newKey() {
+    return Long.toString(counter.incrementAndGet());
+  }
+  
+  /**
+   * Evicts from the cache the finished data-sets not requested within the
+   * lifetime set by {@link #setLifetime} and then, least recently requested
+   * first, enough finished data-sets to bring the cache within the limits
+   * set by {@link #setMaxBytes} and {@link #setMaxEntries}. Jobs still 
+   * running are counted against the limits but are not evicted.
+   * <p>
+   * The purge works on a snapshot of the catalogue, and removes an entry
+   * only if it has not been replaced since the snapshot. Files are deleted
+   * after their entries have left the catalogue. No lock is taken, so 
+   * lookups and new entries are not delayed.
+   * <p>
+   * If the cache has an index on disk, the jobs that have succeeded since
+   * the last purge are recorded there first. After the purge, the index is
+   * compacted if it holds more lines for departed entries than for those
+   * still in the cache.
+   */
+  public void purge() {
+    if (journal != null) {
+      journalCompletions();
+    }
+    
+    List<String> keys = new ArrayList<String>();
+    List<CachedDataSet> values = new ArrayList<CachedDataSet>();
+    for (Map.Entry<String, CachedDataSet> e : map.entrySet()) {
+      keys.add(e.getKey());
+      values.add(e.getValue());
+    }
+    
+    long now = System.currentTimeMillis();
+    long bytes = 0L;
+    int count = keys.size();
+    List<Integer> victims = new ArrayList<Integer>();
+    List<Integer> candidates = new ArrayList<Integer>();
+    for (int i = 0; i < keys.size(); i++) {
+      CachedDataSet x = values.get(i);
+      if (!x.isFinished()) {
+        bytes += x.getDiskUsage();
+      }
+      else if (now - x.getLastAccess() > lifetime) {
+        victims.add(i);
+        count--;
+      }
+      else {
+        candidates.add(i);
+        bytes += x.getDiskUsage();
+      }
+    }
+    final List<CachedDataSet> v = values;
+    Collections.sort(candidates, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        long ta = v.get(a).getLastAccess();
+        long tb = v.get(b).getLastAccess();
+        return (ta < tb)? -1 : ((ta == tb)? 0 : 1);
+      }
+    });
+    for (Integer i : candidates) {
+      if (bytes <= maxBytes && count <= maxEntries) {
+        break;
+      }
+      victims.add(i);
+      bytes -= values.get(i).getDiskUsage();
+      count--;
+    }
+    
+    List<CachedDataSet> evicted = new ArrayList<CachedDataSet>(victims.size());
+    for (Integer i : victims) {
+      String k = keys.get(i);
+      CachedDataSet x = values.get(i);
+      if (map.remove(k, x)) {
+        forget(k, x);
+        if (journal != null) {
+          journal.removed(k);
+        }
+        evicted.add(x);
+      }
+    }
+    for (CachedDataSet x : evicted) {
+      x.delete();
+    }
+    if (!evicted.isEmpty()) {
+      LOG.info("Evicted " + evicted.size() + " data-sets from the cache");
+    }
+    if (journal != null) {
+      journal.compact(map);
     }
   }
   
   /**
-   * Removes from the cache all data older than a time specified by the
-   * constant {@link ACHE_LIFETIME_IN_MILLISECONDS}.
+   * Records in the index the jobs that have succeeded since the last call.
    */
-  public synchronized void purge() {
-    Iterator<Entry<String,CachedDataSet>> i = map.entrySet().iterator();
-    while (i.hasNext()) {
-      Entry<String,CachedDataSet> q = i.next();
-      if (isTooOld(q.getValue().getEntryTime())) {
-        q.getValue().delete();
-        i.remove();
+  private void journalCompletions() {
+    for (Map.Entry<String, CachedDataSet> e : map.entrySet()) {
+      CachedDataSet x = e.getValue();
+      if (!x.isJournaled() && x.isSucceeded()) {
+        x.setJournaled();
+        journal.done(e.getKey(), x);
       }
     }
   }
   
   /**
-   * Determines whether a data set is old enough to be purged from the cache.
+   * Removes the signature of a data-set leaving the cache, unless the 
+   * signature now leads to a later data-set.
+   * 
+   * @param k The key to the data-set.
+   * @param x The data-set.
+   */
+  private void forget(String k, CachedDataSet x) {
+    if (x.getSignature() != null) {
+      signatures.remove(x.getSignature(), k);
+    }
+  }
+  
+  /**
+   * Writes a URL in a canonical form: the scheme and host in lower case,
+   * any default port omitted, the path normalized and any fragment dropped.
    * 
-   * @param then The timestamp for the data.
-   * @return True if the data are old enough to be purged.
+   * @param u The URL.
+   * @return The canonical form.
    */
-  private boolean isTooOld(Date then) {
-    Date now = new Date();
-    long age = now.getTime() - then.getTime();
-    return age > CACHE_LIFETIME_IN_MILLISECONDS;
+  static String canonicalize(URL u) {
+    try {
+      URI uri = u.toURI().normalize();
+      if (uri.isOpaque() || uri.getHost() == null) {
+        return uri.getScheme().toLowerCase() + ":" + uri.getRawSchemeSpecificPart();
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append(uri.getScheme().toLowerCase()).append("://");
+      if (uri.getRawUserInfo() != null) {
+        sb.append(uri.getRawUserInfo()).append('@');
+      }
+      sb.append(uri.getHost().toLowerCase());
+      if (uri.getPort() != -1 && uri.getPort() != u.getDefaultPort()) {
+        sb.append(':').append(uri.getPort());
+      }
+      String path = uri.getRawPath();
+      sb.append((path == null || path.length() == 0)? "/" : path);
+      if (uri.getRawQuery() != null) {
+        sb.append('?').append(uri.getRawQuery());
+      }
+      return sb.toString();
+    }
+    catch (URISyntaxException e) {
+      return u.toString();
+    }
   }
   
+  private static byte[] digest(File f) throws IOException {
+    MessageDigest d = newDigest();
+    InputStream in = new FileInputStream(f);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        d.update(buffer, 0, n);
+      }
+      return d.digest();
+    }
+    finally {
+      in.close();
+    }
+  }
   
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+  
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
   
 }
@@ -16,6 +16,12 @@ public abstract class ErrorReportingServlet extends HttpServlet {
   
   protected static final Logger LOG = LoggerFactory.getLogger(ErrorReportingServlet.class);
   
+  /**
+   * The delay suggested to clients whose requests are refused as the
+   * service is busy.
+   */
+  private static final String RETRY_AFTER_IN_SECONDS = "60";
+  
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) 
     throws IOException {
@@ -24,19 +30,24 @@ public abstract class ErrorReportingServlet extends HttpServlet {
     }
     catch (RequestException e) {
       LOG.error("Request rejected", e);
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.toString());
+      sendError(response, HttpServletResponse.SC_BAD_REQUEST, e);
     }
     catch (DownloadTimeoutException e) {
       LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, e.toString());
+      sendError(response, HttpServletResponse.SC_GATEWAY_TIMEOUT, e);
     }
     catch (DownloadException e) {
       LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e.toString());
+      sendError(response, HttpServletResponse.SC_BAD_GATEWAY, e);
+    }
+    catch (ServiceUnavailableException e) {
+      LOG.warn("Request refused", e);
+      response.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+      sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e);
     }
     catch (Exception e) {
       LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+      sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
     }
   }
   
@@ -48,20 +59,43 @@ public abstract class ErrorReportingServlet extends HttpServlet {
     }
     catch (RequestException e) {
       LOG.error("Request rejected", e);
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.toString());
+      sendError(response, HttpServletResponse.SC_BAD_REQUEST, e);
     }
     catch (DownloadTimeoutException e) {
       LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, e.toString());
+      sendError(response, HttpServletResponse.SC_GATEWAY_TIMEOUT, e);
     }
     catch (DownloadException e) {
       LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e.toString());
+      sendError(response, HttpServletResponse.SC_BAD_GATEWAY, e);
+    }
+    catch (ServiceUnavailableException e) {
+      LOG.warn("Request refused", e);
+      response.setHeader("Retry-After", RETRY_AFTER_IN_SECONDS);
+      sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e);
     }
     catch (Exception e) {
       LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+      sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+    }
+  }
+  
+  /**
+   * Reports a failure with an HTTP status. If the response is already
+   * committed, the status cannot be changed and the failure is thrown
+   * instead, so that the container aborts the connection rather than 
+   * ending the response as if it were complete.
+   * 
+   * @param response The response.
+   * @param status The HTTP status.
+   * @param e The failure.
+   * @throws IOException If the response is committed, or the error cannot be sent.
+   */
+  private void sendError(HttpServletResponse response, int status, Exception e) throws IOException {
+    if (response.isCommitted()) {
+      throw (e instanceof IOException)? (IOException) e : new IOException(e);
     }
+    response.sendError(status, e.toString());
   }
   
   public abstract void get(HttpServletRequest request, HttpServletResponse response) throws Exception;
@@ -0,0 +1,242 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue of the parsing pool, which takes tasks from the waiting jobs
+ * in turn. A job's tasks are queued through an executor made by
+ * {@link #forJob}; the queue then hands out one task of the first job,
+ * one of the second, and so on, rather than all the tasks of the job that
+ * came first. A job with many inputs therefore cannot keep the threads of
+ * the pool from the jobs that come after it.
+ * <p>
+ * Tasks not queued through such an executor are treated as a job each.
+ * The capacity bounds the tasks of all jobs together.
+ *
+ * @author Guy Rixon
+ */
+class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+  private final int capacity;
+
+  /**
+   * The tasks waiting, by job, in the order in which the jobs take turns.
+   */
+  private final LinkedHashMap<Object,ArrayDeque<Runnable>> jobs;
+
+  private int count;
+
+  /**
+   * Constructs an empty queue.
+   *
+   * @param capacity The most tasks that may wait.
+   */
+  FairTaskQueue(int capacity) {
+    this.capacity = capacity;
+    jobs = new LinkedHashMap<Object,ArrayDeque<Runnable>>();
+    count = 0;
+  }
+
+  /**
+   * Supplies an executor that queues tasks for one job.
+   *
+   * @param pool The pool that takes tasks from this queue.
+   * @return The executor.
+   */
+  static Executor forJob(final Executor pool) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable r) {
+        pool.execute(new JobTask(this, r));
+      }
+    };
+  }
+
+  @Override
+  public synchronized boolean offer(Runnable r) {
+    if (r == null) {
+      throw new NullPointerException();
+    }
+    if (count >= capacity) {
+      return false;
+    }
+    Object job = (r instanceof JobTask)? ((JobTask) r).job : r;
+    ArrayDeque<Runnable> tasks = jobs.get(job);
+    if (tasks == null) {
+      tasks = new ArrayDeque<Runnable>();
+      jobs.put(job, tasks);
+    }
+    tasks.add(r);
+    count++;
+    notifyAll();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean offer(Runnable r, long timeout, TimeUnit unit) throws InterruptedException {
+    long end = System.nanoTime() + unit.toNanos(timeout);
+    while (count >= capacity) {
+      long remaining = end - System.nanoTime();
+      if (remaining <= 0L) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return offer(r);
+  }
+
+  @Override
+  public synchronized void put(Runnable r) throws InterruptedException {
+    while (count >= capacity) {
+      wait();
+    }
+    offer(r);
+  }
+
+  @Override
+  public synchronized Runnable poll() {
+    if (count == 0) {
+      return null;
+    }
+    Iterator<Map.Entry<Object,ArrayDeque<Runnable>>> i = jobs.entrySet().iterator();
+    Map.Entry<Object,ArrayDeque<Runnable>> first = i.next();
+    i.remove();
+    Runnable r = first.getValue().poll();
+    if (!first.getValue().isEmpty()) {
+      jobs.put(first.getKey(), first.getValue()); // To the back of the line.
+    }
+    count--;
+    notifyAll();
+    return r;
+  }
+
+  @Override
+  public synchronized Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long end = System.nanoTime() + unit.toNanos(timeout);
+    while (count == 0) {
+      long remaining = end - System.nanoTime();
+      if (remaining <= 0L) {
+        return null;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return poll();
+  }
+
+  @Override
+  public synchronized Runnable take() throws InterruptedException {
+    while (count == 0) {
+      wait();
+    }
+    return poll();
+  }
+
+  @Override
+  public synchronized Runnable peek() {
+    return (count == 0)? null : jobs.values().iterator().next().peek();
+  }
+
+  @Override
+  public synchronized boolean remove(Object o) {
+    Iterator<ArrayDeque<Runnable>> i = jobs.values().iterator();
+    while (i.hasNext()) {
+      ArrayDeque<Runnable> tasks = i.next();
+      if (tasks.remove(o)) {
+        if (tasks.isEmpty()) {
+          i.remove();
+        }
+        count--;
+        notifyAll();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized int size() {
+    return count;
+  }
+
+  @Override
+  public synchronized int remainingCapacity() {
+    return capacity - count;
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public synchronized int drainTo(Collection<? super Runnable> c, int maxElements) {
+    int n = 0;
+    while (n < maxElements && count > 0) {
+      c.add(poll());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Supplies an iterator over a copy of the queue, in no particular order.
+   * The iterator cannot remove tasks.
+   *
+   * @return The iterator.
+   */
+  @Override
+  public synchronized Iterator<Runnable> iterator() {
+    List<Runnable> copy = new ArrayList<Runnable>(count);
+    for (ArrayDeque<Runnable> tasks : jobs.values()) {
+      copy.addAll(tasks);
+    }
+    final Iterator<Runnable> i = copy.iterator();
+    return new Iterator<Runnable>() {
+      @Override
+      public boolean hasNext() {
+        return i.hasNext();
+      }
+      @Override
+      public Runnable next() {
+        return i.next();
+      }
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+
+  /**
+   * A task tagged with its job.
+   */
+  private static class JobTask implements Runnable {
+
+    final Object job;
+
+    final Runnable task;
+
+    JobTask(Object job, Runnable task) {
+      this.job = job;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+  }
+
+}
@@ -0,0 +1,466 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import eu.vamdc.xsams.multiplexor.mux.Collator;
+import eu.vamdc.xsams.multiplexor.mux.Downloader;
+import eu.vamdc.xsams.multiplexor.mux.UpstreamCache;
+import eu.vamdc.xsams.multiplexor.mux.VirtualThreadExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The threads that run the multiplexing jobs of the web application.
+ * <p>
+ * There are two pools of fixed size, each with a bounded queue of waiting
+ * tasks. The collation pool runs the {@link Collator} of each job; the
+ * parsing pool runs the Analyzers that fetch and parse the inputs, one task
+ * per input. The pools are separate so that collators waiting for their
+ * inputs cannot starve the analyzers of threads. The parsing pool takes 
+ * the tasks of waiting jobs in turn (see {@link FairTaskQueue}), so that a
+ * job with many inputs does not hold up the jobs queued after it.
+ * <p>
+ * Optionally, the inputs of jobs in the collation pool may be prefetched:
+ * the parsing pool then only downloads each input to a spool file, and a
+ * third pool, with one thread per CPU, parses the spooled inputs. Slow 
+ * downloads then hold up neither the CPUs nor the parsing of inputs that
+ * have arrived.
+ * <p>
+ * A job is accepted only if both pools have room in their queues for its
+ * tasks; otherwise it is rejected with a {@link ServiceUnavailableException}.
+ * This keeps the number of threads, and the work outstanding, bounded
+ * under load.
+ * <p>
+ * Alternatively, the analyzers may run in virtual threads, one per input,
+ * in place of the parsing pool. This suits inputs that are slow to download,
+ * since a blocked virtual thread costs little. The number of jobs is still
+ * bounded by the collation pool.
+ * <p>
+ * Jobs whose output is streamed to the client run in the client's request
+ * thread instead of the collation pool; see {@link #run}. Their analyzers
+ * each need a thread at once, so the scheduler limits the inputs of all the
+ * streamed jobs running together, and rejects a streamed job that would
+ * pass that limit with a ServiceUnavailableException.
+ * <p>
+ * Input URLs of all jobs may be read through an {@link UpstreamCache} 
+ * shared by the scheduler, so that documents wanted by many jobs are
+ * downloaded once and then only revalidated.
+ * <p>
+ * All jobs fetch their input URLs through one {@link Downloader}, so that
+ * its timeouts and retries apply to every download and its limits on 
+ * connections and bandwidth per host apply across jobs; the jobs take 
+ * turns for the connections to a busy host. Each job may also be given a
+ * deadline for reading its inputs.
+ * <p>
+ * The sizes are read from context parameters of the web application; see
+ * {@link #JobScheduler(ServletContext)}.
+ * 
+ * @author Guy Rixon
+ */
+public class JobScheduler {
+  
+  private static final Logger LOG = LoggerFactory.getLogger(JobScheduler.class);
+  
+  public final static String SCHEDULER_ATTRIBUTE = "eu.vamdc.xsams.multiplexor.scheduler";
+  
+  public final static int DEFAULT_PARSE_THREADS = 16;
+  
+  public final static int DEFAULT_PARSE_QUEUE_LIMIT = 1000;
+  
+  public final static int DEFAULT_COLLATION_THREADS = 4;
+  
+  public final static int DEFAULT_JOB_QUEUE_LIMIT = 50;
+  
+  public final static int DEFAULT_CPU_THREADS = Runtime.getRuntime().availableProcessors();
+  
+  public final static int DEFAULT_STREAM_INPUT_LIMIT = 64;
+  
+  private final ThreadPoolExecutor parsePool;
+  
+  private final ThreadPoolExecutor collationPool;
+  
+  /**
+   * Parses the inputs spooled by prefetching jobs.
+   */
+  private final ThreadPoolExecutor cpuPool;
+  
+  /**
+   * The directory in which inputs are spooled; null if inputs are not
+   * prefetched.
+   */
+  private File spoolDirectory;
+  
+  /**
+   * Runs the analyzers of streamed jobs, each in its own thread.
+   */
+  private final ExecutorService streamPool;
+  
+  /**
+   * Permits for the inputs of streamed jobs, one per input being read.
+   */
+  private Semaphore streamInputs;
+  
+  /**
+   * The executor for analyzers if they run in virtual threads; otherwise null.
+   */
+  private VirtualThreadExecutor virtualThreads;
+  
+  /**
+   * The cache through which jobs read their input URLs; null if they
+   * read them directly.
+   */
+  private UpstreamCache upstreamCache;
+  
+  /**
+   * The Downloader shared by all jobs.
+   */
+  private final Downloader downloader;
+  
+  /**
+   * The time allowed for each job to read its inputs, in milliseconds; 
+   * zero for no limit.
+   */
+  private long deadline;
+  
+  /**
+   * True if jobs leave out the inputs that fail rather than failing.
+   */
+  private boolean partial;
+  
+  /**
+   * Constructs a scheduler with pools of given sizes.
+   * 
+   * @param parseThreads The number of threads running analyzers.
+   * @param parseQueueLimit The number of analyzers that may wait for a thread.
+   * @param collationThreads The number of threads running collators.
+   * @param jobQueueLimit The number of collators that may wait for a thread.
+   */
+  public JobScheduler(int parseThreads, int parseQueueLimit, 
+                      int collationThreads, int jobQueueLimit) {
+    parsePool = new ThreadPoolExecutor(parseThreads, parseThreads, 
+                                       0L, TimeUnit.MILLISECONDS, 
+                                       new FairTaskQueue(parseQueueLimit),
+                                       new NamedThreadFactory("xsams-mux-parse-"));
+    collationPool = new ThreadPoolExecutor(collationThreads, collationThreads, 
+                                           0L, TimeUnit.MILLISECONDS, 
+                                           new LinkedBlockingQueue<Runnable>(jobQueueLimit),
+                                           new NamedThreadFactory("xsams-mux-collate-"));
+    streamPool = Executors.newCachedThreadPool(new NamedThreadFactory("xsams-mux-stream-"));
+    streamInputs = new Semaphore(DEFAULT_STREAM_INPUT_LIMIT);
+    cpuPool = new ThreadPoolExecutor(DEFAULT_CPU_THREADS, DEFAULT_CPU_THREADS, 
+                                     0L, TimeUnit.MILLISECONDS, 
+                                     new FairTaskQueue(parseQueueLimit + parseThreads),
+                                     new NamedThreadFactory("xsams-mux-cpu-"));
+    spoolDirectory = null;
+    virtualThreads = null;
+    upstreamCache = null;
+    downloader = new Downloader();
+    deadline = 0L;
+    partial = false;
+  }
+  
+  /**
+   * Constructs a scheduler sized by the context parameters parseThreads,
+   * parseQueueLimit, collationThreads and jobQueueLimit. Missing parameters
+   * take default values. If the context parameter virtualThreads is "true",
+   * the analyzers run in virtual threads, provided that the platform supports
+   * them; if it does not, the parsing pool is used and a warning is logged.
+   * If the context parameter upstreamCacheMegabytes is set, input URLs are
+   * read through a cache of that size in the directory named by the 
+   * parameter upstreamCacheDirectory, or in xsams-mux-upstream under the
+   * temporary directory by default.
+   * <p>
+   * The downloads are governed by the parameters connectTimeoutSeconds,
+   * readTimeoutSeconds, downloadAttempts (the number of tries for each 
+   * request, including the first), connectionsPerHost and 
+   * queueTimeoutSeconds (the time allowed to wait for a connection to a
+   * busy host). If the parameter kilobytesPerSecondPerHost is set, the 
+   * reading of each host, by all jobs together, is held to that rate. If
+   * the parameter jobDeadlineSeconds is set, each job must read its inputs
+   * within that time. If the parameter partialResults is "true", jobs leave
+   * out the inputs that fail or miss the deadline, rather than failing. The
+   * parameter streamInputLimit bounds the inputs of streamed jobs running
+   * together; see {@link #setStreamInputLimit}.
+   * <p>
+   * If the parameter prefetchInputs is "true", the inputs of jobs in the
+   * collation pool are spooled in the directory named by the parameter 
+   * spoolDirectory, or in xsams-mux-spool under the temporary directory
+   * by default; see {@link #setPrefetch}.
+   * 
+   * @param context The servlet context.
+   * @throws IllegalArgumentException If a parameter is not a positive integer.
+   * @throws IllegalStateException If the upstream cache cannot be created.
+   */
+  public JobScheduler(ServletContext context) {
+    this(getSize(context, "parseThreads",     DEFAULT_PARSE_THREADS),
+         getSize(context, "parseQueueLimit",  DEFAULT_PARSE_QUEUE_LIMIT),
+         getSize(context, "collationThreads", DEFAULT_COLLATION_THREADS),
+         getSize(context, "jobQueueLimit",    DEFAULT_JOB_QUEUE_LIMIT));
+    if (Boolean.parseBoolean(context.getInitParameter("virtualThreads"))) {
+      if (VirtualThreadExecutor.isSupported()) {
+        useVirtualThreads();
+        LOG.info("Analyzers will run in virtual threads");
+      }
+      else {
+        LOG.warn("Virtual threads are not supported on Java " + System.getProperty("java.version") + 
+                 "; analyzers will run in the parsing pool");
+      }
+    }
+    if (context.getInitParameter("upstreamCacheMegabytes") != null) {
+      long bytes = getSize(context, "upstreamCacheMegabytes", 1) * 1024L * 1024L;
+      String dir = context.getInitParameter("upstreamCacheDirectory");
+      File directory = (dir == null)? 
+          new File(System.getProperty("java.io.tmpdir"), "xsams-mux-upstream") :
+          new File(dir);
+      try {
+        setUpstreamCache(new UpstreamCache(directory, bytes));
+        LOG.info("Input URLs will be read through a cache of " + bytes + " bytes in " + directory);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Failed to create the upstream cache in " + directory, e);
+      }
+    }
+    downloader.setConnectTimeout(1000 * getSize(context, "connectTimeoutSeconds", 
+                                                Downloader.DEFAULT_CONNECT_TIMEOUT_IN_MILLISECONDS / 1000));
+    downloader.setReadTimeout(1000 * getSize(context, "readTimeoutSeconds", 
+                                             Downloader.DEFAULT_READ_TIMEOUT_IN_MILLISECONDS / 1000));
+    downloader.setRetries(getSize(context, "downloadAttempts", Downloader.DEFAULT_RETRIES + 1) - 1);
+    downloader.setConnectionsPerHost(getSize(context, "connectionsPerHost", 
+                                             Downloader.DEFAULT_CONNECTIONS_PER_HOST));
+    downloader.setQueueTimeout(1000L * getSize(context, "queueTimeoutSeconds", 
+                                               (int) (Downloader.DEFAULT_QUEUE_TIMEOUT_IN_MILLISECONDS / 1000L)));
+    if (context.getInitParameter("kilobytesPerSecondPerHost") != null) {
+      downloader.setBandwidthPerHost(1024L * getSize(context, "kilobytesPerSecondPerHost", 1));
+      LOG.info("Each upstream host will be read at no more than " + 
+               context.getInitParameter("kilobytesPerSecondPerHost") + " KB/s");
+    }
+    if (context.getInitParameter("jobDeadlineSeconds") != null) {
+      setDeadline(1000L * getSize(context, "jobDeadlineSeconds", 1));
+      LOG.info("Jobs must read their inputs within " + deadline + " ms");
+    }
+    setPartial(Boolean.parseBoolean(context.getInitParameter("partialResults")));
+    setStreamInputLimit(getSize(context, "streamInputLimit", DEFAULT_STREAM_INPUT_LIMIT));
+    if (Boolean.parseBoolean(context.getInitParameter("prefetchInputs"))) {
+      String dir = context.getInitParameter("spoolDirectory");
+      setPrefetch((dir == null || dir.trim().length() == 0)? 
+          new File(System.getProperty("java.io.tmpdir"), "xsams-mux-spool") :
+          new File(dir));
+      LOG.info("Inputs will be spooled in " + spoolDirectory + " and parsed in " + 
+               DEFAULT_CPU_THREADS + " threads");
+    }
+  }
+  
+  /**
+   * Reveals the Downloader shared by the jobs, so that its settings can be
+   * changed.
+   * 
+   * @return The Downloader.
+   */
+  public final Downloader getDownloader() {
+    return downloader;
+  }
+  
+  /**
+   * Sets the time allowed for later jobs to read their inputs. 
+   * See {@link Collator#setDeadline}.
+   * 
+   * @param milliseconds The deadline; zero for none.
+   */
+  public final void setDeadline(long milliseconds) {
+    deadline = milliseconds;
+  }
+  
+  /**
+   * Chooses whether later jobs leave out the inputs that fail, rather than
+   * failing. See {@link Collator#setPartial}.
+   * 
+   * @param p True for partial results.
+   */
+  public final void setPartial(boolean p) {
+    partial = p;
+  }
+  
+  /**
+   * Sets the greatest number of inputs that later streamed jobs may read
+   * together. Each input of a streamed job takes a thread for as long as
+   * the job runs, so this bounds the threads used for streaming. A job 
+   * with more inputs than the limit can never be streamed.
+   * 
+   * @param n The limit (must be positive).
+   */
+  public final void setStreamInputLimit(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Stream input limit must be positive");
+    }
+    streamInputs = new Semaphore(n);
+  }
+  
+  /**
+   * Chooses to prefetch the inputs of later jobs in the collation pool.
+   * See {@link Collator#setPrefetch}.
+   * 
+   * @param directory The directory for the spool files; null to parse the
+   * inputs as they are downloaded.
+   */
+  public final void setPrefetch(File directory) {
+    spoolDirectory = directory;
+  }
+  
+  /**
+   * Sets the cache through which later jobs read their input URLs.
+   * 
+   * @param c The cache; null to read the URLs directly.
+   */
+  public final void setUpstreamCache(UpstreamCache c) {
+    upstreamCache = c;
+  }
+  
+  /**
+   * Chooses to run the analyzers of later jobs in virtual threads rather 
+   * than in the parsing pool.
+   * 
+   * @throws UnsupportedOperationException If the platform has no virtual threads.
+   */
+  public final void useVirtualThreads() {
+    virtualThreads = new VirtualThreadExecutor();
+  }
+  
+  /**
+   * Starts a job. The collator is set to run its analyzers in the parsing 
+   * pool, or in virtual threads, and is queued in the collation pool. It
+   * reads its URLs through the shared Downloader and through the upstream 
+   * cache, if there is one. If inputs are prefetched, the spooled inputs
+   * are parsed in the pool sized for the CPUs.
+   * 
+   * @param c The collator for the job.
+   * @throws ServiceUnavailableException If either pool is too busy to take the job.
+   */
+  public void submit(Collator c) throws ServiceUnavailableException {
+    c.setUpstreamCache(upstreamCache);
+    c.setDownloader(downloader);
+    c.setDeadline(deadline);
+    c.setPartial(partial);
+    if (virtualThreads != null) {
+      c.setExecutor(virtualThreads);
+    }
+    else if (parsePool.getQueue().remainingCapacity() < c.getInputCount()) {
+      throw new ServiceUnavailableException("Too many inputs are waiting to be read; please try later");
+    }
+    else {
+      c.setExecutor(FairTaskQueue.forJob(parsePool));
+    }
+    if (spoolDirectory != null) {
+      c.setPrefetch(spoolDirectory, FairTaskQueue.forJob(cpuPool));
+    }
+    try {
+      collationPool.execute(c);
+    }
+    catch (RejectedExecutionException e) {
+      throw new ServiceUnavailableException("Too many jobs are waiting to run; please try later", e);
+    }
+  }
+  
+  /**
+   * Runs a job in the calling thread, in pipeline, so that its output is
+   * written while its inputs are being read. In pipeline, all the analyzers
+   * of the job must run at once, so they do not use the parsing pool: they
+   * run in virtual threads, if so configured, or each in a thread of its own.
+   * The job is accepted only if its inputs, added to those of the streamed 
+   * jobs already running, are within the {@link #setStreamInputLimit limit}.
+   * 
+   * @param c The collator for the job.
+   * @throws ServiceUnavailableException If too many streamed inputs are being read.
+   * @throws Exception If the job fails.
+   */
+  public void run(Collator c) throws Exception {
+    Semaphore permits = streamInputs;
+    int n = c.getInputCount();
+    if (!permits.tryAcquire(n)) {
+      throw new ServiceUnavailableException("Too many streamed inputs are being read; please try later");
+    }
+    try {
+      c.setPipelined(true);
+      c.setUpstreamCache(upstreamCache);
+      c.setDownloader(downloader);
+      c.setDeadline(deadline);
+      c.setPartial(partial);
+      c.setExecutor((virtualThreads == null)? streamPool : virtualThreads);
+      c.collate();
+    }
+    finally {
+      permits.release(n);
+    }
+  }
+  
+  /**
+   * Stops the pools, interrupting any running jobs.
+   */
+  public void shutdown() {
+    streamPool.shutdownNow();
+    collationPool.shutdownNow();
+    parsePool.shutdownNow();
+    cpuPool.shutdownNow();
+  }
+  
+  /**
+   * Reads a positive integer from a context parameter.
+   * 
+   * @param context The servlet context.
+   * @param name The name of the parameter.
+   * @param defaultValue The value if the parameter is not set.
+   * @return The value.
+   * @throws IllegalArgumentException If the parameter is not a positive integer.
+   */
+  static int getSize(ServletContext context, String name, int defaultValue) {
+    String value = context.getInitParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      int size = Integer.parseInt(value.trim());
+      if (size < 1) {
+        throw new IllegalArgumentException("Context parameter " + name + " must be positive");
+      }
+      return size;
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Context parameter " + name + " must be an integer", e);
+    }
+  }
+  
+  
+  /**
+   * Names the threads of a pool, so that they can be recognized in logs
+   * and thread dumps.
+   */
+  private static class NamedThreadFactory implements ThreadFactory {
+    
+    private final String prefix;
+    
+    private final AtomicInteger counter;
+    
+    NamedThreadFactory(String prefix) {
+      this.prefix  = prefix;
+      this.counter = new AtomicInteger(0);
+    }
+    
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, prefix + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+    
+  }
+  
+}
@@ -0,0 +1,21 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+/**
+ * Signals a request for a range of bytes that lies outside the entity.
+ * 
+ * @author Guy Rixon
+ */
+public class RangeNotSatisfiableException extends Exception {
+  
+  private final long entityLength;
+  
+  public RangeNotSatisfiableException(long entityLength) {
+    super("The requested range is outside the " + entityLength + " bytes available");
+    this.entityLength = entityLength;
+  }
+  
+  public long getEntityLength() {
+    return entityLength;
+  }
+  
+}
@@ -9,6 +9,8 @@ import java.net.URL;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.fileupload.FileItem;
@@ -23,7 +25,15 @@ import org.apache.commons.fileupload.servlet.ServletFileUpload;
  */
 public class RequestServlet extends ErrorReportingServlet {
   
+  /**
+   * The time between purges of the data cache, unless set otherwise by the
+   * context parameter reapIntervalSeconds.
+   */
+  public static final int DEFAULT_REAP_INTERVAL_IN_SECONDS = 60;
+  
   private DataCache cache;
+  
+  private JobScheduler scheduler;
 
   @Override
   public void get(HttpServletRequest request, HttpServletResponse response) throws Exception {
@@ -55,12 +65,20 @@ public class RequestServlet extends ErrorReportingServlet {
    */
   private String processUrlEncoded(HttpServletRequest request) throws Exception {
     Set<URL> urls = getUrls(request);
+    String signature = DataCache.getSignature(urls, new HashSet<File>(0));
+    String existing = cache.find(signature);
+    if (existing != null) {
+      LOG.info("Request matches job " + existing + "; sharing its output");
+      return existing;
+    }
     File out = File.createTempFile("xsams-mux-", ".xsams.xml");
     Collator collator = new Collator(urls, new FileOutputStream(out));
     CachedDataSet data = new CachedDataSet(out, collator);
-    String key = cache.put(data);
-    new Thread(collator).start();
-    return key;
+    data.setSignature(signature);
+    if (isCompressionEnabled(getServletContext())) {
+      data.compress();
+    }
+    return submit(data);
   }
   
   /**
@@ -73,7 +91,7 @@ public class RequestServlet extends ErrorReportingServlet {
    * @throws RequestException 
    */
   private String processMultipart(HttpServletRequest request) 
-      throws FileUploadException, IOException, RequestException {
+      throws FileUploadException, IOException, RequestException, ServiceUnavailableException {
     try {
       Set<File> files = new HashSet<File>();
       Set<URL> urls = new HashSet<URL>();
@@ -99,19 +117,65 @@ public class RequestServlet extends ErrorReportingServlet {
         }
       }
       
-      // Form and submit the multiplexing job.
+      // Share an equivalent job if there is one; otherwise, form and 
+      // submit the multiplexing job.
+      String signature = DataCache.getSignature(urls, files);
+      String existing = cache.find(signature);
+      if (existing != null) {
+        LOG.info("Request matches job " + existing + "; sharing its output");
+        for (File f : files) {
+          f.delete();
+        }
+        return existing;
+      }
       File out = File.createTempFile("xsams-mux-", ".xsams.xml");
       Collator collator = new Collator(files, urls, new FileOutputStream(out));
       CachedDataSet data = new CachedDataSet(out, collator);
-      String key = cache.put(data);
-      new Thread(collator).start();
-      return key;
+      data.setSignature(signature);
+      if (isCompressionEnabled(getServletContext())) {
+        data.compress();
+      }
+      return submit(data);
+    }
+    catch (ServiceUnavailableException e) {
+      throw e;
     }
     catch (Exception e) {
       throw new RequestException(e);
     }
   }
   
+  /**
+   * Enters a job in the cache and starts it. The callers look for an 
+   * equivalent job before forming this one, so as not to open its output
+   * files for nothing; but another request may enter one in between. If the
+   * cache has an equivalent job, running or succeeded, the given job is 
+   * deleted without being started, closing its output files, and the key of
+   * the equivalent job is returned, so that the requests share one output.
+   * If the job cannot be started, it is removed from the cache and its 
+   * files are deleted.
+   * 
+   * @param data The job.
+   * @return The key for the job in the cache.
+   * @throws ServiceUnavailableException If the scheduler is too busy to take the job.
+   */
+  private String submit(CachedDataSet data) throws ServiceUnavailableException {
+    String key = cache.share(data);
+    if (cache.get(key) != data) {
+      LOG.info("Request matches job " + key + "; sharing its output");
+      data.delete();
+      return key;
+    }
+    try {
+      scheduler.submit(data.getCollator());
+    }
+    catch (ServiceUnavailableException e) {
+      cache.remove(key);
+      throw e;
+    }
+    return key;
+  }
+  
   /**
    * Redirects the client to the URL for the output of the mux.
    * 
@@ -120,37 +184,117 @@ public class RequestServlet extends ErrorReportingServlet {
    * @param response The HTTP response.
    */
   private void redirect(HttpServletRequest request, String key, HttpServletResponse response) {
-    String location = String.format("http://%s:%d%s/merged/%s",
-                                    request.getServerName(),
-                                    request.getLocalPort(),
-                                    request.getContextPath(),
-                                    key);
-    response.setHeader("Location", location);
+    response.setHeader("Location", getResultLocation(request, key));
     response.setStatus(HttpServletResponse.SC_SEE_OTHER);
   }
+  
+  /**
+   * Forms the URL for the output of the mux.
+   * 
+   * @param request The HTTP request.
+   * @param key The key identifying this job in the cache.
+   * @return The URL.
+   */
+  static String getResultLocation(HttpServletRequest request, String key) {
+    return String.format("http://%s:%d%s/merged/%s",
+                         request.getServerName(),
+                         request.getLocalPort(),
+                         request.getContextPath(),
+                         key);
+  }
  
   /**
-   * Initializes the map of cached data.
+   * Determines whether the results of jobs are to be cached with compressed
+   * copies, as set by the context parameter compressOutput.
+   * 
+   * @param context The servlet context.
+   * @return True if compressed copies are to be made.
+   */
+  static boolean isCompressionEnabled(ServletContext context) {
+    return Boolean.parseBoolean(context.getInitParameter("compressOutput"));
+  }
+ 
+  /**
+   * Initializes the map of cached data and the job scheduler. The limits on
+   * the cache are read from the context parameters resultCacheMegabytes,
+   * resultCacheEntries and resultLifetimeHours, and the cache is purged 
+   * every reapIntervalSeconds; parameters not set leave the defaults of
+   * {@link DataCache}, purged every minute.
+   * <p>
+   * The cache is kept across restarts by an index in the file named by the
+   * context parameter resultIndexFile, or by default in xsams-mux-results.log
+   * under the container's temporary directory for this web application.
+   * The index must not be shared with another instance of the application,
+   * since each deletes at start-up the output of the jobs that it does not
+   * see finished.
+   * 
+   * @throws ServletException If the index of the cache cannot be read.
    */
   @Override
-  public void init() {
-    cache = new DataCache();
+  public void init() throws ServletException {
+    ServletContext context = getServletContext();
+    String indexName = context.getInitParameter("resultIndexFile");
+    File index = (indexName == null || indexName.trim().length() == 0)?
+        new File(getContextTempDir(context), "xsams-mux-results.log") :
+        new File(indexName);
+    try {
+      cache = new DataCache(index);
+    }
+    catch (IOException e) {
+      throw new ServletException("Failed to read the index of the data cache from " + index, e);
+    }
+    if (context.getInitParameter("resultCacheMegabytes") != null) {
+      cache.setMaxBytes(JobScheduler.getSize(context, "resultCacheMegabytes", 1) * 1024L * 1024L);
+    }
+    if (context.getInitParameter("resultCacheEntries") != null) {
+      cache.setMaxEntries(JobScheduler.getSize(context, "resultCacheEntries", 1));
+    }
+    if (context.getInitParameter("resultLifetimeHours") != null) {
+      cache.setLifetime(JobScheduler.getSize(context, "resultLifetimeHours", 1) * 60L * 60L * 1000L);
+    }
+    cache.start(JobScheduler.getSize(context, "reapIntervalSeconds", DEFAULT_REAP_INTERVAL_IN_SECONDS));
     getServletContext().setAttribute(DataCache.CACHE_ATTRIBUTE, cache);
+    scheduler = new JobScheduler(getServletContext());
+    getServletContext().setAttribute(JobScheduler.SCHEDULER_ATTRIBUTE, scheduler);
   }
   
   /**
-   * Destroys the data cache, deleting the data.  
+   * Finds the temporary directory that the container gives to this web
+   * application alone. The servlet specification requires the container to
+   * supply one; if it does not, the system's temporary directory is used,
+   * which other applications may share.
+   * 
+   * @param context The servlet context.
+   * @return The directory.
+   */
+  private static File getContextTempDir(ServletContext context) {
+    Object dir = context.getAttribute("javax.servlet.context.tempdir");
+    if (dir instanceof File) {
+      return (File) dir;
+    }
+    LOG.warn("The container gives no temporary directory to the application; " +
+             "set resultIndexFile so that the cache index is not shared");
+    return new File(System.getProperty("java.io.tmpdir"));
+  }
+  
+  /**
+   * Stops the job scheduler and closes the data cache. The results of jobs
+   * that have succeeded are kept for the next start; the output of jobs cut
+   * short here is deleted at that start.
    */
   @Override
   public void destroy() {
     try {
+      getServletContext().removeAttribute(JobScheduler.SCHEDULER_ATTRIBUTE);
+      scheduler.shutdown();
+      scheduler = null;
       getServletContext().removeAttribute(DataCache.CACHE_ATTRIBUTE);
-      cache.empty();
+      cache.close();
       cache = null;
       
     }
     catch (Exception e) {
-     LOG.error("Failed to delete the data cache", e);
+     LOG.error("Failed to close the data cache", e);
     }
   }
   
@@ -180,7 +324,14 @@ public class RequestServlet extends ErrorReportingServlet {
     }
   }
   
-  private Set<URL> getUrls(HttpServletRequest request) throws RequestException {
+  /**
+   * Supplies the URLs of the inputs, given as url parameters.
+   * 
+   * @param request The HTTP request.
+   * @return The URLs.
+   * @throws RequestException If there are no url parameters or any is not a URL.
+   */
+  static Set<URL> getUrls(HttpServletRequest request) throws RequestException {
     String[] values = request.getParameterValues("url");
     if (values == null) {
       throw new RequestException("Please set the url parameter or upload a file"); 
@@ -1,12 +1,16 @@
 package eu.vamdc.xsams.multiplexor.web;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -29,6 +33,11 @@ import javax.xml.transform.stream.StreamSource;
  */
 public class ResultServlet extends ErrorReportingServlet {
   
+  /**
+   * The most bytes passed to the response in one transfer from the file.
+   */
+  private static final long TRANSFER_SIZE = 1024L * 1024L;
+  
   @Override
   public void get(HttpServletRequest request, HttpServletResponse response) 
       throws RequestException, IllegalStateException, FileNotFoundException, 
@@ -43,7 +52,7 @@ public class ResultServlet extends ErrorReportingServlet {
     }
     if (x.isReady()) {
       LOG.info("Data are ready for " + key);
-      transcribeResult(x, response);
+      transcribeResult(x, request, response);
     }
     else {
       LOG.info("Data are not ready for " + key);
@@ -58,20 +67,91 @@ public class ResultServlet extends ErrorReportingServlet {
     get(request, response);
   }
   
-  protected void transcribeResult(CachedDataSet x, HttpServletResponse response) 
+  /**
+   * Sends the merged XSAMS from the cache file. The response has a length,
+   * and an ETag derived from the cache entry. A request with a matching
+   * If-None-Match header gets 304 and no content. A request with a Range
+   * header for a single range gets just that range, unless an If-Range
+   * header names a different ETag. The content is passed from the file
+   * channel to the response without being copied through the heap where
+   * the platform allows.
+   * <p>
+   * If the job made a compressed copy of its output, and the client accepts
+   * gzip encoding, the compressed copy is sent instead, with its own ETag.
+   * Ranges then apply to the compressed bytes, as HTTP requires.
+   * 
+   * @param x The cached data.
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @throws FileNotFoundException If the cache file is missing.
+   * @throws IOException If the file cannot be read or the response cannot be written.
+   */
+  protected void transcribeResult(CachedDataSet x, 
+                                  HttpServletRequest request, 
+                                  HttpServletResponse response) 
       throws FileNotFoundException, IOException {
-    BufferedInputStream in = new BufferedInputStream(new FileInputStream(x.getCacheFile()));
+    File f = x.getCacheFile();
+    String etag = x.getEtag();
+    File compressed = x.getCompressedFile();
+    if (compressed != null) {
+      response.setHeader("Vary", "Accept-Encoding");
+      if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+        f = compressed;
+        etag = x.getCompressedEtag();
+        response.setHeader("Content-Encoding", "gzip");
+      }
+    }
+    int excluded = x.getExcludedInputCount();
+    if (excluded > 0) {
+      response.setHeader("Warning", "199 xsams-mux \"" + excluded + " of the inputs failed and were left out\"");
+    }
+    
+    FileInputStream in = new FileInputStream(f);
     try {
+      FileChannel channel = in.getChannel();
+      long length = channel.size();
+      response.setHeader("ETag", etag);
+      response.setHeader("Accept-Ranges", "bytes");
+      
+      if (matches(request.getHeader("If-None-Match"), etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      
+      ByteRange range = null;
+      String ifRange = request.getHeader("If-Range");
+      if (ifRange == null || ifRange.trim().equals(etag)) {
+        try {
+          range = ByteRange.parse(request.getHeader("Range"), length);
+        }
+        catch (RangeNotSatisfiableException e) {
+          response.setHeader("Content-Range", "bytes */" + length);
+          response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+      }
+      
+      response.setContentType(StreamServlet.XSAMS_MIME_TYPE);
+      long position = 0L;
+      long count = length;
+      if (range != null) {
+        position = range.getFirst();
+        count    = range.getLength();
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", range.getContentRange());
+      }
+      response.setHeader("Content-Length", Long.toString(count));
+      
       OutputStream out = response.getOutputStream();
       try {
-        while (true) {
-          int c = in.read();
-          if (c == -1) {
-            break;
-          }
-          else {
-            out.write(c);
+        WritableByteChannel target = Channels.newChannel(out);
+        while (count > 0L) {
+          long n = channel.transferTo(position, Math.min(count, TRANSFER_SIZE), target);
+          if (n <= 0L) {
+            throw new IOException("Cache file " + f + " ended before its expected length");
           }
+          position += n;
+          count    -= n;
         }
       }
       finally {
@@ -83,7 +163,66 @@ public class ResultServlet extends ErrorReportingServlet {
     }
   }
   
+  /**
+   * Determines whether a client accepts gzip encoding. The encoding is
+   * accepted if the Accept-Encoding header names gzip, or x-gzip, or *,
+   * with a non-zero quality, and does not refuse gzip explicitly.
+   * 
+   * @param header The value of the Accept-Encoding header (may be null).
+   * @return True if gzip is accepted.
+   */
+  static boolean acceptsGzip(String header) {
+    if (header == null) {
+      return false;
+    }
+    boolean accepted = false;
+    for (String s : header.split(",")) {
+      String[] parts = s.split(";");
+      String coding = parts[0].trim().toLowerCase();
+      boolean refused = false;
+      for (int i = 1; i < parts.length; i++) {
+        String p = parts[i].trim();
+        if (p.startsWith("q=")) {
+          try {
+            refused = (Double.parseDouble(p.substring(2).trim()) <= 0.0);
+          }
+          catch (NumberFormatException e) {
+            refused = true;
+          }
+        }
+      }
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        return !refused;
+      }
+      else if (coding.equals("*")) {
+        accepted = !refused;
+      }
+    }
+    return accepted;
+  }
   
+  /**
+   * Determines whether an If-None-Match header matches an ETag.
+   * 
+   * @param header The value of the header (may be null).
+   * @param etag The ETag.
+   * @return True if the header is "*" or lists the ETag.
+   */
+  private boolean matches(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String s : header.split(",")) {
+      String t = s.trim();
+      if (t.startsWith("W/")) {
+        t = t.substring(2);
+      }
+      if (t.equals("*") || t.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
   
   protected StreamSource getData(String key) 
       throws RequestException, IllegalStateException, FileNotFoundException {
@@ -91,14 +230,13 @@ public class ResultServlet extends ErrorReportingServlet {
     if (cache == null) {
       throw new IllegalStateException("The data cache is missing");
     }
-    getCache().purge();
     CachedDataSet x = getCache().get(key);
     if (x == null) {
       throw new RequestException("Nothing is cached under " + key);
     }
     try {
-      FileReader fr = new FileReader(x.getCacheFile());
-      return new StreamSource(fr);
+      InputStream in = new BufferedInputStream(new FileInputStream(x.getCacheFile()), 64 * 1024);
+      return new StreamSource(in);
     }
     catch (FileNotFoundException e) {
       throw new FileNotFoundException("Cached XSAMS file " + x.getCacheFile() + " is missing");
@@ -132,6 +270,7 @@ public class ResultServlet extends ErrorReportingServlet {
       throws ServletException, IOException {
     long activeInputs = x.getCollator().getContributorCount();
     request.setAttribute("eu.vamdc.xsams.multiplexor.contributors", activeInputs);
+    request.setAttribute("eu.vamdc.xsams.multiplexor.failures", x.getExcludedInputCount());
     request.getRequestDispatcher("/later.jsp").forward(request, response);
   }
   
@@ -0,0 +1,20 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+/**
+ * Exception indicating that the service is too busy to accept a request.
+ * Typically, such an exception would be caught and turned into an HTTP
+ * response with code 503 "service unavailable".
+ * 
+ * @author Guy Rixon
+ */
+public class ServiceUnavailableException extends Exception {
+  
+  public ServiceUnavailableException(String message) {
+    super(message);
+  }
+  
+  public ServiceUnavailableException(String message, Throwable cause) {
+    super(message, cause);
+  }
+  
+}
@@ -0,0 +1,144 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import eu.vamdc.xsams.multiplexor.mux.Collator;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet that merges XSAMS documents and streams the result back in 
+ * the response. The inputs are given as url parameters, as for the
+ * RequestServlet; uploaded files are not accepted here.
+ * <p>
+ * The job runs in the request thread, in pipeline (see 
+ * {@link JobScheduler#run}), and each section of the output is sent as soon
+ * as all the inputs have passed it. No Content-Length is set, so the
+ * container sends the response in chunks. The output is also written to
+ * the data cache, and the response carries its URL in a Content-Location
+ * header, so that the result can be fetched again from the ResultServlet.
+ * If the client goes away, the job still runs to completion to fill the
+ * cache.
+ * <p>
+ * If an equivalent job has already finished, its output is sent from the
+ * cache instead of running the job again. An equivalent job that is still
+ * running is not shared, since its output cannot yet be streamed.
+ * <p>
+ * If the client accepts gzip encoding, the response is compressed as it is
+ * sent. Each section is flushed through the compressor as it is written, so
+ * compression does not delay the output.
+ * <p>
+ * If the job fails before any output is sent, the failure is reported with
+ * an HTTP status as for the other servlets. After that, the status has been
+ * sent, so the failure is thrown to the container, which aborts the 
+ * connection without ending the chunked (or compressed) response. The 
+ * client then sees a failed transfer rather than a document that looks
+ * complete.
+ * 
+ * @author Guy Rixon
+ */
+public class StreamServlet extends ErrorReportingServlet {
+  
+  /**
+   * The MIME type of the output.
+   */
+  public static final String XSAMS_MIME_TYPE = "application/x-xsams+xml";
+  
+  /**
+   * The size of the buffer used in compressing the response.
+   */
+  private static final int CLIENT_BUFFER_SIZE = 8 * 1024;
+
+  @Override
+  public void get(HttpServletRequest request, HttpServletResponse response) throws Exception {
+    post(request, response);
+  }
+
+  @Override
+  public void post(HttpServletRequest request, HttpServletResponse response) throws Exception {
+    Set<URL> urls = RequestServlet.getUrls(request);
+    String signature = DataCache.getSignature(urls, new HashSet<File>(0));
+    String existing = getCache().find(signature);
+    CachedDataSet finished = (existing == null)? null : getCache().get(existing);
+    if (finished != null && finished.isSucceeded()) {
+      LOG.info("Streamed request matches finished job " + existing + "; sending its output");
+      request.getRequestDispatcher("/merged/" + existing).forward(request, response);
+      return;
+    }
+    
+    File out = File.createTempFile("xsams-mux-", ".xsams.xml");
+    OutputStream client = response.getOutputStream();
+    GZIPOutputStream zipped = null;
+    if (ResultServlet.acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      zipped = new GZIPOutputStream(client, CLIENT_BUFFER_SIZE, true);
+      client = zipped;
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    response.setHeader("Vary", "Accept-Encoding");
+    TeeOutputStream tee = new TeeOutputStream(new FileOutputStream(out), client);
+    Collator collator = new Collator(urls, tee);
+    CachedDataSet data = new CachedDataSet(out, collator);
+    data.setSignature(signature);
+    if (RequestServlet.isCompressionEnabled(getServletContext())) {
+      data.compress();
+    }
+    String key = getCache().put(data);
+    LOG.info("New streamed job " + key + " committed.");
+    
+    response.setContentType(XSAMS_MIME_TYPE);
+    response.setHeader("Content-Location", RequestServlet.getResultLocation(request, key));
+    try {
+      getScheduler().run(collator);
+    }
+    catch (Exception e) {
+      tee.close();
+      getCache().remove(key);
+      if (response.isCommitted()) {
+        throw new IOException("Streamed job " + key + " failed after its response was committed", e);
+      }
+      response.reset();
+      if (collator.getErrors().isEmpty()) {
+        throw e;
+      }
+      else {
+        throw CachedDataSet.getDownloadException(collator.getErrors());
+      }
+    }
+    if (zipped != null && tee.getClientFailure() == null) {
+      try {
+        zipped.finish();
+      }
+      catch (IOException e) {
+        LOG.warn("Failed to finish the compressed response for streamed job " + key, e);
+      }
+    }
+    if (tee.getClientFailure() != null) {
+      LOG.warn("Client left before streamed job " + key + " was sent; the result is cached", 
+               tee.getClientFailure());
+    }
+    LOG.info("Streamed job " + key + " finished.");
+  }
+  
+  private DataCache getCache() {
+    DataCache cache = (DataCache) getServletContext().getAttribute(DataCache.CACHE_ATTRIBUTE);
+    if (cache == null) {
+      throw new IllegalStateException("The data cache is missing");
+    }
+    return cache;
+  }
+  
+  private JobScheduler getScheduler() {
+    JobScheduler scheduler = (JobScheduler) getServletContext().getAttribute(JobScheduler.SCHEDULER_ATTRIBUTE);
+    if (scheduler == null) {
+      throw new IllegalStateException("The job scheduler is missing");
+    }
+    return scheduler;
+  }
+  
+}
@@ -0,0 +1,88 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that writes to a file in the data cache and, at the same
+ * time, to a client. The copy in the cache is the one that matters: failure
+ * to write it fails the stream. If the client goes away, the stream stops
+ * writing to the client but carries on filling the cache, so that the 
+ * result can still be fetched later.
+ * <p>
+ * Closing the stream closes the cache file but only flushes the client's
+ * stream, which belongs to the servlet container.
+ * 
+ * @author Guy Rixon
+ */
+public class TeeOutputStream extends OutputStream {
+  
+  private final OutputStream cache;
+  
+  private final OutputStream client;
+  
+  private IOException clientFailure;
+  
+  /**
+   * Constructs a stream.
+   * 
+   * @param cache The stream to the cache file.
+   * @param client The stream to the client.
+   */
+  public TeeOutputStream(OutputStream cache, OutputStream client) {
+    this.cache  = cache;
+    this.client = client;
+    this.clientFailure = null;
+  }
+  
+  /**
+   * Reveals why writing to the client stopped.
+   * 
+   * @return The failure, or null if the client has received everything written.
+   */
+  public IOException getClientFailure() {
+    return clientFailure;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    cache.write(b, off, len);
+    if (clientFailure == null) {
+      try {
+        client.write(b, off, len);
+      }
+      catch (IOException e) {
+        clientFailure = e;
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    cache.flush();
+    if (clientFailure == null) {
+      try {
+        client.flush();
+      }
+      catch (IOException e) {
+        clientFailure = e;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    }
+    finally {
+      cache.close();
+    }
+  }
+  
+}
@@ -11,5 +11,6 @@
     <p>The data are being transfered and parsed. Reload this page to see the results (reloading
        is done automatically in most browsers).</p>
     <p>Inputs still being parsed: <%=request.getAttribute("eu.vamdc.xsams.multiplexor.contributors")%></p>
+    <p>Inputs failed and left out: <%=request.getAttribute("eu.vamdc.xsams.multiplexor.failures")%></p>
   </body>
 </html>
@@ -0,0 +1,51 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * JUnit-4 tests for {@link ByteRange}.
+ * 
+ * @author Guy Rixon
+ */
+public class ByteRangeTest {
+  
+  @Test
+  public void testClosedRange() throws Exception {
+    ByteRange sut = ByteRange.parse("bytes=100-199", 1000L);
+    assertEquals(100L, sut.getFirst());
+    assertEquals(199L, sut.getLast());
+    assertEquals(100L, sut.getLength());
+    assertEquals("bytes 100-199/1000", sut.getContentRange());
+  }
+  
+  @Test
+  public void testOpenRange() throws Exception {
+    ByteRange sut = ByteRange.parse("bytes=900-", 1000L);
+    assertEquals(900L, sut.getFirst());
+    assertEquals(999L, sut.getLast());
+    sut = ByteRange.parse("bytes=900-5000", 1000L);
+    assertEquals(999L, sut.getLast());
+  }
+  
+  @Test
+  public void testSuffixRange() throws Exception {
+    ByteRange sut = ByteRange.parse("bytes=-10", 1000L);
+    assertEquals(990L, sut.getFirst());
+    assertEquals(10L, sut.getLength());
+  }
+  
+  @Test
+  public void testWholeEntity() throws Exception {
+    assertNull(ByteRange.parse(null, 1000L));
+    assertNull(ByteRange.parse("bytes=0-1,5-6", 1000L));
+    assertNull(ByteRange.parse("lines=1-2", 1000L));
+    assertNull(ByteRange.parse("bytes=20-10", 1000L));
+  }
+  
+  @Test(expected=RangeNotSatisfiableException.class)
+  public void testUnsatisfiableRange() throws Exception {
+    ByteRange.parse("bytes=1000-", 1000L);
+  }
+  
+}
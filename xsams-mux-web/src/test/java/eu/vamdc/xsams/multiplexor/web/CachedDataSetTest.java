@@ -1,16 +1,24 @@
 package eu.vamdc.xsams.multiplexor.web;
 
+import com.sun.management.UnixOperatingSystemMXBean;
 import eu.vamdc.xsams.multiplexor.mux.Collator;
+import eu.vamdc.xsams.multiplexor.mux.InputTimeoutException;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -22,6 +30,22 @@ import org.junit.Test;
  */
 public class CachedDataSetTest {
   
+  @Test
+  public void testFailuresAreClassified() throws Exception {
+    List<Exception> errors = new ArrayList<Exception>();
+    errors.add(new IOException("Connection refused"));
+    DownloadException e = CachedDataSet.getDownloadException(errors);
+    assertFalse(e instanceof DownloadTimeoutException);
+    
+    errors.add(new InputTimeoutException(new URL("http://example.org/slow"), 1000L));
+    assertTrue(CachedDataSet.getDownloadException(errors) instanceof DownloadTimeoutException);
+    
+    // A timeout wrapped by the parser is still a timeout.
+    errors.clear();
+    errors.add(new Exception("Parsing failed", new SocketTimeoutException("Read timed out")));
+    assertTrue(CachedDataSet.getDownloadException(errors) instanceof DownloadTimeoutException);
+  }
+  
   @Test
   public void testDeletionOfCacheFiles() throws Exception {
     File output = File.createTempFile("xsams-mux-", ".xsams.xml");
@@ -44,6 +68,62 @@ public class CachedDataSetTest {
     
   }
   
+  @Test
+  public void testCompressedCopy() throws Exception {
+    File output = File.createTempFile("xsams-mux-", ".xsams.xml");
+    Collator collator = new Collator(getDefaultInputs(), new FileOutputStream(output));
+    CachedDataSet sut = new CachedDataSet(output, collator);
+    assertNull(sut.getCompressedFile());
+    sut.compress();
+    collator.collate();
+    File compressed = sut.getCompressedFile();
+    assertTrue(compressed.exists());
+    assertTrue(compressed.length() > 0L);
+    assertTrue(compressed.length() < output.length());
+    assertFalse(sut.getEtag().equals(sut.getCompressedEtag()));
+    
+    sut.delete();
+    assertFalse(output.exists());
+    assertFalse(compressed.exists());
+  }
+  
+  @Test
+  public void testDeletionClosesOutputs() throws Exception {
+    Set<File> inputs = getDefaultInputsInTempFiles();
+    long openBefore = getOpenFileCount();
+    File output = File.createTempFile("xsams-mux-", ".xsams.xml");
+    ClosingOutputStream plain = new ClosingOutputStream(new FileOutputStream(output));
+    ClosingOutputStream compressed = new ClosingOutputStream(new FileOutputStream(output.getPath() + ".gz"));
+    Collator collator = new Collator(inputs, getDefaultInputs(), plain);
+    collator.setCompressedOutput(compressed);
+    CachedDataSet sut = new CachedDataSet(output, collator);
+    
+    // The job is abandoned without running, as when an equivalent job is 
+    // shared. Neither its outputs nor its input files are left open.
+    sut.delete();
+    assertTrue(plain.closed);
+    assertTrue(compressed.closed);
+    assertFalse(output.exists());
+    for (File f : inputs) {
+      assertFalse(f.exists());
+    }
+    if (openBefore >= 0L) {
+      assertTrue(getOpenFileCount() <= openBefore);
+    }
+  }
+
+  
+  /**
+   * Counts the files open in this process, where the platform tells.
+   * 
+   * @return The count, or -1 if it is not known.
+   */
+  private long getOpenFileCount() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    return (os instanceof UnixOperatingSystemMXBean)?
+        ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : -1L;
+  }
+  
   private Set<URL> getDefaultInputs() throws Exception {
     Set<URL> inputs = new HashSet<URL>(2);
     inputs.add(this.getClass().getResource("/chianti-ti.xml"));
@@ -80,5 +160,21 @@ public class CachedDataSetTest {
       out.close();
     }
   }
+  
+  private static class ClosingOutputStream extends FilterOutputStream {
+    
+    boolean closed = false;
+    
+    ClosingOutputStream(OutputStream o) {
+      super(o);
+    }
+    
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      super.close();
+    }
+    
+  }
 
 }
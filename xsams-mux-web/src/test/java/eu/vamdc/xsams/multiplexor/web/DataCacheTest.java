@@ -0,0 +1,308 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import eu.vamdc.xsams.multiplexor.mux.Collator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * JUnit-4 tests for {@link DataCache}.
+ * 
+ * @author Guy Rixon
+ */
+public class DataCacheTest {
+  
+  @Test
+  public void testCanonicalUrls() throws Exception {
+    assertEquals("http://example.org/a/b?x=1", 
+                 DataCache.canonicalize(new URL("HTTP://Example.ORG:80/a/./c/../b?x=1#top")));
+    assertEquals("http://example.org:8080/", 
+                 DataCache.canonicalize(new URL("http://example.org:8080")));
+  }
+  
+  @Test
+  public void testSignature() throws Exception {
+    Set<URL> a = new HashSet<URL>();
+    a.add(new URL("http://example.org/tap?q=1"));
+    a.add(new URL("http://example.net/tap?q=1"));
+    Set<URL> b = new HashSet<URL>();
+    b.add(new URL("http://EXAMPLE.net:80/tap?q=1"));
+    b.add(new URL("http://example.org/tap?q=1"));
+    Set<URL> c = new HashSet<URL>();
+    c.add(new URL("http://example.org/tap?q=2"));
+    Set<File> none = new HashSet<File>(0);
+    assertEquals(DataCache.getSignature(a, none), DataCache.getSignature(b, none));
+    assertFalse(DataCache.getSignature(a, none).equals(DataCache.getSignature(c, none)));
+  }
+  
+  @Test
+  public void testSharing() throws Exception {
+    DataCache sut = new DataCache();
+    Set<URL> urls = getDefaultInputs();
+    String signature = DataCache.getSignature(urls, new HashSet<File>(0));
+    
+    CachedDataSet first = newDataSet(urls, signature);
+    String key = sut.share(first);
+    assertSame(first, sut.get(key));
+    
+    CachedDataSet second = newDataSet(urls, signature);
+    assertEquals(key, sut.share(second));
+    assertEquals(key, sut.find(signature));
+    second.delete();
+    
+    // A finished job whose output has gone is not shared.
+    first.getCollator().run();
+    assertTrue(first.isShareable());
+    first.getCacheFile().delete();
+    assertFalse(first.isShareable());
+    assertNull(sut.find(signature));
+    CachedDataSet third = newDataSet(urls, signature);
+    String key3 = sut.share(third);
+    assertFalse(key.equals(key3));
+    assertSame(third, sut.get(key3));
+    
+    sut.remove(key3);
+    assertNull(sut.find(signature));
+    sut.remove(key);
+  }
+  
+  @Test
+  public void testConcurrentSharing() throws Exception {
+    final DataCache sut = new DataCache();
+    final Set<URL> urls = getDefaultInputs();
+    final String signature = DataCache.getSignature(urls, new HashSet<File>(0));
+    final int n = 16;
+    final CachedDataSet[] x = new CachedDataSet[n];
+    final String[] keys = new String[n];
+    for (int i = 0; i < n; i++) {
+      x[i] = newDataSet(urls, signature);
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[n];
+    for (int i = 0; i < n; i++) {
+      final int j = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            keys[j] = sut.share(x[j]);
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    
+    // All the requests share one data-set, which is the only one entered.
+    int entered = 0;
+    for (int i = 0; i < n; i++) {
+      assertEquals(keys[0], keys[i]);
+      if (sut.get(keys[i]) == x[i]) {
+        entered++;
+      }
+      else {
+        x[i].delete();
+      }
+    }
+    assertEquals(1, entered);
+    sut.remove(keys[0]);
+    assertFalse(sut.contains(keys[0]));
+  }
+  
+  @Test
+  public void testEviction() throws Exception {
+    DataCache sut = new DataCache();
+    sut.setMaxEntries(2);
+    Set<URL> urls = getDefaultInputs();
+    CachedDataSet[] x = new CachedDataSet[3];
+    String[] keys = new String[3];
+    for (int i = 0; i < 3; i++) {
+      x[i] = newDataSet(urls, null);
+      x[i].getCollator().run();
+      keys[i] = sut.share(x[i]);
+      Thread.sleep(10);
+    }
+    sut.get(keys[0]); // Makes the second the least recently requested.
+    CachedDataSet running = newDataSet(urls, null);
+    String runningKey = sut.share(running);
+    
+    sut.purge();
+    assertTrue(sut.contains(keys[0]));
+    assertFalse(sut.contains(keys[1]));
+    assertFalse(x[1].getCacheFile().exists());
+    assertFalse(sut.contains(keys[2]));
+    assertTrue(sut.contains(runningKey));
+    
+    sut.setMaxEntries(100);
+    sut.setLifetime(1L);
+    Thread.sleep(10);
+    sut.purge();
+    assertFalse(sut.contains(keys[0]));
+    assertTrue(sut.contains(runningKey));
+    sut.remove(runningKey);
+  }
+  
+  @Test
+  public void testEvictionBySize() throws Exception {
+    DataCache sut = new DataCache();
+    Set<URL> urls = getDefaultInputs();
+    CachedDataSet a = newDataSet(urls, null);
+    a.getCollator().run();
+    String keyA = sut.share(a);
+    Thread.sleep(10);
+    CachedDataSet b = newDataSet(urls, null);
+    b.getCollator().run();
+    String keyB = sut.share(b);
+    sut.setMaxBytes(b.getDiskUsage() + 1L);
+    sut.purge();
+    assertFalse(sut.contains(keyA));
+    assertTrue(sut.contains(keyB));
+    sut.remove(keyB);
+  }
+  
+  @Test
+  public void testRestart() throws Exception {
+    File index = new File("target", "data-cache-test.log");
+    index.delete();
+    Set<URL> urls = getDefaultInputs();
+    String signature = DataCache.getSignature(urls, new HashSet<File>(0));
+    
+    DataCache before = new DataCache(index);
+    CachedDataSet done = newDataSet(urls, signature);
+    String doneKey = before.share(done);
+    done.getCollator().run();
+    CachedDataSet removed = newDataSet(urls, null);
+    String removedKey = before.share(removed);
+    removed.getCollator().run();
+    before.remove(removedKey);
+    CachedDataSet unfinished = newDataSet(urls, null);
+    String unfinishedKey = before.share(unfinished);
+    before.close();
+    
+    DataCache after = new DataCache(index);
+    assertTrue(after.contains(doneKey));
+    CachedDataSet restored = after.get(doneKey);
+    assertTrue(restored.isReady());
+    assertEquals(done.getCacheFile().getAbsoluteFile(), restored.getCacheFile());
+    assertEquals(done.getEtag(), restored.getEtag());
+    assertEquals(urls, restored.getOriginalUrls());
+    assertEquals(doneKey, after.find(signature));
+    assertFalse(after.contains(removedKey));
+    assertFalse(after.contains(unfinishedKey));
+    assertFalse(unfinished.getCacheFile().exists());
+    
+    // New keys do not clash with the old ones.
+    String newKey = after.share(newDataSet(urls, null));
+    assertTrue(Long.parseLong(newKey) > Long.parseLong(unfinishedKey));
+    after.remove(newKey);
+    after.remove(doneKey);
+    after.close();
+    assertTrue(new DataCache(index).find(signature) == null);
+  }
+  
+  @Test
+  public void testPartialResultIsNotShared() throws Exception {
+    File index = new File("target", "data-cache-partial-test.log");
+    index.delete();
+    Set<URL> urls = getDefaultInputs();
+    urls.add(new File("target", "no-such-input.xml").toURI().toURL());
+    String signature = DataCache.getSignature(urls, new HashSet<File>(0));
+    
+    DataCache before = new DataCache(index);
+    CachedDataSet partial = newDataSet(urls, signature);
+    partial.getCollator().setPartial(true);
+    String key = before.share(partial);
+    partial.getCollator().run();
+    assertTrue(partial.isReady());
+    assertEquals(1, partial.getExcludedInputCount());
+    assertFalse(partial.isShareable());
+    assertNull(before.find(signature));
+    before.close();
+    
+    // The count of inputs left out survives a restart.
+    DataCache after = new DataCache(index);
+    CachedDataSet restored = after.get(key);
+    assertEquals(1, restored.getExcludedInputCount());
+    assertNull(after.find(signature));
+    after.remove(key);
+    after.close();
+  }
+  
+  @Test
+  public void testIndexIsCompacted() throws Exception {
+    File index = new File("target", "data-cache-compaction-test.log");
+    index.delete();
+    Set<URL> urls = getDefaultInputs();
+    
+    DataCache sut = new DataCache(index);
+    CachedDataSet kept = newDataSet(urls, null);
+    String keptKey = sut.share(kept);
+    kept.getCollator().run();
+    String lastKey = null;
+    for (int i = 0; i < 3; i++) {
+      CachedDataSet x = newDataSet(urls, null);
+      lastKey = sut.share(x);
+      x.getCollator().run();
+      sut.remove(lastKey);
+    }
+    assertEquals(7, countLines(index));
+    
+    // The purge records the finished job and then drops the dead lines,
+    // keeping a record of the last key issued.
+    sut.purge();
+    assertEquals(2, countLines(index));
+    sut.close();
+    
+    DataCache after = new DataCache(index);
+    assertTrue(after.contains(keptKey));
+    assertTrue(after.get(keptKey).isReady());
+    String newKey = after.share(newDataSet(urls, null));
+    assertTrue(Long.parseLong(newKey) > Long.parseLong(lastKey));
+    after.remove(newKey);
+    after.remove(keptKey);
+    after.close();
+  }
+  
+  private int countLines(File f) throws Exception {
+    BufferedReader in = new BufferedReader(new FileReader(f));
+    try {
+      int n = 0;
+      while (in.readLine() != null) {
+        n++;
+      }
+      return n;
+    }
+    finally {
+      in.close();
+    }
+  }
+  
+  private CachedDataSet newDataSet(Set<URL> urls, String signature) throws Exception {
+    File out = File.createTempFile("xsams-mux-", ".xsams.xml");
+    CachedDataSet x = new CachedDataSet(out, new Collator(urls, new FileOutputStream(out)));
+    x.setSignature(signature);
+    return x;
+  }
+  
+  private Set<URL> getDefaultInputs() throws Exception {
+    Set<URL> inputs = new HashSet<URL>(2);
+    inputs.add(this.getClass().getResource("/chianti-ti.xml"));
+    inputs.add(this.getClass().getResource("/chianti-fe.xml"));
+    return inputs;
+  }
+  
+}
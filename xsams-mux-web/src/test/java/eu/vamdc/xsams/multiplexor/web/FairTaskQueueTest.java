@@ -0,0 +1,73 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * JUnit-4 tests for {@link FairTaskQueue}.
+ *
+ * @author Guy Rixon
+ */
+public class FairTaskQueueTest {
+
+  @Test
+  public void testJobsTakeTurns() throws Exception {
+    final FairTaskQueue sut = new FairTaskQueue(10);
+    Executor pool = new Executor() {
+      @Override
+      public void execute(Runnable r) {
+        assertTrue(sut.offer(r));
+      }
+    };
+    Executor jobA = FairTaskQueue.forJob(pool);
+    Executor jobB = FairTaskQueue.forJob(pool);
+    List<String> order = new ArrayList<String>();
+    jobA.execute(new Task("a1", order));
+    jobA.execute(new Task("a2", order));
+    jobA.execute(new Task("a3", order));
+    jobB.execute(new Task("b1", order));
+    jobB.execute(new Task("b2", order));
+    assertEquals(5, sut.size());
+    assertEquals(5, sut.remainingCapacity());
+
+    Runnable r;
+    while ((r = sut.poll()) != null) {
+      r.run();
+    }
+    assertEquals("[a1, b1, a2, b2, a3]", order.toString());
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    FairTaskQueue sut = new FairTaskQueue(2);
+    List<String> order = new ArrayList<String>();
+    assertTrue(sut.offer(new Task("1", order)));
+    assertTrue(sut.offer(new Task("2", order)));
+    assertFalse(sut.offer(new Task("3", order)));
+    assertEquals(0, sut.remainingCapacity());
+    sut.take().run();
+    assertTrue(sut.offer(new Task("3", order)));
+  }
+
+  private static class Task implements Runnable {
+
+    private final String name;
+
+    private final List<String> order;
+
+    Task(String name, List<String> order) {
+      this.name = name;
+      this.order = order;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+    }
+
+  }
+
+}
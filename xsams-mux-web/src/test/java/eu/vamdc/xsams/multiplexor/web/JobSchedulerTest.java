@@ -0,0 +1,110 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import eu.vamdc.xsams.multiplexor.mux.Collator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * JUnit-4 tests for {@link JobScheduler}.
+ * 
+ * @author Guy Rixon
+ */
+public class JobSchedulerTest {
+  
+  @Test
+  public void testJobRuns() throws Exception {
+    JobScheduler sut = new JobScheduler(2, 10, 1, 1);
+    try {
+      Collator c = new Collator(getDefaultInputs(), new ByteArrayOutputStream());
+      sut.submit(c);
+      for (int i = 0; i < 600 && !c.isFinished(); i++) {
+        Thread.sleep(100);
+      }
+      assertTrue(c.isFinished());
+      assertEquals(0, c.getErrors().size());
+    }
+    finally {
+      sut.shutdown();
+    }
+  }
+  
+  @Test
+  public void testStreamedJob() throws Exception {
+    JobScheduler sut = new JobScheduler(1, 1, 1, 1);
+    try {
+      ByteArrayOutputStream cache = new ByteArrayOutputStream();
+      ByteArrayOutputStream client = new ByteArrayOutputStream();
+      Collator c = new Collator(getDefaultInputs(), new TeeOutputStream(cache, client));
+      sut.run(c);
+      assertTrue(c.isFinished());
+      assertEquals(0, c.getErrors().size());
+      assertTrue(cache.size() > 0);
+      assertArrayEquals(cache.toByteArray(), client.toByteArray());
+    }
+    finally {
+      sut.shutdown();
+    }
+  }
+  
+  @Test
+  public void testStreamedJobOutlivesClient() throws Exception {
+    JobScheduler sut = new JobScheduler(1, 1, 1, 1);
+    try {
+      ByteArrayOutputStream cache = new ByteArrayOutputStream();
+      OutputStream client = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          throw new IOException("Client went away");
+        }
+      };
+      TeeOutputStream tee = new TeeOutputStream(cache, client);
+      Collator c = new Collator(getDefaultInputs(), tee);
+      sut.run(c);
+      assertEquals(0, c.getErrors().size());
+      assertNotNull(tee.getClientFailure());
+      assertTrue(cache.toString("UTF-8").trim().endsWith("</XSAMSData>"));
+    }
+    finally {
+      sut.shutdown();
+    }
+  }
+  
+  @Test(expected=ServiceUnavailableException.class)
+  public void testRejectionOfTooManyInputs() throws Exception {
+    JobScheduler sut = new JobScheduler(1, 1, 1, 1);
+    try {
+      Collator c = new Collator(getDefaultInputs(), new ByteArrayOutputStream());
+      sut.submit(c);
+    }
+    finally {
+      sut.shutdown();
+    }
+  }
+  
+  @Test(expected=ServiceUnavailableException.class)
+  public void testRejectionOfTooManyStreamedInputs() throws Exception {
+    JobScheduler sut = new JobScheduler(1, 1, 1, 1);
+    try {
+      sut.setStreamInputLimit(1);
+      Collator c = new Collator(getDefaultInputs(), new ByteArrayOutputStream());
+      sut.run(c);
+    }
+    finally {
+      sut.shutdown();
+    }
+  }
+  
+  private Set<URL> getDefaultInputs() throws Exception {
+    Set<URL> inputs = new HashSet<URL>(2);
+    inputs.add(this.getClass().getResource("/chianti-ti.xml"));
+    inputs.add(this.getClass().getResource("/chianti-fe.xml"));
+    return inputs;
+  }
+  
+}
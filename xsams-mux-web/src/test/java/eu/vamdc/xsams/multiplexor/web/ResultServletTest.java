@@ -0,0 +1,26 @@
+package eu.vamdc.xsams.multiplexor.web;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * JUnit-4 tests for {@link ResultServlet}.
+ * 
+ * @author Guy Rixon
+ */
+public class ResultServletTest {
+  
+  @Test
+  public void testAcceptsGzip() throws Exception {
+    assertFalse(ResultServlet.acceptsGzip(null));
+    assertFalse(ResultServlet.acceptsGzip("identity"));
+    assertTrue(ResultServlet.acceptsGzip("gzip"));
+    assertTrue(ResultServlet.acceptsGzip("deflate, gzip;q=0.5"));
+    assertTrue(ResultServlet.acceptsGzip("x-gzip"));
+    assertTrue(ResultServlet.acceptsGzip("*"));
+    assertFalse(ResultServlet.acceptsGzip("gzip;q=0"));
+    assertFalse(ResultServlet.acceptsGzip("*, gzip;q=0"));
+    assertFalse(ResultServlet.acceptsGzip("*;q=0"));
+  }
+  
+}